@@ -0,0 +1,375 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import pt.ulisboa.tecnico.hdsledger.communication.Message.Type;
+import pt.ulisboa.tecnico.hdsledger.utilities.ErrorMessage;
+import pt.ulisboa.tecnico.hdsledger.utilities.KeyRing;
+import pt.ulisboa.tecnico.hdsledger.utilities.LedgerException;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/*
+ * Multicast patterns and signed frames shared by every transport
+ * Frame layout: version | senderId | session | signature | digests | count | message*
+ * The signature covers the digests, those of the frames sharing it, each bound
+ * to its destination; a signed frame is only accepted by the node it was sent
+ * to (message identifiers are numbered per destination, so a frame replayed to
+ * another node would pass for one of the messages it expects)
+ * Frames of a session (other than SIGNED) carry the tag of everything after it
+ * under the keys of that session in place of the signature (see PeerSessions)
+ */
+abstract class AbstractLink implements Link {
+
+    // Session of the frames authenticated by a signature
+    protected static final int SIGNED = 0;
+    // Largest signature accepted in a frame (bytes, enough for 8192-bit RSA)
+    protected static final int MAX_SIGNATURE_LENGTH = 1024;
+    // Time between dumps of the statistics of a link to the log (ms)
+    protected static final int STATS_INTERVAL = 10000;
+    // Frames that may share one signature (each carries the digests of all of them)
+    protected static final int MAX_SHARED_FRAMES = 16;
+    private static final int DIGEST_SIZE = 32;
+    private static final byte[] NO_DIGESTS = new byte[0];
+    // Digest engines of each thread (costly to look up, not thread-safe)
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    // Map of all nodes in the network
+    protected final Map<String, ProcessConfig> nodes = new ConcurrentHashMap<>();
+    // Number of maximum byzantine nodes
+    protected final int maxByzantineNodeCount;
+    // Reference to the node itself
+    protected final ProcessConfig config;
+    // Class to deserialize messages to
+    protected final Class<? extends Message> messageClass;
+    // Checks run on inbound messages before they are authenticated
+    private final List<InboundFilter> filters = new CopyOnWriteArrayList<>();
+    // Traffic statistics of the link
+    protected final LinkStats stats;
+
+    protected AbstractLink(ProcessConfig self, int port, ProcessConfig[] nodes,
+            Class<? extends Message> messageClass) {
+        this.config = self;
+        this.messageClass = messageClass;
+        this.maxByzantineNodeCount = Math.floorDiv(nodes.length - 1, 3);
+        this.stats = new LinkStats(self.getId() + "-" + port);
+        Arrays.stream(nodes).forEach(node -> this.nodes.put(node.getId(), node));
+    }
+
+    @Override
+    public void addFilter(InboundFilter filter) {
+        filters.add(filter);
+    }
+
+    @Override
+    public LinkStats getStats() {
+        return stats;
+    }
+
+    /*
+     * Runs the filters on the header of an encoded message
+     *
+     * @param senderId The node that claims to have sent the message
+     *
+     * @param type The type of the message
+     *
+     * @param entry Buffer positioned at the beginning of the message (left
+     * untouched)
+     */
+    protected boolean passesFilters(String senderId, Type type, ByteBuffer entry) {
+        if (filters.isEmpty())
+            return true;
+
+        int consensusInstance = -1;
+        if (type == Type.PRE_PREPARE || type == Type.PREPARE || type == Type.COMMIT) {
+            // type | senderId | messageId | consensusInstance
+            ByteBuffer header = entry.duplicate();
+            header.get();
+            // The length is read before the position it is added to
+            int senderIdLength = MessageCodec.readLength(header);
+            header.position(header.position() + Math.max(senderIdLength, 0));
+            MessageCodec.readVarInt(header);
+            consensusInstance = MessageCodec.readVarInt(header);
+        }
+
+        for (InboundFilter filter : filters) {
+            if (!filter.accepts(senderId, type, consensusInstance))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void broadcast(Message data) {
+        sendAll(nodes.keySet(), destId -> data);
+    }
+
+    @Override
+    public void alternatingBroadcast(Message data1, Message data2) {
+        AtomicInteger parity = new AtomicInteger(1);
+        Map<String, Message> messages = new HashMap<>();
+        nodes.forEach((destId, dest) -> messages.put(destId, parity.getAndIncrement() % 2 == 0 ? data1 : data2));
+        sendAll(messages.keySet(), messages::get);
+    }
+
+    @Override
+    public void smallQuorumMulticast(Message data) {
+        multicast(data, maxByzantineNodeCount + 1);
+    }
+
+    @Override
+    public void quorumMulticast(Message data) {
+        multicast(data, 2 * maxByzantineNodeCount + 1);
+    }
+
+    @Override
+    public void multicast(Message data, int n) {
+        List<String> nodeKeys = new ArrayList<>(nodes.keySet());
+
+        if (n > nodeKeys.size())
+            throw new LedgerException(ErrorMessage.NoLeader);
+        if (n == nodeKeys.size())
+            broadcast(data);
+
+        // Ensure that leader is always in the list
+        Optional<Entry<String, ProcessConfig>> leader = nodes.entrySet().stream()
+                .filter((config) -> config.getValue().isLeader()).findFirst();
+        if (leader.isEmpty())
+            throw new LedgerException(ErrorMessage.NoLeader);
+
+        // Select n random nodes
+        Random random = new Random();
+        List<String> keys = new ArrayList<>();
+        keys.add(leader.get().getKey());
+
+        while (keys.size() < n) {
+            String randomKey = nodeKeys.get(random.nextInt(nodeKeys.size()));
+            if (!keys.contains(randomKey))
+                keys.add(randomKey);
+        }
+
+        sendAll(keys, destId -> data);
+    }
+
+    /*
+     * Sends a message to several nodes
+     * Each node gets its own copy, since send numbers the message, except the
+     * node itself, which is sent the original last (it is delivered locally,
+     * without serialization, once every copy has been taken)
+     *
+     * @param destIds The node identifiers
+     *
+     * @param messageOf The message to send to each node
+     */
+    private void sendAll(Collection<String> destIds, Function<String, Message> messageOf) {
+        boolean toSelf = false;
+        for (String destId : destIds) {
+            if (destId.equals(config.getId()))
+                toSelf = true;
+            else
+                send(destId, MessageCodec.copy(messageOf.apply(destId)));
+        }
+
+        if (toSelf)
+            send(config.getId(), messageOf.apply(config.getId()));
+    }
+
+    /*
+     * Packs and signs a batch of encoded messages (the frame carries the digest
+     * of the batch bound to its destination, which the signature covers)
+     *
+     * @param destId The destination of the messages
+     *
+     * @param bodies The encoded messages
+     */
+    protected byte[] frame(String destId, List<byte[]> bodies) {
+        byte[] batch = batch(bodies);
+        byte[] digests = digest(destId, ByteBuffer.wrap(batch));
+        return assemble(SIGNED, sign(digests), tail(digests, batch));
+    }
+
+    /*
+     * Packs a batch of encoded messages authenticated by the tag of a session
+     * with its destination instead of a signature
+     */
+    protected byte[] frame(List<byte[]> bodies, PeerSessions.Session session) {
+        byte[] authenticated = tail(NO_DIGESTS, batch(bodies));
+        long start = System.nanoTime();
+        byte[] tag = session.tag(authenticated);
+        stats.getMacTime().recordSince(start);
+        return assemble(session.getEpoch(), tag, authenticated);
+    }
+
+    /*
+     * Packs batches of encoded messages to several destinations into frames that
+     * share a signature, up to MAX_SHARED_FRAMES at a time: the signature covers
+     * the digests of the frames (each bound to its destination) and every frame
+     * carries the digests, so a receiver checks the signature once it finds its
+     * own frame among them
+     *
+     * @param destIds The destination of each batch
+     *
+     * @param batches The encoded messages of each batch
+     *
+     * @return The frame of each batch, in the same order
+     */
+    protected List<byte[]> frames(List<String> destIds, List<List<byte[]>> batches) {
+        byte[][] frames = new byte[batches.size()][];
+        for (int from = 0; from < batches.size(); from += MAX_SHARED_FRAMES) {
+            int to = Math.min(from + MAX_SHARED_FRAMES, batches.size());
+
+            byte[][] encoded = new byte[to - from][];
+            byte[] digests = new byte[encoded.length * DIGEST_SIZE];
+            for (int j = 0; j < encoded.length; j++) {
+                encoded[j] = batch(batches.get(from + j));
+                byte[] digest = digest(destIds.get(from + j), ByteBuffer.wrap(encoded[j]));
+                System.arraycopy(digest, 0, digests, j * DIGEST_SIZE, DIGEST_SIZE);
+            }
+
+            byte[] signature = sign(digests);
+            for (int j = 0; j < encoded.length; j++)
+                frames[from + j] = assemble(SIGNED, signature, tail(digests, encoded[j]));
+        }
+        return Arrays.asList(frames);
+    }
+
+    /*
+     * Session a frame was authenticated under (SIGNED => signature)
+     */
+    protected static int sessionOf(byte[] frame) {
+        ByteBuffer header = ByteBuffer.wrap(frame);
+        header.get();
+        int senderIdLength = MessageCodec.readLength(header);
+        header.position(header.position() + senderIdLength);
+        return MessageCodec.readVarInt(header);
+    }
+
+    /*
+     * Skips the digests of a frame, checking their size
+     */
+    protected static void skipDigests(ByteBuffer frame) {
+        int length = MessageCodec.readLength(frame);
+        if (length < 0 || length % DIGEST_SIZE != 0 || length > MAX_SHARED_FRAMES * DIGEST_SIZE)
+            throw new IllegalArgumentException("Invalid frame digests");
+        frame.position(frame.position() + length);
+    }
+
+    // count | message*
+    private static byte[] batch(List<byte[]> bodies) {
+        MessageCodec.Output batch = new MessageCodec.Output(
+                bodies.stream().mapToInt(body -> body.length + 5).sum() + 5);
+        batch.writeVarInt(bodies.size());
+        bodies.forEach(batch::writeBytes);
+        return batch.toByteArray();
+    }
+
+    // digests | count | message*
+    private static byte[] tail(byte[] digests, byte[] batch) {
+        MessageCodec.Output tail = new MessageCodec.Output(digests.length + batch.length + 5);
+        tail.writeBytes(digests);
+        tail.writeRaw(batch);
+        return tail.toByteArray();
+    }
+
+    // version | senderId | session | signature | digests | count | message*
+    private byte[] assemble(int session, byte[] signature, byte[] tail) {
+        MessageCodec.Output frame = new MessageCodec.Output(tail.length + signature.length + 32);
+        frame.writeByte(MessageCodec.WIRE_VERSION);
+        frame.writeString(config.getId());
+        frame.writeVarInt(session);
+        frame.writeBytes(signature);
+        frame.writeRaw(tail);
+        return frame.toByteArray();
+    }
+
+    private byte[] sign(byte[] signed) {
+        byte[] signature;
+        long start = System.nanoTime();
+        try {
+            signature = KeyRing.sign(config, signed);
+        } catch (Exception e) {
+            throw new LedgerException(ErrorMessage.FailedToSignMessage);
+        }
+        stats.getSignTime().recordSince(start);
+        return signature;
+    }
+
+    /*
+     * Digest of the batch of a frame bound to its destination (consumes the
+     * batch)
+     */
+    private static byte[] digest(String destId, ByteBuffer batch) {
+        MessageDigest digest = DIGESTS.get();
+        byte[] id = destId.getBytes(StandardCharsets.UTF_8);
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(0, id.length));
+        digest.update(id);
+        digest.update(batch);
+        return digest.digest();
+    }
+
+    /*
+     * Verifies the signature of a frame, leaving the buffer untouched
+     * The frame must be among the frames the signature covers, bound to this
+     * node; frames with an invalid signature are counted in the statistics
+     */
+    protected boolean verify(ByteBuffer frame, int signatureStart, int signatureLength, int signedStart,
+            ProcessConfig sender) {
+        if (signatureLength < 0) {
+            stats.invalidSignature();
+            return false;
+        }
+
+        byte[] signature = new byte[signatureLength];
+        frame.get(signatureStart, signature);
+
+        ByteBuffer signed = frame.duplicate();
+        signed.position(signedStart);
+        int digestsLength = MessageCodec.readLength(signed);
+        int digestsStart = signed.position();
+
+        long start = System.nanoTime();
+        boolean valid = false;
+        if (digestsLength > 0) {
+            byte[] own = digest(config.getId(), frame.duplicate().position(digestsStart + digestsLength));
+            valid = covers(frame, digestsStart, digestsLength, own) && KeyRing.verify(sender,
+                    signed.limit(digestsStart + digestsLength), signature);
+        }
+        stats.getVerifyTime().recordSince(start);
+        if (!valid)
+            stats.invalidSignature();
+        return valid;
+    }
+
+    /*
+     * Whether a digest is in the digests of a frame
+     */
+    private static boolean covers(ByteBuffer frame, int digestsStart, int digestsLength, byte[] digest) {
+        byte[] candidate = new byte[DIGEST_SIZE];
+        for (int offset = digestsStart; offset < digestsStart + digestsLength; offset += DIGEST_SIZE) {
+            frame.get(offset, candidate);
+            if (MessageDigest.isEqual(candidate, digest))
+                return true;
+        }
+        return false;
+    }
+}
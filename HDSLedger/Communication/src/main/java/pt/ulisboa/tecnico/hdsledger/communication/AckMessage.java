@@ -0,0 +1,70 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class AckMessage extends Message {
+
+    private static final long serialVersionUID = 1L;
+
+    // Every message up to (and including) this identifier was received
+    private final int cumulative;
+    // Received messages above the cumulative identifier (sorted, disjoint)
+    private final List<Range> ranges;
+
+    public record Range(int first, int last) {
+
+        public Range {
+            if (first > last)
+                throw new IllegalArgumentException("Invalid range " + first + ".." + last);
+        }
+    }
+
+    public AckMessage(String senderId, int cumulative) {
+        this(senderId, cumulative, new ArrayList<>());
+    }
+
+    /*
+     * @param ranges Ranges above the cumulative identifier, sorted and disjoint
+     * (anything else is refused with an IllegalArgumentException)
+     */
+    public AckMessage(String senderId, int cumulative, List<Range> ranges) {
+        super(senderId, Type.ACK);
+        long previous = cumulative;
+        for (Range range : ranges) {
+            if (range.first() <= previous)
+                throw new IllegalArgumentException("Range " + range + " overlaps the ones before it");
+            previous = range.last();
+        }
+        this.cumulative = cumulative;
+        this.ranges = ranges;
+    }
+
+    public int getCumulative() {
+        return cumulative;
+    }
+
+    public List<Range> getRanges() {
+        return ranges;
+    }
+
+    /*
+     * Adds a received message identifier (identifiers must be added in
+     * increasing order)
+     */
+    public void addReceived(int messageId) {
+        if (messageId <= cumulative)
+            return;
+
+        if (!ranges.isEmpty()) {
+            Range last = ranges.get(ranges.size() - 1);
+            if (messageId <= last.last())
+                return;
+            if (messageId == last.last() + 1) {
+                ranges.set(ranges.size() - 1, new Range(last.first(), messageId));
+                return;
+            }
+        }
+        ranges.add(new Range(messageId, messageId));
+    }
+}
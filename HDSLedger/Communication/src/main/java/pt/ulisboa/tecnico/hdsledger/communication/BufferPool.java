@@ -0,0 +1,53 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Pool of direct buffers of a fixed size
+ * Direct buffers are expensive to allocate and are only reclaimed by the GC
+ * lazily, so they are recycled instead of being allocated per datagram
+ */
+class BufferPool {
+
+    // Size of every buffer in the pool
+    private final int bufferSize;
+    // Maximum number of idle buffers kept by the pool
+    private final int capacity;
+    // Idle buffers
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    // Number of idle buffers (ConcurrentLinkedQueue.size is not constant time)
+    private final AtomicInteger idle = new AtomicInteger(0);
+
+    BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+    }
+
+    /*
+     * Takes a cleared buffer from the pool, allocating one if the pool is empty
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+
+        idle.decrementAndGet();
+        return buffer;
+    }
+
+    /*
+     * Gives a buffer back to the pool (it must not be used afterwards)
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || idle.incrementAndGet() > capacity) {
+            idle.decrementAndGet();
+            return;
+        }
+
+        buffer.clear();
+        buffers.add(buffer);
+    }
+}
@@ -1,35 +1,76 @@
 package pt.ulisboa.tecnico.hdsledger.communication;
 
-import java.util.HashMap;
-import java.util.Map;
+import pt.ulisboa.tecnico.hdsledger.utilities.MerkleTree;
 
-import com.google.gson.Gson;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
 
 public class CommitMessage {
 
+    // Order of the account updates of an instance (by account), the order of
+    // the leaves of their Merkle tree
+    public static final Comparator<UpdateAccount> CANONICAL_ORDER = Comparator
+            .comparing(UpdateAccount::getHashPubKey, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(UpdateAccount::getOwnerId, Comparator.nullsFirst(Comparator.naturalOrder()));
+
     // True if the prepared block is valid
     private boolean validBlock;
-    // Map Signature of update -> UpdatedAccount
-    private Map<String, UpdateAccount> accountUpdates = new HashMap<>();
+    // Account updates of the instance (in canonical order)
+    private List<UpdateAccount> accountUpdates = new ArrayList<>();
+    // Signature of the sender over the Merkle root of the account updates (null
+    // if there are none)
+    private String rootSignature;
 
     public CommitMessage(boolean validBlock) {
         this.validBlock = validBlock;
     }
 
-    public CommitMessage(boolean validBlock, Map<String, UpdateAccount> accountUpdates) {
+    public CommitMessage(boolean validBlock, List<UpdateAccount> accountUpdates, String rootSignature) {
         this.validBlock = validBlock;
         this.accountUpdates = accountUpdates;
+        this.rootSignature = rootSignature;
     }
 
-    public Map<String, UpdateAccount> getUpdateAccountSignatures() {
+    public List<UpdateAccount> getAccountUpdates() {
         return accountUpdates;
     }
 
+    public String getRootSignature() {
+        return rootSignature;
+    }
+
     public boolean isValidBlock() {
         return validBlock;
     }
 
-    public String toJson() {
-        return new Gson().toJson(this);
+    public byte[] toBytes() {
+        return MessageCodec.encodeCommit(this);
+    }
+
+    /*
+     * Merkle tree of account updates, one leaf per update in the given order
+     */
+    public static MerkleTree treeOf(List<UpdateAccount> accountUpdates) {
+        return new MerkleTree(accountUpdates.stream().map(UpdateAccount::toMerkleLeaf).toList());
+    }
+
+    /*
+     * Text the Merkle root of the account updates of an instance is signed as
+     */
+    public static String signedRoot(byte[] root) {
+        return Base64.getEncoder().encodeToString(root);
+    }
+
+    /*
+     * Whether account updates are in canonical order (each account at most once)
+     */
+    public static boolean isCanonical(List<UpdateAccount> accountUpdates) {
+        for (int i = 1; i < accountUpdates.size(); i++) {
+            if (CANONICAL_ORDER.compare(accountUpdates.get(i - 1), accountUpdates.get(i)) >= 0)
+                return false;
+        }
+        return true;
     }
 }
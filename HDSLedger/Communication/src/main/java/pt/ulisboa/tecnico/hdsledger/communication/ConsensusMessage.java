@@ -1,7 +1,5 @@
 package pt.ulisboa.tecnico.hdsledger.communication;
 
-import com.google.gson.Gson;
-
 public class ConsensusMessage extends Message {
 
     // Consensus instance
@@ -12,30 +10,30 @@ public class ConsensusMessage extends Message {
     private String replyTo;
     // Id of the previous message
     private int replyToMessageId;
-    // Message (PREPREPARE, PREPARE, COMMIT)
-    private String message;
+    // Message (PREPREPARE, PREPARE, COMMIT) encoded with MessageCodec
+    private byte[] message;
 
     public ConsensusMessage(String senderId, Type type) {
         super(senderId, type);
     }
 
     public PrePrepareMessage deserializePrePrepareMessage() {
-        return new Gson().fromJson(this.message, PrePrepareMessage.class);
+        return MessageCodec.decodePrePrepare(this.message);
     }
 
     public PrepareMessage deserializePrepareMessage() {
-        return new Gson().fromJson(this.message, PrepareMessage.class);
+        return MessageCodec.decodePrepare(this.message);
     }
 
     public CommitMessage deserializeCommitMessage() {
-        return new Gson().fromJson(this.message, CommitMessage.class);
+        return MessageCodec.decodeCommit(this.message);
     }
 
-    public String getMessage() {
+    public byte[] getMessage() {
         return message;
     }
 
-    public void setMessage(String message) {
+    public void setMessage(byte[] message) {
         this.message = message;
     }
 
@@ -0,0 +1,333 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import pt.ulisboa.tecnico.hdsledger.utilities.CustomLogger;
+import pt.ulisboa.tecnico.hdsledger.utilities.LedgerException;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/*
+ * Bounded outbound queue of a link drained by a small, fixed set of writer
+ * threads onto a non-blocking DatagramChannel
+ * Each writer takes every message queued within the coalescing window, packs
+ * the ones going to the same destination into as few frames as the frame size
+ * budget allows, has the frames of all destinations framed together (so they
+ * share a signature) and reuses its own direct buffer for every datagram it
+ * sends
+ * Datagrams framed before (retransmissions) are written as they are, once per
+ * cycle however many of their messages are resent
+ */
+class DatagramWriter {
+
+    private static final CustomLogger LOGGER = new CustomLogger(DatagramWriter.class.getName());
+    // Largest payload of an UDP datagram
+    static final int MAX_DATAGRAM_SIZE = 65507;
+    // Channel shared with the receiving side of the link
+    private final DatagramChannel channel;
+    // Messages waiting to be written
+    private final BlockingQueue<Outbound> queue;
+    // Turns the batches of encoded messages of a cycle into the bytes of their datagrams
+    private final Framer framer;
+    // Time to wait for more messages before writing a batch (in nanoseconds)
+    private final long coalescingWindow;
+    // Size budget of the messages packed into one frame
+    private final int maxBatchSize;
+    // Maximum number of messages taken from the queue at once
+    private static final int MAX_DRAIN = 256;
+    // Name used in logs and thread names
+    private final String name;
+    // Statistics of the link, updated with every message and datagram written
+    private final LinkStats stats;
+
+    DatagramWriter(String name, DatagramChannel channel, int capacity, int threads, long coalescingWindow,
+            int maxBatchSize, Framer framer, LinkStats stats) {
+        this.name = name;
+        this.stats = stats;
+        this.channel = channel;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.coalescingWindow = TimeUnit.MILLISECONDS.toNanos(coalescingWindow);
+        this.maxBatchSize = maxBatchSize;
+        this.framer = framer;
+
+        for (int i = 0; i < threads; i++) {
+            Thread writer = new Thread(this::run, MessageFormat.format("{0}-writer-{1}", name, i));
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    /*
+     * Queues a message to be sent without guarantee of delivery
+     * If the queue is full the message is dropped, as a congested network would
+     *
+     * @param nodeId The destination node (frames are bound to it)
+     *
+     * @return True if the message was queued
+     */
+    boolean enqueue(String nodeId, SocketAddress address, Message message) {
+        return offer(new Outbound(nodeId, address, message, null, null, null));
+    }
+
+    /*
+     * Queues a message that was already encoded
+     *
+     * @param framed Takes the datagram the message was written in, so that it
+     * can be written again as it is
+     */
+    boolean enqueue(String nodeId, SocketAddress address, Message message, byte[] body, Consumer<byte[]> framed) {
+        return offer(new Outbound(nodeId, address, message, body, framed, null));
+    }
+
+    /*
+     * Queues a datagram that was already framed (and signed) to be written again
+     *
+     * @param message The message being resent (other messages of the datagram
+     * are resent along)
+     */
+    boolean resend(String nodeId, SocketAddress address, Message message, byte[] body, byte[] datagram) {
+        return offer(new Outbound(nodeId, address, message, body, null, datagram));
+    }
+
+    private boolean offer(Outbound outbound) {
+        if (queue.offer(outbound))
+            return true;
+
+        LOGGER.log(Level.INFO, MessageFormat.format("{0} - Outbound queue full, dropping {1} message to {2}",
+                name, outbound.message().getType(), outbound.address()));
+        return false;
+    }
+
+    /*
+     * Number of messages waiting to be written
+     */
+    int queued() {
+        return queue.size();
+    }
+
+    private void run() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        List<Outbound> drained = new ArrayList<>(MAX_DRAIN);
+        // Batch being filled for each destination
+        Map<SocketAddress, Batch> batches = new LinkedHashMap<>();
+        // Batches ready to be framed
+        List<Batch> sealed = new ArrayList<>();
+        // Datagrams framed before, to be written as they are
+        List<Outbound> framed = new ArrayList<>();
+        Set<byte[]> resent = Collections.newSetFromMap(new IdentityHashMap<>());
+        Selector selector;
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        for (;;) {
+            try {
+                collect(drained);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            for (Outbound outbound : drained) {
+                if (outbound.datagram() != null) {
+                    stats.peer(outbound.nodeId()).messageSent(outbound.message().getType(),
+                            outbound.body().length);
+                    if (resent.add(outbound.datagram()))
+                        framed.add(outbound);
+                    continue;
+                }
+
+                byte[] body = outbound.body();
+                try {
+                    if (body == null)
+                        body = MessageCodec.encode(outbound.message());
+                } catch (LedgerException e) {
+                    LOGGER.log(Level.INFO, MessageFormat.format("{0} - Failed to encode {1} message to {2}: {3}",
+                            name, outbound.message().getType(), outbound.address(), e.getMessage()));
+                    continue;
+                }
+
+                stats.peer(outbound.nodeId()).messageSent(outbound.message().getType(), body.length);
+
+                Batch batch = batches.get(outbound.address());
+                // Frame is full, seal it and start a new one for the same destination
+                if (batch != null && batch.size + body.length > maxBatchSize) {
+                    sealed.add(batch);
+                    batch = null;
+                }
+                if (batch == null) {
+                    batch = new Batch(outbound.address(), outbound.nodeId());
+                    batches.put(outbound.address(), batch);
+                }
+                batch.add(body, outbound.framed());
+            }
+
+            for (Outbound outbound : framed)
+                write(outbound.datagram(), outbound.address(), outbound.nodeId(), buffer, selector);
+            sealed.addAll(batches.values());
+            flush(sealed, buffer, selector);
+            batches.clear();
+            sealed.clear();
+            framed.clear();
+            resent.clear();
+            drained.clear();
+        }
+    }
+
+    /*
+     * Blocks until a message is queued, then collects the messages queued
+     * until the end of the coalescing window
+     */
+    private void collect(List<Outbound> drained) throws InterruptedException {
+        drained.add(queue.take());
+
+        long deadline = System.nanoTime() + coalescingWindow;
+        while (drained.size() < MAX_DRAIN) {
+            queue.drainTo(drained, MAX_DRAIN - drained.size());
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || drained.size() >= MAX_DRAIN)
+                return;
+
+            Outbound next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null)
+                return;
+            drained.add(next);
+        }
+    }
+
+    /*
+     * Frames the batches of a cycle (signing them together) and writes each of
+     * them as a datagram, handing it to the messages that want to keep it
+     */
+    private void flush(List<Batch> sealed, ByteBuffer buffer, Selector selector) {
+        if (sealed.isEmpty())
+            return;
+
+        List<byte[]> datagrams;
+        try {
+            datagrams = framer.frame(sealed.stream().map(batch -> batch.nodeId).toList(),
+                    sealed.stream().map(batch -> batch.bodies).toList());
+        } catch (LedgerException e) {
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - Failed to frame {1} batches: {2}",
+                    name, sealed.size(), e.getMessage()));
+            return;
+        }
+
+        for (int i = 0; i < sealed.size(); i++) {
+            Batch batch = sealed.get(i);
+            byte[] datagram = datagrams.get(i);
+            if (!write(datagram, batch.address, batch.nodeId, buffer, selector))
+                continue;
+            for (Consumer<byte[]> listener : batch.listeners)
+                listener.accept(datagram);
+        }
+    }
+
+    /*
+     * Writes a datagram through the direct buffer of the writer
+     *
+     * @return False if the datagram could not be written
+     */
+    private boolean write(byte[] datagram, SocketAddress address, String nodeId, ByteBuffer buffer,
+            Selector selector) {
+        try {
+            buffer.clear();
+            buffer.put(datagram);
+            buffer.flip();
+
+            write(buffer, address, selector);
+            stats.peer(nodeId).datagramSent(datagram.length);
+            return true;
+        } catch (BufferOverflowException e) {
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - Failed to write a datagram of {1} bytes to {2}",
+                    name, datagram.length, address));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /*
+     * Writes a datagram, waiting for the socket to become writable when its send
+     * buffer is full
+     */
+    private void write(ByteBuffer buffer, SocketAddress address, Selector selector) throws IOException {
+        while (channel.send(buffer, address) == 0) {
+            SelectionKey key = channel.keyFor(selector);
+            if (key == null)
+                channel.register(selector, SelectionKey.OP_WRITE);
+            selector.select();
+            selector.selectedKeys().clear();
+        }
+    }
+
+    /*
+     * Message to write: to be encoded (no body), to be framed (no datagram) or
+     * framed already
+     */
+    private record Outbound(String nodeId, SocketAddress address, Message message, byte[] body,
+            Consumer<byte[]> framed, byte[] datagram) {
+    }
+
+    /*
+     * Turns the batches of a cycle into datagrams
+     */
+    interface Framer {
+
+        /*
+         * @param nodeIds The destination of each batch
+         *
+         * @param batches The encoded messages of each batch
+         *
+         * @return The datagram of each batch, in the same order
+         */
+        List<byte[]> frame(List<String> nodeIds, List<List<byte[]>> batches);
+    }
+
+    /*
+     * Encoded messages waiting to be packed into a frame to the same destination
+     */
+    private static class Batch {
+
+        private final SocketAddress address;
+        // Destination node
+        private final String nodeId;
+        private final List<byte[]> bodies = new ArrayList<>();
+        // Take the datagram of the batch once it is written
+        private final List<Consumer<byte[]>> listeners = new ArrayList<>();
+        // Sum of the sizes of the encoded messages
+        private int size = 0;
+
+        private Batch(SocketAddress address, String nodeId) {
+            this.address = address;
+            this.nodeId = nodeId;
+        }
+
+        private void add(byte[] body, Consumer<byte[]> listener) {
+            bodies.add(body);
+            size += body.length;
+            if (listener != null)
+                listeners.add(listener);
+        }
+    }
+}
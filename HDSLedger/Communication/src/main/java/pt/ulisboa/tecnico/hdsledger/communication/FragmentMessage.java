@@ -0,0 +1,46 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+public class FragmentMessage extends Message {
+
+    private static final long serialVersionUID = 1L;
+
+    // Identifier of the fragmented message (also the identifier of its first fragment)
+    private final int group;
+    // Position of the fragment in the message
+    private final int index;
+    // Number of fragments of the message
+    private final int count;
+    // Size of the whole encoded message
+    private final int length;
+    // Slice of the encoded message
+    private final byte[] payload;
+
+    public FragmentMessage(String senderId, int group, int index, int count, int length, byte[] payload) {
+        super(senderId, Type.FRAGMENT);
+        this.group = group;
+        this.index = index;
+        this.count = count;
+        this.length = length;
+        this.payload = payload;
+    }
+
+    public int getGroup() {
+        return group;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+}
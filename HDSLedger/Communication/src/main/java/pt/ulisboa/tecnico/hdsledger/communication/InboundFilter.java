@@ -0,0 +1,27 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import pt.ulisboa.tecnico.hdsledger.communication.Message.Type;
+
+/*
+ * Cheap check on the header of an inbound message, run by the link before the
+ * frame carrying it is authenticated
+ * Rejected messages are neither delivered nor acknowledged, so they must be
+ * messages the sender can retransmit later (e.g. too far ahead of the
+ * receiver); the header is not authenticated yet, so a filter must not change
+ * any state based on it
+ */
+@FunctionalInterface
+public interface InboundFilter {
+
+    /*
+     * @param senderId The node that claims to have sent the message
+     *
+     * @param type The type of the message
+     *
+     * @param consensusInstance The consensus instance of consensus messages, -1
+     * for other types
+     *
+     * @return True if the message may be authenticated and delivered
+     */
+    boolean accepts(String senderId, Type type, int consensusInstance);
+}
@@ -6,14 +6,19 @@ import java.util.Map;
 
 import com.google.gson.Gson;
 
+import pt.ulisboa.tecnico.hdsledger.utilities.MerkleTree;
+
 public class LedgerResponse extends Message {
 
     // True if the prepared block is valid
     private boolean successful;
     // The result of the transactions
     private UpdateAccount updateAccount;
-    // Signatures of the account update
+    // Signatures of the Merkle root of the account updates of the instance
+    // {node id -> signature}
     private Map<String, String> signatures;
+    // Proof that the account update is under that root
+    private MerkleTree.Proof proof;
     // Replying to nonces (only for new READ operations)
     private Integer nonce = null;
     // Set of message ids this is replying to (for ACKs)
@@ -25,15 +30,16 @@ public class LedgerResponse extends Message {
     }
 
     public LedgerResponse(String senderId, boolean successful, UpdateAccount updateAccount,
-            Map<String, String> signatures) {
+            Map<String, String> signatures, MerkleTree.Proof proof) {
         this(senderId, successful);
         this.updateAccount = updateAccount;
         this.signatures = signatures;
+        this.proof = proof;
     }
 
     public LedgerResponse(String senderId, boolean successful, UpdateAccount updateAccount,
-            Map<String, String> signatures, int nonce) {
-        this(senderId, successful, updateAccount, signatures);
+            Map<String, String> signatures, MerkleTree.Proof proof, int nonce) {
+        this(senderId, successful, updateAccount, signatures, proof);
         this.nonce = nonce;
     }
 
@@ -49,6 +55,10 @@ public class LedgerResponse extends Message {
         return signatures;
     }
 
+    public MerkleTree.Proof getProof() {
+        return proof;
+    }
+
     public List<Integer> getRepliesTo() {
         return repliesTo;
     }
@@ -0,0 +1,128 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig.Transport;
+
+import java.io.IOException;
+
+/*
+ * Authenticated link to a fixed set of nodes
+ * Every message sent to a correct node is eventually delivered to it exactly
+ * once, and only messages signed by a known node are delivered
+ */
+public interface Link {
+
+    /*
+     * Opens a link with the given transport
+     *
+     * @param transport The transport of the link (every node of the link must
+     * use the same one; simulated links share SimulatedNetwork.shared(), so
+     * they only reach the links of the same JVM)
+     *
+     * @param self Configuration of the process that owns the link
+     *
+     * @param port Port the link listens on
+     *
+     * @param nodes Nodes reachable through the link
+     *
+     * @param messageClass Class of the messages the link delivers
+     *
+     * @param activateLogs False to silence the logs of the link
+     *
+     * @param baseSleepTime Initial retransmission timeout (ignored by transports
+     * that do not retransmit)
+     */
+    static Link open(Transport transport, ProcessConfig self, int port, ProcessConfig[] nodes,
+            Class<? extends Message> messageClass, boolean activateLogs, int baseSleepTime) {
+        return switch (transport) {
+            case TCP -> new TcpLink(self, port, nodes, messageClass, activateLogs);
+            case UDP -> new PerfectLink(self, port, nodes, messageClass, activateLogs, baseSleepTime);
+            case SIMULATED -> new SimulatedLink(SimulatedNetwork.shared(), self, port, nodes, messageClass,
+                    activateLogs);
+        };
+    }
+
+    static Link open(Transport transport, ProcessConfig self, int port, ProcessConfig[] nodes,
+            Class<? extends Message> messageClass) {
+        return open(transport, self, port, nodes, messageClass, true, 200);
+    }
+
+    /*
+     * Sends a message to a specific node
+     *
+     * @param nodeId The node identifier
+     *
+     * @param data The message to be sent
+     *
+     * @return False if the message was refused because the node is not keeping up
+     */
+    boolean send(String nodeId, Message data);
+
+    /*
+     * Receives a message from any node in the network (blocking)
+     */
+    Message receive() throws IOException, ClassNotFoundException;
+
+    /*
+     * True if messages to a node are waiting for it to catch up (the caller may
+     * want to slow down)
+     *
+     * @param nodeId The node identifier
+     */
+    boolean isCongested(String nodeId);
+
+    /*
+     * Adds a check run on the header of every inbound message before it is
+     * authenticated (filters run in the order they were added, after the ones of
+     * the link itself)
+     *
+     * @param filter The check
+     */
+    void addFilter(InboundFilter filter);
+
+    /*
+     * Traffic statistics of the link, overall and per peer (live, updated as
+     * the link is used)
+     */
+    LinkStats getStats();
+
+    /*
+     * Broadcasts a message to all nodes in the network
+     *
+     * @param data The message to be broadcasted
+     */
+    void broadcast(Message data);
+
+    /*
+     * BYZANTINE_TESTS
+     * Alternating broadcast of two messages to all nodes in the network
+     *
+     * @param Message data1 The first message to be broadcasted
+     *
+     * @param Message data2 The second message to be broadcasted
+     */
+    void alternatingBroadcast(Message data1, Message data2);
+
+    /*
+     * Multicast to f+1 nodes in the network
+     *
+     * @param data The message to be broadcasted
+     */
+    void smallQuorumMulticast(Message data);
+
+    /*
+     * Multicast to 2f+1 nodes in the network
+     *
+     * @param data The message to be broadcasted
+     */
+    void quorumMulticast(Message data);
+
+    /*
+     * Multicast a message to N nodes in the network
+     *
+     * @param data The message to be broadcasted
+     *
+     * @param n The number of nodes to send the message to
+     */
+    void multicast(Message data, int n);
+}
@@ -0,0 +1,365 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import pt.ulisboa.tecnico.hdsledger.communication.Message.Type;
+import pt.ulisboa.tecnico.hdsledger.utilities.CustomLogger;
+import pt.ulisboa.tecnico.hdsledger.utilities.HashedWheelTimer;
+
+import java.text.MessageFormat;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+
+/*
+ * Counters, histograms and gauges of a link, kept for the link as a whole and
+ * for each peer
+ * Recording only touches striped adders, so the hot paths of the link do not
+ * contend on it; readers get approximate, eventually consistent values
+ */
+public class LinkStats {
+
+    private static final CustomLogger LOGGER = new CustomLogger(LinkStats.class.getName());
+    // Timer dumping the statistics of every link of the JVM (ticks once a second)
+    private static volatile HashedWheelTimer dumpTimer;
+    // Name of the link in dumps
+    private final String name;
+    // Statistics of each peer
+    private final Map<String, PeerStats> peers = new ConcurrentHashMap<>();
+    // Time taken to sign a frame (us)
+    private final Histogram signTime = new Histogram();
+    // Time taken to verify the signature of a frame (us)
+    private final Histogram verifyTime = new Histogram();
+    // Time taken to compute or check the session tag of a frame (us)
+    private final Histogram macTime = new Histogram();
+    // Frames dropped for their signature
+    private final LongAdder invalidSignatures = new LongAdder();
+    // Datagrams or frames dropped before their sender was known (malformed or from strangers)
+    private final LongAdder discarded = new LongAdder();
+    // Values sampled when read (e.g. queue depths)
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    LinkStats(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /*
+     * Statistics of a peer, created on first use
+     */
+    public PeerStats peer(String nodeId) {
+        return peers.computeIfAbsent(nodeId, id -> new PeerStats());
+    }
+
+    public Map<String, PeerStats> getPeers() {
+        return Collections.unmodifiableMap(peers);
+    }
+
+    public Histogram getSignTime() {
+        return signTime;
+    }
+
+    public Histogram getVerifyTime() {
+        return verifyTime;
+    }
+
+    public Histogram getMacTime() {
+        return macTime;
+    }
+
+    public long getInvalidSignatures() {
+        return invalidSignatures.sum();
+    }
+
+    public long getDiscarded() {
+        return discarded.sum();
+    }
+
+    /*
+     * Current values of the gauges of the link
+     */
+    public Map<String, Long> getGauges() {
+        return sample(gauges);
+    }
+
+    void gauge(String gaugeName, LongSupplier value) {
+        gauges.put(gaugeName, value);
+    }
+
+    void invalidSignature() {
+        invalidSignatures.increment();
+    }
+
+    void discarded() {
+        discarded.increment();
+    }
+
+    /*
+     * Logs the statistics every interval from now on
+     *
+     * @param interval Time between dumps (ms)
+     */
+    void dumpEvery(long interval) {
+        if (dumpTimer == null) {
+            synchronized (LinkStats.class) {
+                if (dumpTimer == null)
+                    dumpTimer = new HashedWheelTimer("link-stats", 1, TimeUnit.SECONDS, 64);
+            }
+        }
+        dumpTimer.schedule(() -> {
+            LOGGER.log(Level.INFO, toString());
+            dumpEvery(interval);
+        }, interval);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder(MessageFormat.format("{0} - Link statistics: sign {1}, verify {2}, "
+                + "mac {3}, invalid signatures {4}, discarded {5}, gauges {6}", name, signTime, verifyTime, macTime,
+                String.valueOf(getInvalidSignatures()), String.valueOf(getDiscarded()), getGauges()));
+        new TreeMap<>(peers).forEach((nodeId, peer) -> out.append('\n').append(MessageFormat.format(
+                "{0} - Peer {1}: {2}", name, nodeId, peer)));
+        return out.toString();
+    }
+
+    private static Map<String, Long> sample(Map<String, LongSupplier> gauges) {
+        Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((gaugeName, value) -> values.put(gaugeName, value.getAsLong()));
+        return values;
+    }
+
+    /*
+     * Traffic exchanged with a peer
+     * Datagrams are what goes through the socket, or the frames of a TCP
+     * connection (either may carry several messages); messages are counted on
+     * every transmission, retransmissions included, and by their encoded size
+     */
+    public static class PeerStats {
+
+        private final LongAdder datagramsOut = new LongAdder();
+        private final LongAdder datagramBytesOut = new LongAdder();
+        private final LongAdder datagramsIn = new LongAdder();
+        private final LongAdder datagramBytesIn = new LongAdder();
+        // Messages and bytes of each type, indexed by ordinal
+        private final LongAdder[] messagesOut = adders();
+        private final LongAdder[] bytesOut = adders();
+        private final LongAdder[] messagesIn = adders();
+        private final LongAdder[] bytesIn = adders();
+        // Transmissions after the first one of a message
+        private final LongAdder retransmissions = new LongAdder();
+        // Messages received again after being delivered
+        private final LongAdder duplicates = new LongAdder();
+        // Messages rejected by the inbound filters
+        private final LongAdder filtered = new LongAdder();
+        // Time between sending a message and receiving its ACK (us)
+        private final Histogram rtt = new Histogram();
+        private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+        private PeerStats() {
+        }
+
+        private static LongAdder[] adders() {
+            LongAdder[] adders = new LongAdder[Type.values().length];
+            for (int i = 0; i < adders.length; i++)
+                adders[i] = new LongAdder();
+            return adders;
+        }
+
+        void datagramSent(int bytes) {
+            datagramsOut.increment();
+            datagramBytesOut.add(bytes);
+        }
+
+        void datagramReceived(int bytes) {
+            datagramsIn.increment();
+            datagramBytesIn.add(bytes);
+        }
+
+        void messageSent(Type type, int bytes) {
+            messagesOut[type.ordinal()].increment();
+            bytesOut[type.ordinal()].add(bytes);
+        }
+
+        void messageReceived(Type type, int bytes) {
+            messagesIn[type.ordinal()].increment();
+            bytesIn[type.ordinal()].add(bytes);
+        }
+
+        void retransmission() {
+            retransmissions.increment();
+        }
+
+        void duplicate() {
+            duplicates.increment();
+        }
+
+        void filtered() {
+            filtered.increment();
+        }
+
+        void gauge(String gaugeName, LongSupplier value) {
+            gauges.put(gaugeName, value);
+        }
+
+        public long getDatagramsOut() {
+            return datagramsOut.sum();
+        }
+
+        public long getDatagramBytesOut() {
+            return datagramBytesOut.sum();
+        }
+
+        public long getDatagramsIn() {
+            return datagramsIn.sum();
+        }
+
+        public long getDatagramBytesIn() {
+            return datagramBytesIn.sum();
+        }
+
+        public long getMessagesOut(Type type) {
+            return messagesOut[type.ordinal()].sum();
+        }
+
+        public long getBytesOut(Type type) {
+            return bytesOut[type.ordinal()].sum();
+        }
+
+        public long getMessagesIn(Type type) {
+            return messagesIn[type.ordinal()].sum();
+        }
+
+        public long getBytesIn(Type type) {
+            return bytesIn[type.ordinal()].sum();
+        }
+
+        public long getRetransmissions() {
+            return retransmissions.sum();
+        }
+
+        public long getDuplicates() {
+            return duplicates.sum();
+        }
+
+        public long getFiltered() {
+            return filtered.sum();
+        }
+
+        public Histogram getRtt() {
+            return rtt;
+        }
+
+        /*
+         * Current values of the gauges of the peer (e.g. messages in flight)
+         */
+        public Map<String, Long> getGauges() {
+            return sample(gauges);
+        }
+
+        @Override
+        public String toString() {
+            return MessageFormat.format("datagrams out {0} ({1} B), in {2} ({3} B); messages out {4}, in {5}; "
+                    + "retransmissions {6}, duplicates {7}, filtered {8}; rtt {9}; gauges {10}",
+                    String.valueOf(getDatagramsOut()), String.valueOf(getDatagramBytesOut()),
+                    String.valueOf(getDatagramsIn()), String.valueOf(getDatagramBytesIn()),
+                    byType(messagesOut, bytesOut), byType(messagesIn, bytesIn),
+                    String.valueOf(getRetransmissions()), String.valueOf(getDuplicates()),
+                    String.valueOf(getFiltered()), rtt, getGauges());
+        }
+
+        private static String byType(LongAdder[] messages, LongAdder[] bytes) {
+            StringBuilder out = new StringBuilder("{");
+            for (Type type : Type.values()) {
+                long count = messages[type.ordinal()].sum();
+                if (count == 0)
+                    continue;
+                if (out.length() > 1)
+                    out.append(", ");
+                out.append(type).append('=').append(count).append(" (").append(bytes[type.ordinal()].sum())
+                        .append(" B)");
+            }
+            return out.append('}').toString();
+        }
+    }
+
+    /*
+     * Distribution of non-negative values in power-of-two buckets
+     * Bucket i counts the values in [2^(i-1), 2^i), bucket 0 counts zeros, so
+     * percentiles are upper bounds within a factor of two
+     */
+    public static class Histogram {
+
+        private static final int BUCKETS = 64;
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        void record(long value) {
+            value = Math.max(value, 0);
+            buckets[BUCKETS - Long.numberOfLeadingZeros(value)].increment();
+            count.increment();
+            sum.add(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        /*
+         * Records the time elapsed since an instant given by System.nanoTime (us)
+         */
+        void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getMean() {
+            long samples = getCount();
+            return samples == 0 ? 0 : sum.sum() / samples;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /*
+         * Upper bound of the given fraction of the values
+         *
+         * @param quantile Fraction of the values, between 0 and 1
+         */
+        public long getPercentile(double quantile) {
+            long samples = getCount();
+            if (samples == 0)
+                return 0;
+
+            long rank = (long) Math.ceil(quantile * samples);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i].sum();
+                if (seen >= Math.max(rank, 1))
+                    return i == 0 ? 0 : Math.min((1L << i) - 1, getMax());
+            }
+            return getMax();
+        }
+
+        @Override
+        public String toString() {
+            return MessageFormat.format("n={0} mean={1} p50={2} p99={3} max={4}", String.valueOf(getCount()),
+                    String.valueOf(getMean()), String.valueOf(getPercentile(0.5)),
+                    String.valueOf(getPercentile(0.99)), String.valueOf(getMax()));
+        }
+    }
+}
@@ -17,7 +17,11 @@ public class Message implements Serializable {
         // For Node Messages
         PRE_PREPARE, PREPARE, COMMIT, ACK, IGNORE,
         // For Ledger Responses
-        REPLY;
+        REPLY,
+        // Slice of a message larger than one datagram
+        FRAGMENT,
+        // Key agreement of the session between two links
+        SESSION;
     }
 
     public Message(String senderId, Type type) {
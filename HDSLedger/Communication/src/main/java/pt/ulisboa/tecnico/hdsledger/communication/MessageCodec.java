@@ -0,0 +1,625 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import pt.ulisboa.tecnico.hdsledger.utilities.ErrorMessage;
+import pt.ulisboa.tecnico.hdsledger.utilities.LedgerException;
+import pt.ulisboa.tecnico.hdsledger.utilities.MerkleTree;
+
+import java.math.BigDecimal;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Compact binary encoding of the Message hierarchy and consensus payloads
+ *
+ * Integers are zig-zag varints, strings and byte arrays are prefixed by their
+ * length (plus one, so that zero encodes null) and collections by their size.
+ * Texts covered by other signatures (client requests, leader blocks and
+ * account updates) are carried verbatim so they can still be verified.
+ *
+ * Message layout:
+ *   type | senderId | messageId | fields of the concrete class (by type)
+ *
+ * The payload of consensus messages (blocks with the keys and signatures of
+ * every request) is deflated when larger than COMPRESSION_THRESHOLD; it is
+ * the last field, so the header stays readable without inflating anything:
+ *   ... | encoding | payload               (RAW)
+ *   ... | encoding | length | deflated     (DEFLATE, length once inflated)
+ */
+public final class MessageCodec {
+
+    // Version of the wire format, bumped on every incompatible change
+    public static final byte WIRE_VERSION = 9;
+
+    // Encodings of the payload of consensus messages
+    private static final byte RAW = 0;
+    private static final byte DEFLATE = 1;
+    // Payloads from this size on are deflated (bytes)
+    public static final int COMPRESSION_THRESHOLD = 1024;
+    // Largest payload accepted once inflated (bytes, the reassembly budget of a link)
+    private static final int MAX_INFLATED_SIZE = 16 * 1024 * 1024;
+    // Codecs reused by each thread (their native state is costly to create)
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal
+            .withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    // Wire code of each message type (index in the array)
+    private static final Message.Type[] TYPES = {
+            Message.Type.CREATE, Message.Type.TRANSFER, Message.Type.BALANCE,
+            Message.Type.PRE_PREPARE, Message.Type.PREPARE, Message.Type.COMMIT,
+            Message.Type.ACK, Message.Type.IGNORE, Message.Type.REPLY, Message.Type.FRAGMENT,
+            Message.Type.SESSION
+    };
+
+    private MessageCodec() {
+    }
+
+    /*
+     * Encodes a message
+     *
+     * @param message The message to be encoded
+     */
+    public static byte[] encode(Message message) {
+        return encode(message, true);
+    }
+
+    /*
+     * Encodes a message, optionally leaving large payloads uncompressed (for
+     * messages that never leave the process, or to measure what compression saves)
+     */
+    public static byte[] encode(Message message, boolean compress) {
+        Output out = new Output(256);
+        writeMessage(out, message, compress);
+        return out.toByteArray();
+    }
+
+    /*
+     * Decodes a message into its concrete class
+     *
+     * @param data The encoded message
+     */
+    public static Message decode(byte[] data) {
+        return decode(ByteBuffer.wrap(data));
+    }
+
+    /*
+     * Decodes a message into its concrete class, consuming the buffer
+     *
+     * @param in Buffer positioned at the beginning of the message
+     */
+    public static Message decode(ByteBuffer in) {
+        try {
+            return readMessage(in);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new LedgerException(ErrorMessage.CannotParseMessage);
+        }
+    }
+
+    /*
+     * Deep copy of a message (each destination of a multicast gets its own)
+     */
+    public static Message copy(Message message) {
+        return decode(encode(message, false));
+    }
+
+    public static byte[] encodePrePrepare(PrePrepareMessage message) {
+        Output out = new Output(256);
+        out.writeString(message.getBlock());
+        out.writeString(message.getLeaderSignature());
+        return out.toByteArray();
+    }
+
+    public static PrePrepareMessage decodePrePrepare(byte[] data) {
+        return parse(data, in -> new PrePrepareMessage(readString(in), readString(in)));
+    }
+
+    public static byte[] encodePrepare(PrepareMessage message) {
+        Output out = new Output(256);
+        out.writeString(message.getBlock());
+        out.writeString(message.getLeaderSignature());
+        return out.toByteArray();
+    }
+
+    public static PrepareMessage decodePrepare(byte[] data) {
+        return parse(data, in -> new PrepareMessage(readString(in), readString(in)));
+    }
+
+    public static byte[] encodeCommit(CommitMessage message) {
+        Output out = new Output(256);
+        out.writeBoolean(message.isValidBlock());
+        List<UpdateAccount> updates = message.getAccountUpdates();
+        out.writeVarInt(updates.size());
+        updates.forEach(update -> writeUpdateAccount(out, update));
+        out.writeString(message.getRootSignature());
+        return out.toByteArray();
+    }
+
+    public static CommitMessage decodeCommit(byte[] data) {
+        return parse(data, in -> {
+            boolean validBlock = readBoolean(in);
+            int size = readSize(in);
+            List<UpdateAccount> updates = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+                updates.add(readUpdateAccount(in));
+            return new CommitMessage(validBlock, updates, readString(in));
+        });
+    }
+
+    private static void writeMessage(Output out, Message message, boolean compress) {
+        out.writeByte(typeCode(message.getType()));
+        out.writeString(message.getSenderId());
+        out.writeVarInt(message.getMessageId());
+
+        switch (message.getType()) {
+            case CREATE, TRANSFER, BALANCE -> {
+                LedgerRequest request = (LedgerRequest) message;
+                out.writeString(request.getMessage());
+                out.writeString(request.getClientSignature());
+            }
+            case PRE_PREPARE, PREPARE, COMMIT -> {
+                ConsensusMessage consensusMessage = (ConsensusMessage) message;
+                out.writeVarInt(consensusMessage.getConsensusInstance());
+                out.writeVarInt(consensusMessage.getRound());
+                out.writeString(consensusMessage.getReplyTo());
+                out.writeVarInt(consensusMessage.getReplyToMessageId());
+                writePayload(out, consensusMessage.getMessage(), compress);
+            }
+            case REPLY -> {
+                LedgerResponse response = (LedgerResponse) message;
+                out.writeBoolean(response.isSuccessful());
+                out.writeBoolean(response.getUpdateAccount() != null);
+                if (response.getUpdateAccount() != null)
+                    writeUpdateAccount(out, response.getUpdateAccount());
+                writeStringMap(out, response.getSignatures());
+                writeProof(out, response.getProof());
+                out.writeNullableInt(response.getNonce());
+                writeIntList(out, response.getRepliesTo());
+            }
+            case ACK -> {
+                // Ranges are delta encoded from the end of the previous one
+                AckMessage ack = (AckMessage) message;
+                out.writeVarInt(ack.getCumulative());
+                out.writeVarInt(ack.getRanges().size());
+                int previous = ack.getCumulative();
+                for (AckMessage.Range range : ack.getRanges()) {
+                    out.writeVarInt(range.first() - previous);
+                    out.writeVarInt(range.last() - range.first());
+                    previous = range.last();
+                }
+            }
+            case FRAGMENT -> {
+                FragmentMessage fragment = (FragmentMessage) message;
+                out.writeVarInt(fragment.getGroup());
+                out.writeVarInt(fragment.getIndex());
+                out.writeVarInt(fragment.getCount());
+                out.writeVarInt(fragment.getLength());
+                out.writeBytes(fragment.getPayload());
+            }
+            case SESSION -> {
+                SessionMessage session = (SessionMessage) message;
+                out.writeByte((byte) session.getPhase().ordinal());
+                out.writeVarInt(session.getEpoch());
+                out.writeBytes(session.getPublicKey());
+            }
+            default -> {
+                // IGNORE only carries the common fields
+            }
+        }
+    }
+
+    private static Message readMessage(ByteBuffer in) {
+        Message.Type type = typeOf(in.get());
+        String senderId = readString(in);
+        int messageId = readVarInt(in);
+
+        Message message;
+        switch (type) {
+            case CREATE, TRANSFER, BALANCE -> message = new LedgerRequest(senderId, type, readString(in),
+                    readString(in));
+            case PRE_PREPARE, PREPARE, COMMIT -> {
+                ConsensusMessage consensusMessage = new ConsensusMessage(senderId, type);
+                consensusMessage.setConsensusInstance(readVarInt(in));
+                consensusMessage.setRound(readVarInt(in));
+                consensusMessage.setReplyTo(readString(in));
+                consensusMessage.setReplyToMessageId(readVarInt(in));
+                consensusMessage.setMessage(readPayload(in));
+                message = consensusMessage;
+            }
+            case REPLY -> {
+                boolean successful = readBoolean(in);
+                UpdateAccount updateAccount = readBoolean(in) ? readUpdateAccount(in) : null;
+                Map<String, String> signatures = readStringMap(in);
+                MerkleTree.Proof proof = readProof(in);
+                Integer nonce = readNullableInt(in);
+                LedgerResponse response = nonce == null
+                        ? new LedgerResponse(senderId, successful, updateAccount, signatures, proof)
+                        : new LedgerResponse(senderId, successful, updateAccount, signatures, proof, nonce);
+                response.setRepliesTo(readIntList(in));
+                message = response;
+            }
+            case ACK -> {
+                // Each range starts above the previous one (or the cumulative identifier)
+                int cumulative = readVarInt(in);
+                int size = readSize(in);
+                List<AckMessage.Range> ranges = new ArrayList<>(size);
+                long previous = cumulative;
+                for (int i = 0; i < size; i++) {
+                    int gap = readVarInt(in);
+                    int span = readVarInt(in);
+                    if (gap < 1 || span < 0 || previous + gap + span > Integer.MAX_VALUE)
+                        throw new IllegalArgumentException("Invalid ACK range");
+                    long first = previous + gap;
+                    previous = first + span;
+                    ranges.add(new AckMessage.Range((int) first, (int) previous));
+                }
+                message = new AckMessage(senderId, cumulative, ranges);
+            }
+            case FRAGMENT -> message = new FragmentMessage(senderId, readVarInt(in), readVarInt(in),
+                    readVarInt(in), readVarInt(in), readBytes(in));
+            case SESSION -> message = new SessionMessage(senderId, readPhase(in), readVarInt(in), readBytes(in));
+            default -> message = new Message(senderId, type);
+        }
+
+        message.setMessageId(messageId);
+        return message;
+    }
+
+    /*
+     * Writes a payload, deflated if it is large enough and deflating makes it
+     * smaller
+     */
+    private static void writePayload(Output out, byte[] payload, boolean compress) {
+        if (compress && payload != null && payload.length >= COMPRESSION_THRESHOLD) {
+            byte[] deflated = deflate(payload);
+            if (deflated.length < payload.length) {
+                out.writeByte(DEFLATE);
+                out.writeVarInt(payload.length);
+                out.writeBytes(deflated);
+                return;
+            }
+        }
+        out.writeByte(RAW);
+        out.writeBytes(payload);
+    }
+
+    private static byte[] readPayload(ByteBuffer in) {
+        byte encoding = in.get();
+        if (encoding == RAW)
+            return readBytes(in);
+        if (encoding != DEFLATE)
+            throw new IllegalArgumentException("Unknown payload encoding " + encoding);
+
+        int length = readVarInt(in);
+        if (length < 0 || length > MAX_INFLATED_SIZE)
+            throw new IllegalArgumentException("Invalid inflated size " + length);
+        byte[] deflated = readBytes(in);
+        if (deflated == null)
+            throw new IllegalArgumentException("Missing deflated payload");
+        return inflate(deflated, length);
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+
+        Output out = new Output(data.length / 2 + 64);
+        byte[] chunk = new byte[Math.min(data.length, 8192)];
+        while (!deflater.finished())
+            out.writeRaw(chunk, 0, deflater.deflate(chunk));
+        return out.toByteArray();
+    }
+
+    /*
+     * Inflates a payload that must take exactly the given size (anything else
+     * is malformed, so a small message cannot inflate into more than it claims)
+     */
+    private static byte[] inflate(byte[] deflated, int length) {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(deflated);
+
+        byte[] data = new byte[length];
+        try {
+            int size = 0;
+            while (size < length && !inflater.finished()) {
+                int read = inflater.inflate(data, size, length - size);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                size += read;
+            }
+            // The stream must end right at the claimed size
+            if (size == length && !inflater.finished() && inflater.inflate(new byte[1]) > 0)
+                size++;
+            if (size != length || !inflater.finished())
+                throw new IllegalArgumentException("Inflated size does not match");
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Malformed deflated payload", e);
+        }
+        return data;
+    }
+
+    private static void writeUpdateAccount(Output out, UpdateAccount update) {
+        out.writeString(update.getOwnerId());
+        out.writeString(update.getHashPubKey());
+        out.writeString(update.getBalance() == null ? null : update.getBalance().toString());
+        out.writeNullableInt(update.getConsensusInstance());
+        writeIntList(out, update.getNonces());
+        out.writeBoolean(update.isValid());
+    }
+
+    private static UpdateAccount readUpdateAccount(ByteBuffer in) {
+        String ownerId = readString(in);
+        String hashPubKey = readString(in);
+        String balance = readString(in);
+        Integer consensusInstance = readNullableInt(in);
+        List<Integer> nonces = readIntList(in);
+        boolean valid = readBoolean(in);
+        return new UpdateAccount(ownerId, hashPubKey, balance == null ? null : new BigDecimal(balance),
+                consensusInstance, nonces, valid);
+    }
+
+    // present | index | count | siblings
+    private static void writeProof(Output out, MerkleTree.Proof proof) {
+        out.writeBoolean(proof != null);
+        if (proof == null)
+            return;
+        out.writeVarInt(proof.index());
+        out.writeVarInt(proof.count());
+        out.writeVarInt(proof.siblings().size());
+        proof.siblings().forEach(out::writeBytes);
+    }
+
+    private static MerkleTree.Proof readProof(ByteBuffer in) {
+        if (!readBoolean(in))
+            return null;
+        int index = readVarInt(in);
+        int count = readVarInt(in);
+        int size = readSize(in);
+        List<byte[]> siblings = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            siblings.add(readBytes(in));
+        return new MerkleTree.Proof(index, count, siblings);
+    }
+
+    private static void writeStringMap(Output out, Map<String, String> map) {
+        if (map == null) {
+            out.writeVarInt(0);
+            return;
+        }
+        out.writeVarInt(map.size() + 1);
+        map.forEach((key, value) -> {
+            out.writeString(key);
+            out.writeString(value);
+        });
+    }
+
+    private static Map<String, String> readStringMap(ByteBuffer in) {
+        int size = readSize(in) - 1;
+        if (size < 0)
+            return null;
+        Map<String, String> map = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++)
+            map.put(readString(in), readString(in));
+        return map;
+    }
+
+    private static void writeIntList(Output out, List<Integer> list) {
+        if (list == null) {
+            out.writeVarInt(0);
+            return;
+        }
+        out.writeVarInt(list.size() + 1);
+        list.forEach(out::writeNullableInt);
+    }
+
+    private static List<Integer> readIntList(ByteBuffer in) {
+        int size = readSize(in) - 1;
+        if (size < 0)
+            return null;
+        List<Integer> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            list.add(readNullableInt(in));
+        return list;
+    }
+
+    private static byte typeCode(Message.Type type) {
+        for (byte code = 0; code < TYPES.length; code++)
+            if (TYPES[code] == type)
+                return code;
+        throw new LedgerException(ErrorMessage.CannotParseMessage);
+    }
+
+    private static Message.Type typeOf(byte code) {
+        if (code < 0 || code >= TYPES.length)
+            throw new IllegalArgumentException("Unknown message type " + code);
+        return TYPES[code];
+    }
+
+    private static SessionMessage.Phase readPhase(ByteBuffer in) {
+        byte code = in.get();
+        if (code < 0 || code >= SessionMessage.Phase.values().length)
+            throw new IllegalArgumentException("Unknown session phase " + code);
+        return SessionMessage.Phase.values()[code];
+    }
+
+    private static <T> T parse(byte[] data, Parser<T> parser) {
+        if (data == null)
+            throw new LedgerException(ErrorMessage.CannotParseMessage);
+        try {
+            return parser.parse(ByteBuffer.wrap(data));
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new LedgerException(ErrorMessage.CannotParseMessage);
+        }
+    }
+
+    /*
+     * Reads the type of an encoded message (first field of every message)
+     */
+    static Message.Type readType(ByteBuffer in) {
+        return typeOf(in.get());
+    }
+
+    /*
+     * Class a message of the given type is decoded into
+     */
+    static Class<? extends Message> classOf(Message.Type type) {
+        return switch (type) {
+            case CREATE, TRANSFER, BALANCE -> LedgerRequest.class;
+            case PRE_PREPARE, PREPARE, COMMIT -> ConsensusMessage.class;
+            case REPLY -> LedgerResponse.class;
+            case ACK -> AckMessage.class;
+            case FRAGMENT -> FragmentMessage.class;
+            case SESSION -> SessionMessage.class;
+            default -> Message.class;
+        };
+    }
+
+    /*
+     * Reads the length prefix of a string or byte array without consuming its
+     * contents (-1 for null)
+     */
+    static int readLength(ByteBuffer in) {
+        return readSize(in) - 1;
+    }
+
+    static int readVarInt(ByteBuffer in) {
+        int raw = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            raw |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return (raw >>> 1) ^ -(raw & 1);
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static int readSize(ByteBuffer in) {
+        int size = readVarInt(in);
+        // Every element takes at least one byte
+        if (size < 0 || size - 1 > in.remaining())
+            throw new IllegalArgumentException("Invalid size " + size);
+        return size;
+    }
+
+    private static boolean readBoolean(ByteBuffer in) {
+        return in.get() != 0;
+    }
+
+    private static Integer readNullableInt(ByteBuffer in) {
+        return readBoolean(in) ? readVarInt(in) : null;
+    }
+
+    static byte[] readBytes(ByteBuffer in) {
+        int length = readSize(in) - 1;
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = readSize(in) - 1;
+        if (length < 0)
+            return null;
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    @FunctionalInterface
+    private interface Parser<T> {
+        T parse(ByteBuffer in);
+    }
+
+    /*
+     * Growable output buffer
+     */
+    static class Output {
+
+        private byte[] buffer;
+        private int size = 0;
+
+        Output(int initialCapacity) {
+            this.buffer = new byte[initialCapacity];
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, size + extra));
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[size++] = (byte) value;
+        }
+
+        void writeBoolean(boolean value) {
+            writeByte(value ? 1 : 0);
+        }
+
+        void writeVarInt(int value) {
+            ensureCapacity(5);
+            int raw = (value << 1) ^ (value >> 31);
+            while ((raw & ~0x7F) != 0) {
+                buffer[size++] = (byte) ((raw & 0x7F) | 0x80);
+                raw >>>= 7;
+            }
+            buffer[size++] = (byte) raw;
+        }
+
+        void writeNullableInt(Integer value) {
+            writeBoolean(value != null);
+            if (value != null)
+                writeVarInt(value);
+        }
+
+        void writeBytes(byte[] value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            writeVarInt(value.length + 1);
+            writeRaw(value);
+        }
+
+        void writeString(String value) {
+            writeBytes(value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void writeRaw(byte[] value) {
+            writeRaw(value, 0, value.length);
+        }
+
+        void writeRaw(byte[] value, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(value, offset, buffer, size, length);
+            size += length;
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+}
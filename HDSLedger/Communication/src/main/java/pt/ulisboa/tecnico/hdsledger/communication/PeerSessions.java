@@ -0,0 +1,432 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import pt.ulisboa.tecnico.hdsledger.communication.SessionMessage.Phase;
+import pt.ulisboa.tecnico.hdsledger.utilities.CustomLogger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.text.MessageFormat;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Sessions of a link with each of its peers: keys agreed on once (ephemeral
+ * X25519 keys exchanged in signed frames) and then used to authenticate the
+ * frames between the two by an HMAC-SHA256 tag instead of a signature
+ * The peer with the smallest identifier offers the sessions and the other one
+ * answers; the initiator uses a session once it gets the answer, the responder
+ * once a frame of the initiator proves it has the keys too. Sessions are
+ * replaced every REKEY_INTERVAL or REKEY_FRAMES, the previous ones are still
+ * accepted for a while; signed frames are accepted all along
+ * Session messages are not numbered like the other messages, so a recorded one
+ * may be replayed: offers and requests carry stamps that follow the clock
+ * (kept across restarts) and each side only takes the ones newer than the last
+ * it took from the peer. A side that lost its sessions (it restarted) signs
+ * its frames and asks for a new session; frames under unknown sessions or with
+ * invalid tags are dropped and never replace the session in use
+ */
+final class PeerSessions {
+
+    private static final CustomLogger LOGGER = new CustomLogger(PeerSessions.class.getName());
+    // Size of the tag of a frame (bytes)
+    static final int TAG_LENGTH = 32;
+    private static final String AGREEMENT = "X25519";
+    private static final String MAC = "HmacSHA256";
+    // Time a session is used before it is replaced (ns)
+    private static final long REKEY_INTERVAL = TimeUnit.MINUTES.toNanos(10);
+    // Frames sent under a session before it is replaced
+    private static final long REKEY_FRAMES = 1L << 20;
+    // Time to wait before offering (or asking for) a session again (ns)
+    private static final long RETRY_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    // Time the responder waits for the initiator to use an answered session
+    // before asking for another one (ns)
+    private static final long CONFIRM_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+    // Stamps count the seconds since this instant (2024-01-01T00:00:00Z)
+    private static final long STAMP_ORIGIN = 1704067200L;
+    // Sessions of a peer accepted at once (the one in use, the previous one and
+    // the one being agreed on)
+    private static final int ACCEPTED_SESSIONS = 3;
+    // MAC engines of each thread (costly to look up, not thread-safe)
+    private static final ThreadLocal<Mac> MACS = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(MAC);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /*
+     * Sends a message of the key agreement
+     */
+    interface Sender {
+
+        void send(String nodeId, SessionMessage message);
+    }
+
+    private final String selfId;
+    private final Sender sender;
+    // State of each peer (fixed once created)
+    private final Map<String, Peer> peers = new HashMap<>();
+
+    PeerSessions(String selfId, Collection<String> peerIds, Sender sender) {
+        this.selfId = selfId;
+        this.sender = sender;
+        peerIds.stream().filter(id -> !id.equals(selfId))
+                .forEach(id -> peers.put(id, new Peer(id, selfId.compareTo(id) < 0)));
+    }
+
+    /*
+     * Session the frames to a node are authenticated with (null => signed)
+     */
+    Session sending(String nodeId) {
+        Peer peer = peers.get(nodeId);
+        return peer == null ? null : peer.sending;
+    }
+
+    /*
+     * Starts agreeing on a session with a node if there is none in use or the
+     * one in use is due to be replaced (at most once every RETRY_INTERVAL)
+     *
+     * @param force Agree on a new session even if the one in use is fine (the
+     * node no longer knows it)
+     */
+    void refresh(String nodeId, boolean force) {
+        Peer peer = peers.get(nodeId);
+        if (peer == null)
+            return;
+        Session current = peer.sending;
+        if (!force && current != null && !current.isDue())
+            return;
+
+        SessionMessage message;
+        synchronized (peer) {
+            long now = System.nanoTime();
+            if (peer.attempted && now - peer.lastAttempt < RETRY_INTERVAL)
+                return;
+            // A session was answered => The initiator uses it once it has the answer
+            // (asked for again if it does not within CONFIRM_TIMEOUT)
+            if (!peer.initiator && peer.next != null && now - peer.answeredAt < CONFIRM_TIMEOUT)
+                return;
+            peer.attempted = true;
+            peer.lastAttempt = now;
+            if (peer.initiator) {
+                message = offer(peer);
+            } else {
+                peer.stamp = nextStamp(peer.stamp);
+                message = new SessionMessage(selfId, Phase.REQUEST, peer.stamp, null);
+            }
+        }
+        if (message != null)
+            sender.send(nodeId, message);
+    }
+
+    /*
+     * Handles a message of the key agreement, taken from an authentic frame of
+     * the node (possibly a replayed one)
+     */
+    void handle(String nodeId, SessionMessage message) {
+        Peer peer = peers.get(nodeId);
+        if (peer == null)
+            return;
+
+        try {
+            switch (message.getPhase()) {
+                case REQUEST -> {
+                    if (!peer.initiator)
+                        return;
+                    synchronized (peer) {
+                        // Not newer than the last request => Replayed, ignore
+                        if (message.getEpoch() <= peer.stamp)
+                            return;
+                        peer.stamp = message.getEpoch();
+                    }
+                    refresh(nodeId, true);
+                }
+                case OFFER -> {
+                    if (peer.initiator || !isNewer(peer, message.getEpoch()))
+                        return;
+                    KeyPair ephemeral = generate();
+                    byte[] publicKey = ephemeral.getPublic().getEncoded();
+                    Session session = derive(peer, message.getEpoch(), ephemeral.getPrivate(),
+                            message.getPublicKey(), message.getPublicKey(), publicKey);
+                    synchronized (peer) {
+                        // Not newer than the last offer => Replayed, ignore
+                        if (message.getEpoch() <= peer.epoch)
+                            return;
+                        peer.epoch = message.getEpoch();
+                        // The initiator may no longer have the keys in use (it restarted)
+                        // => Sign until it uses the new session
+                        peer.sending = null;
+                        peer.next = session;
+                        peer.answeredAt = System.nanoTime();
+                        accept(peer, session);
+                    }
+                    sender.send(nodeId, new SessionMessage(selfId, Phase.ANSWER, message.getEpoch(), publicKey));
+                }
+                case ANSWER -> {
+                    if (!peer.initiator)
+                        return;
+                    synchronized (peer) {
+                        // Answer to an older offer => Ignore, the latest one will be answered
+                        if (peer.offer == null || message.getEpoch() != peer.epoch)
+                            return;
+                        Session session = derive(peer, peer.epoch, peer.offer.getPrivate(), message.getPublicKey(),
+                                peer.offer.getPublic().getEncoded(), message.getPublicKey());
+                        peer.sending = session;
+                        peer.established = session;
+                        peer.offer = null;
+                        accept(peer, session);
+                    }
+                    established(nodeId, message.getEpoch());
+                }
+            }
+        } catch (GeneralSecurityException | IllegalArgumentException | NullPointerException e) {
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - Discarding invalid session {1} from {2}", selfId,
+                    message.getPhase(), nodeId));
+        }
+    }
+
+    /*
+     * Checks the tag of a frame, leaving the buffer untouched
+     * A frame of the initiator under the session being agreed on completes the
+     * agreement; frames under unknown sessions or with invalid tags are
+     * dropped, and only start an agreement if there is no session in use (the
+     * frame itself proves nothing, so it never replaces one)
+     *
+     * @param epoch The session of the frame
+     *
+     * @param tagStart Position of the tag in the frame
+     *
+     * @param authenticatedStart Position the bytes covered by the tag start at
+     * (up to the end of the frame)
+     */
+    boolean verify(String nodeId, int epoch, ByteBuffer frame, int tagStart, int tagLength,
+            int authenticatedStart) {
+        Peer peer = peers.get(nodeId);
+        if (peer == null)
+            return false;
+
+        Session session;
+        synchronized (peer) {
+            session = peer.accepted.get(epoch);
+        }
+
+        boolean valid = false;
+        if (session != null && tagLength == TAG_LENGTH) {
+            byte[] tag = new byte[TAG_LENGTH];
+            frame.get(tagStart, tag);
+            valid = MessageDigest.isEqual(tag,
+                    tag(session.receiveKey, frame.duplicate().position(authenticatedStart)));
+        }
+        if (!valid) {
+            if (session == null)
+                refresh(nodeId, false);
+            return false;
+        }
+
+        if (session == peer.next) {
+            synchronized (peer) {
+                if (session != peer.next)
+                    return true;
+                peer.sending = session;
+                peer.established = session;
+                peer.next = null;
+            }
+            established(nodeId, epoch);
+        }
+        return true;
+    }
+
+    private void established(String nodeId, int epoch) {
+        LOGGER.log(Level.INFO, MessageFormat.format("{0} - Frames to {1} authenticated by session {2}", selfId,
+                nodeId, String.valueOf(epoch)));
+    }
+
+    /*
+     * New offer of the initiator, under the next epoch (every offer takes a new
+     * one, so answers to the older ones are told apart and the responder can
+     * tell replayed offers)
+     */
+    private SessionMessage offer(Peer peer) {
+        try {
+            peer.offer = generate();
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+        peer.epoch = nextStamp(peer.epoch);
+        return new SessionMessage(selfId, Phase.OFFER, peer.epoch, peer.offer.getPublic().getEncoded());
+    }
+
+    private static boolean isNewer(Peer peer, int epoch) {
+        synchronized (peer) {
+            return epoch > peer.epoch;
+        }
+    }
+
+    /*
+     * Stamp following another one: the seconds elapsed since STAMP_ORIGIN, or
+     * the next number if that is not larger (several stamps within a second)
+     */
+    static int nextStamp(int previous) {
+        long seconds = System.currentTimeMillis() / 1000 - STAMP_ORIGIN;
+        return (int) Math.max(previous + 1L, Math.min(seconds, Integer.MAX_VALUE));
+    }
+
+    /*
+     * Adds a session to the ones accepted from a peer, dropping the oldest ones
+     * beyond ACCEPTED_SESSIONS; the sessions in use and being agreed on are
+     * always kept (called with the peer held)
+     */
+    private static void accept(Peer peer, Session session) {
+        peer.accepted.put(session.getEpoch(), session);
+
+        Iterator<Session> eldest = peer.accepted.values().iterator();
+        while (peer.accepted.size() > ACCEPTED_SESSIONS && eldest.hasNext()) {
+            Session candidate = eldest.next();
+            if (candidate != session && candidate != peer.sending && candidate != peer.established
+                    && candidate != peer.next)
+                eldest.remove();
+        }
+    }
+
+    private static KeyPair generate() throws GeneralSecurityException {
+        return KeyPairGenerator.getInstance(AGREEMENT).generateKeyPair();
+    }
+
+    /*
+     * Keys of a session, one for the frames of each side, from the secret
+     * agreed on and everything that identifies the session
+     *
+     * @param privateKey Own ephemeral key
+     *
+     * @param peerKey Ephemeral public key of the peer
+     */
+    private Session derive(Peer peer, int epoch, PrivateKey privateKey, byte[] peerKey, byte[] initiatorKey,
+            byte[] responderKey) throws GeneralSecurityException {
+        KeyAgreement agreement = KeyAgreement.getInstance(AGREEMENT);
+        agreement.init(privateKey);
+        agreement.doPhase(KeyFactory.getInstance(AGREEMENT).generatePublic(new X509EncodedKeySpec(peerKey)), true);
+        SecretKeySpec secret = new SecretKeySpec(agreement.generateSecret(), MAC);
+
+        MessageCodec.Output context = new MessageCodec.Output(256);
+        context.writeString(peer.initiator ? selfId : peer.id);
+        context.writeString(peer.initiator ? peer.id : selfId);
+        context.writeVarInt(epoch);
+        context.writeBytes(initiatorKey);
+        context.writeBytes(responderKey);
+        SecretKeySpec initiatorMac = key(secret, "initiator", context.toByteArray());
+        SecretKeySpec responderMac = key(secret, "responder", context.toByteArray());
+
+        return peer.initiator ? new Session(epoch, initiatorMac, responderMac)
+                : new Session(epoch, responderMac, initiatorMac);
+    }
+
+    private static SecretKeySpec key(SecretKeySpec secret, String label, byte[] context)
+            throws GeneralSecurityException {
+        Mac mac = MACS.get();
+        mac.init(secret);
+        mac.update(label.getBytes(StandardCharsets.UTF_8));
+        return new SecretKeySpec(mac.doFinal(context), MAC);
+    }
+
+    /*
+     * Tag of the remaining bytes of a buffer (consumes them)
+     */
+    private static byte[] tag(SecretKeySpec key, ByteBuffer data) {
+        try {
+            Mac mac = MACS.get();
+            mac.init(key);
+            mac.update(data);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * Keys agreed on with a peer
+     */
+    static final class Session {
+
+        private final int epoch;
+        // Key of the frames to the peer
+        private final SecretKeySpec sendKey;
+        // Key of the frames from the peer
+        private final SecretKeySpec receiveKey;
+        private final long established = System.nanoTime();
+        // Frames sent under the session
+        private final AtomicLong frames = new AtomicLong();
+
+        private Session(int epoch, SecretKeySpec sendKey, SecretKeySpec receiveKey) {
+            this.epoch = epoch;
+            this.sendKey = sendKey;
+            this.receiveKey = receiveKey;
+        }
+
+        int getEpoch() {
+            return epoch;
+        }
+
+        /*
+         * Tag of a frame to the peer
+         */
+        byte[] tag(byte[] data) {
+            frames.incrementAndGet();
+            return PeerSessions.tag(sendKey, ByteBuffer.wrap(data));
+        }
+
+        private boolean isDue() {
+            return frames.get() >= REKEY_FRAMES || System.nanoTime() - established >= REKEY_INTERVAL;
+        }
+    }
+
+    private static class Peer {
+
+        private final String id;
+        // True if this side offers the sessions
+        private final boolean initiator;
+        // Session frames to the peer are authenticated with (null => signed)
+        private volatile Session sending;
+        // Session last put in use with the peer (kept while the next one is agreed on)
+        private Session established;
+        // Sessions frames from the peer may be authenticated with, oldest first
+        // {epoch -> session}
+        private final Map<Integer, Session> accepted = new LinkedHashMap<>();
+        // Session answered by this side, used once the initiator uses it (responder only)
+        private volatile Session next;
+        // Time the next session was answered (responder only)
+        private long answeredAt;
+        // Ephemeral keys of the pending offer (initiator only)
+        private KeyPair offer;
+        // Epoch of the last offer made (initiator) or taken (responder)
+        private int epoch = 0;
+        // Stamp of the last request made (responder) or taken (initiator)
+        private int stamp = 0;
+        // Time of the last offer or request
+        private long lastAttempt;
+        private boolean attempted = false;
+
+        private Peer(String id, boolean initiator) {
+            this.id = id;
+            this.initiator = initiator;
+        }
+    }
+}
@@ -1,47 +1,126 @@
 package pt.ulisboa.tecnico.hdsledger.communication;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-
 import pt.ulisboa.tecnico.hdsledger.communication.Message.Type;
 import pt.ulisboa.tecnico.hdsledger.utilities.*;
 import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig.ByzantineBehavior;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
-import java.util.stream.Collectors;
 
-public class PerfectLink {
+public class PerfectLink extends AbstractLink {
 
     private static final CustomLogger LOGGER = new CustomLogger(PerfectLink.class.getName());
-    // Time to wait for an ACK before resending the message
+    // Time to wait for an ACK before resending the message (until the RTT is known)
     private final int BASE_SLEEP_TIME;
-    // UDP Socket
-    private final DatagramSocket socket;
-    // Map of all nodes in the network
-    private final Map<String, ProcessConfig> nodes = new ConcurrentHashMap<>();
-    // Number of maximum byzantine nodes
-    private final int maxByzantineNodeCount;
-    // Reference to the node itself
-    private final ProcessConfig config;
-    // Class to deserialize messages to
-    private final Class<? extends Message> messageClass;
+    // Maximum time to wait for an ACK, including back-off (ms)
+    private final int MAX_SLEEP_TIME;
+    // Default maximum time to wait for an ACK (ms)
+    private static final int DEFAULT_MAX_SLEEP_TIME = 10000;
+    // Maximum number of unacknowledged messages to each node
+    private final int WINDOW;
+    // Default maximum number of unacknowledged messages to each node
+    private static final int DEFAULT_WINDOW = 256;
+    // Maximum size of the messages waiting for room in the window of each node (bytes)
+    private static final long BACKLOG_BUDGET = 32L * 1024 * 1024;
+    // Messages in flight and waiting to be sent to each node
+    private final Map<String, Outbox> outboxes = new ConcurrentHashMap<>();
+    // Round-trip time estimation of each node
+    private final Map<String, RttEstimator> rttEstimators = new ConcurrentHashMap<>();
+    // Granularity of the retransmission timer (ms)
+    private static final int RETRANSMISSION_TICK = 10;
+    // Number of buckets of the retransmission timer
+    private static final int RETRANSMISSION_WHEEL_SIZE = 512;
+    // Non-blocking UDP channel
+    private final DatagramChannel channel;
+    // Selector the reader thread blocks on until a datagram can be read
+    private final Selector readSelector;
+    // Outbound queue and writer threads
+    private final DatagramWriter writer;
+    // Maximum number of datagrams waiting to be written
+    private static final int OUTBOUND_QUEUE_CAPACITY = 4096;
+    // Number of threads encoding and writing datagrams
+    private static final int WRITER_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    // Time the writers wait for more messages to the same destination (ms)
+    private static final long COALESCING_WINDOW = 1;
+    // Size budget of the messages packed into one frame (larger messages go alone)
+    private static final int MAX_BATCH_SIZE = 8192;
     // Set of received messages from specific node (prevent duplicates)
-    private final Map<String, CollapsingSet> receivedMessages = new ConcurrentHashMap<>();
-    // Set of received ACKs from specific node
-    private final CollapsingSet receivedAcks = new CollapsingSet();
-    // Message counter
-    private final AtomicInteger messageCounter = new AtomicInteger(0);
-    // Send messages to self by pushing to queue instead of through the network
-    private final Queue<Message> localhostQueue = new ConcurrentLinkedQueue<>();
+    private final Map<String, SlidingWindow> receivedMessages = new ConcurrentHashMap<>();
+    // Number of sequence numbers above the floor tracked for each node
+    private static final int RECEIVE_WINDOW = 4096;
+    // Messages waiting for an ACK {destination -> {message id -> pending message}}
+    private final Map<String, NavigableMap<Integer, PendingMessage>> pendingMessages = new ConcurrentHashMap<>();
+    // Messages to be acknowledged by the next ACK frame to each node
+    private final Map<String, PendingAcks> pendingAcks = new ConcurrentHashMap<>();
+    // Configured address of each node (ACKs only go there, never to the source
+    // address of a datagram, which anyone may forge)
+    private final Map<String, InetSocketAddress> addresses = new ConcurrentHashMap<>();
+    // Time to wait for more messages to acknowledge before sending an ACK frame (ms)
+    private static final int ACK_DELAY = 20;
+    // Number of messages to acknowledge that forces an ACK frame to be sent right away
+    private static final int MAX_PENDING_ACKS = 256;
+    // Single timer that drives the retransmission of every pending message
+    private final HashedWheelTimer retransmissionTimer;
+    // Thread running the expired retransmissions and ACK flushes, so that session
+    // agreements and the outbound queue never hold the timer back
+    private final ThreadPoolExecutor timeoutRunner;
+    // Next sequence number of the messages sent to each node
+    private final Map<String, AtomicInteger> sequenceNumbers = new ConcurrentHashMap<>();
+    // Messages ready to be returned by receive (messages to self are pushed here
+    // instead of going through the network)
+    private final BlockingQueue<Delivery> delivered = new LinkedBlockingQueue<>();
+    // Messages from the network in the delivered queue
+    private final AtomicInteger undelivered = new AtomicInteger();
+    // Notified when the delivered queue falls below its capacity
+    private final Object deliveryRoom = new Object();
+    // Number of messages from the network waiting to be received beyond which
+    // the reader stops reading (the frames read before are still delivered)
+    private static final int DELIVERY_QUEUE_CAPACITY = 4096;
+    // Threads verifying the signatures of inbound frames (null if there are none)
+    private final ThreadPoolExecutor verifiers;
+    // Number of threads verifying signatures (one core is left to the reader; on
+    // a single core the reader verifies frames itself, sparing the hand-off)
+    private static final int VERIFIER_THREADS = Runtime.getRuntime().availableProcessors() - 1;
+    // Maximum number of frames waiting to be verified (the reader verifies them
+    // itself beyond that)
+    private static final int VERIFY_QUEUE_CAPACITY = 1024;
+    // Verified frames of each node waiting for the ones read before them
+    private final Map<String, Reorderer> reorderers = new ConcurrentHashMap<>();
+    // Maximum number of datagrams read on each wakeup of the reader thread
+    private static final int MAX_DATAGRAMS_PER_WAKEUP = 64;
+    // Direct buffers datagrams are read into
+    private final BufferPool bufferPool = new BufferPool(DatagramWriter.MAX_DATAGRAM_SIZE, 4);
+    // Messages whose encoding is larger than this are sent in fragments (bytes)
+    private static final int FRAGMENT_SIZE = 8000;
+    // Maximum size of the messages being reassembled for each node (bytes)
+    private static final int REASSEMBLY_BUDGET = 16 * 1024 * 1024;
+    // Time after which a message without new fragments is dropped, well past
+    // the longest retransmission interval (ms)
+    private static final long REASSEMBLY_TIMEOUT = 60_000;
+    // Fragments of messages being reassembled
+    private final Reassembler reassembler = new Reassembler(REASSEMBLY_BUDGET, REASSEMBLY_TIMEOUT);
+    // Nodes by encoded identifier (to look up senders without decoding their ids)
+    private final Peer[] peers;
+    // Sessions whose keys authenticate the frames exchanged with each node
+    private final PeerSessions sessions;
 
     public PerfectLink(ProcessConfig self, int port, ProcessConfig[] nodes, Class<? extends Message> messageClass) {
         this(self, port, nodes, messageClass, true, 200);
@@ -49,183 +128,345 @@ public class PerfectLink {
 
     public PerfectLink(ProcessConfig self, int port, ProcessConfig[] nodes, Class<? extends Message> messageClass,
             boolean activateLogs, int baseSleepTime) {
+        this(self, port, nodes, messageClass, activateLogs, baseSleepTime,
+                Math.max(baseSleepTime, DEFAULT_MAX_SLEEP_TIME), DEFAULT_WINDOW);
+    }
+
+    public PerfectLink(ProcessConfig self, int port, ProcessConfig[] nodes, Class<? extends Message> messageClass,
+            boolean activateLogs, int baseSleepTime, int maxSleepTime, int window) {
 
-        this.config = self;
-        this.messageClass = messageClass;
-        this.maxByzantineNodeCount = Math.floorDiv(nodes.length - 1, 3);
+        super(self, port, nodes, messageClass);
         this.BASE_SLEEP_TIME = baseSleepTime;
+        this.MAX_SLEEP_TIME = maxSleepTime;
+        this.WINDOW = Math.min(window, RECEIVE_WINDOW);
+        String timerName = MessageFormat.format("{0}-retransmission-{1}", self.getId(), String.valueOf(port));
+        // Unbounded queue: there is at most one timeout per pending message and per
+        // ACK frame waiting to be flushed
+        this.timeoutRunner = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                task -> {
+                    Thread runner = new Thread(task, timerName + "-runner");
+                    runner.setDaemon(true);
+                    return runner;
+                });
+        this.retransmissionTimer = new HashedWheelTimer(timerName, RETRANSMISSION_TICK, TimeUnit.MILLISECONDS,
+                RETRANSMISSION_WHEEL_SIZE, timeoutRunner);
 
         Arrays.stream(nodes).forEach(node -> {
             String id = node.getId();
-            this.nodes.put(id, node);
-            receivedMessages.put(id, new CollapsingSet());
+            receivedMessages.put(id, new SlidingWindow(RECEIVE_WINDOW));
+            sequenceNumbers.put(id, new AtomicInteger(0));
+            rttEstimators.put(id, new RttEstimator(BASE_SLEEP_TIME, MAX_SLEEP_TIME));
+            outboxes.put(id, new Outbox());
+            pendingMessages.put(id, new ConcurrentSkipListMap<>());
+            pendingAcks.put(id, new PendingAcks());
+            addresses.put(id, new InetSocketAddress(node.getHostname(), node.getPort()));
+            reorderers.put(id, new Reorderer());
         });
+        this.peers = Arrays.stream(nodes)
+                .map(node -> new Peer(node.getId(), node.getId().getBytes(StandardCharsets.UTF_8)))
+                .toArray(Peer[]::new);
+        this.sessions = new PeerSessions(self.getId(), this.nodes.keySet(), this::sendSession);
 
         try {
-            this.socket = new DatagramSocket(port, InetAddress.getByName(config.getHostname()));
-        } catch (UnknownHostException | SocketException e) {
+            this.channel = DatagramChannel.open();
+            this.channel.bind(new InetSocketAddress(InetAddress.getByName(config.getHostname()), port));
+            this.channel.configureBlocking(false);
+            this.readSelector = Selector.open();
+            this.channel.register(readSelector, SelectionKey.OP_READ);
+        } catch (IOException e) {
             throw new LedgerException(ErrorMessage.CannotOpenSocket);
         }
+        this.writer = new DatagramWriter(MessageFormat.format("{0}-{1}", self.getId(), String.valueOf(port)),
+                channel, OUTBOUND_QUEUE_CAPACITY, WRITER_THREADS, COALESCING_WINDOW, MAX_BATCH_SIZE, this::frames,
+                stats);
         if (!activateLogs) {
             LogManager.getLogManager().reset();
         }
-    }
 
-    public void ackAll(List<Integer> messageIds) {
-        receivedAcks.addAll(messageIds);
-    }
+        String name = MessageFormat.format("{0}-{1}", self.getId(), String.valueOf(port));
+        AtomicInteger verifierCount = new AtomicInteger(0);
+        this.verifiers = VERIFIER_THREADS < 1 ? null
+                : new ThreadPoolExecutor(VERIFIER_THREADS, VERIFIER_THREADS, 0, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(VERIFY_QUEUE_CAPACITY), task -> {
+                            Thread verifier = new Thread(task, name + "-verifier-" + verifierCount.getAndIncrement());
+                            verifier.setDaemon(true);
+                            return verifier;
+                        }, new ThreadPoolExecutor.CallerRunsPolicy());
 
-    /*
-     * Broadcasts a message to all nodes in the network
-     *
-     * @param data The message to be broadcasted
-     */
-    public void broadcast(Message data) {
-        Gson gson = new Gson();
-        nodes.forEach((destId, dest) -> send(destId, gson.fromJson(gson.toJson(data), data.getClass())));
+        watch();
+        if (activateLogs)
+            stats.dumpEvery(STATS_INTERVAL);
+
+        Thread reader = new Thread(this::read, name + "-reader");
+        reader.setDaemon(true);
+        reader.start();
     }
 
     /*
-     * BYZANTINE_TESTS
-     * Alternating broadcast of two messages to all nodes in the network
-     * 
-     * @param Message data1 The first message to be broadcasted
-     * 
-     * @param Message data2 The second message to be broadcasted
+     * Registers the queues of the link and of each node as gauges of the
+     * statistics of the link
      */
-    public void alternatingBroadcast(Message data1, Message data2) {
-        Gson gson = new Gson();
-        AtomicInteger parity = new AtomicInteger(1);
-        nodes.forEach((destId, dest) -> {
-            if (parity.getAndIncrement() % 2 == 0)
-                send(destId, gson.fromJson(gson.toJson(data1), data1.getClass()));
-            else
-                send(destId, gson.fromJson(gson.toJson(data2), data2.getClass()));
+    private void watch() {
+        stats.gauge("delivery queue", undelivered::get);
+        stats.gauge("outbound queue", writer::queued);
+        stats.gauge("timeout queue", () -> timeoutRunner.getQueue().size());
+        if (verifiers != null)
+            stats.gauge("verify queue", () -> verifiers.getQueue().size());
+
+        outboxes.forEach((nodeId, outbox) -> {
+            LinkStats.PeerStats peer = stats.peer(nodeId);
+            peer.gauge("in flight", () -> {
+                synchronized (outbox) {
+                    return outbox.inFlight;
+                }
+            });
+            peer.gauge("backlog", () -> {
+                synchronized (outbox) {
+                    return outbox.backlog.size();
+                }
+            });
+            peer.gauge("srtt", rttEstimators.get(nodeId)::smoothedRtt);
         });
     }
 
+    public void ackAll(String nodeId, List<Integer> messageIds) {
+        messageIds.forEach(messageId -> acknowledge(nodeId, messageId));
+    }
+
     /*
-     * Multicast to f+1 nodes in the network
+     * Stops retransmitting a message once it has been acknowledged
      *
-     * @param data The message to be broadcasted
+     * @param nodeId The node the message was sent to
+     *
+     * @param messageId The identifier of the acknowledged message
      */
-    public void smallQuorumMulticast(Message data) {
-        multicast(data, maxByzantineNodeCount + 1);
+    private void acknowledge(String nodeId, int messageId) {
+        PendingMessage pending = pendingMessages.get(nodeId).remove(messageId);
+        if (pending != null)
+            acknowledged(nodeId, pending);
     }
 
     /*
-     * Multicast to 2f+1 nodes in the network
+     * Stops retransmitting every message covered by an ACK frame
+     *
+     * @param nodeId The node the messages were sent to
      *
-     * @param data The message to be broadcasted
+     * @param ack The cumulative identifier and ranges of received messages
      */
-    public void quorumMulticast(Message data) {
-        multicast(data, 2 * maxByzantineNodeCount + 1);
+    private void acknowledge(String nodeId, AckMessage ack) {
+        NavigableMap<Integer, PendingMessage> pending = pendingMessages.get(nodeId);
+        acknowledge(nodeId, pending.headMap(ack.getCumulative(), true));
+        ack.getRanges()
+                .forEach(range -> acknowledge(nodeId, pending.subMap(range.first(), true, range.last(), true)));
+    }
+
+    private void acknowledge(String nodeId, NavigableMap<Integer, PendingMessage> pending) {
+        pending.forEach((messageId, message) -> {
+            if (pending.remove(messageId, message))
+                acknowledged(nodeId, message);
+        });
     }
 
     /*
-     * Multicast a message to N nodes in the network
-     *
-     * @param data The message to be broadcasted
-     *
-     * @param n The number of nodes to send the message to
+     * Cancels the retransmission of an acknowledged message and, if it was only
+     * transmitted once, uses it to estimate the RTT of the node
      */
-    public void multicast(Message data, int n) {
-        List<String> nodeKeys = new ArrayList<>(nodes.keySet());
+    private void acknowledged(String nodeId, PendingMessage pending) {
+        pending.cancel();
+        if (pending.attempts == 2) {
+            long rtt = (System.nanoTime() - pending.sentAt) / 1000;
+            rttEstimators.get(nodeId).sample(rtt);
+            stats.peer(nodeId).getRtt().record(rtt);
+        }
 
-        if (n > nodeKeys.size())
-            throw new LedgerException(ErrorMessage.NoLeader);
-        if (n == nodeKeys.size())
-            broadcast(data);
+        LOGGER.log(Level.INFO, MessageFormat.format("{0} - Message {1} sent to {2}:{3} successfully",
+                config.getId(), pending.data.getType(), pending.address, pending.port));
 
-        Gson gson = new Gson();
+        // Room in the window => Send the next message waiting for it
+        PendingMessage next;
+        Outbox outbox = outboxes.get(nodeId);
+        synchronized (outbox) {
+            next = outbox.backlog.poll();
+            if (next == null)
+                outbox.inFlight--;
+            else
+                outbox.backlogSize -= next.body.length;
+        }
 
-        // Ensure that leader is always in the list
-        Optional<Entry<String, ProcessConfig>> leader = nodes.entrySet().stream()
-                .filter((config) -> config.getValue().isLeader()).findFirst();
-        if (leader.isEmpty())
-            throw new LedgerException(ErrorMessage.NoLeader);
+        if (next != null)
+            start(nodeId, next);
+    }
 
-        // Select n random nodes
-        Random random = new Random();
-        List<String> keys = new ArrayList<>();
-        keys.add(leader.get().getKey());
+    /*
+     * True if the window of a node is full and messages to it are waiting to be
+     * sent (the caller may want to slow down)
+     *
+     * @param nodeId The node identifier
+     */
+    @Override
+    public boolean isCongested(String nodeId) {
+        Outbox outbox = outboxes.get(nodeId);
+        if (outbox == null)
+            throw new LedgerException(ErrorMessage.NoSuchNode);
 
-        while (keys.size() < n) {
-            String randomKey = nodeKeys.get(random.nextInt(nodeKeys.size()));
-            if (!keys.contains(randomKey))
-                keys.add(randomKey);
+        synchronized (outbox) {
+            return !outbox.backlog.isEmpty();
         }
-
-        keys.forEach(destId -> send(destId, gson.fromJson(gson.toJson(data), data.getClass())));
     }
 
     /*
      * Sends a message to a specific node with guarantee of delivery
+     * The message is kept in the pending table and resent (using exponential
+     * back-off) by the retransmission timer until the corresponding ACK arrives
+     * Messages larger than FRAGMENT_SIZE are split into fragments that are sent,
+     * acknowledged and resent independently
+     * At most WINDOW messages to each node are unacknowledged at any time, the
+     * others wait in its backlog; if the backlog is full the message is refused
      *
      * @param nodeId The node identifier
      *
      * @param data The message to be sent
+     *
+     * @return False if the message was refused because the node is not keeping up
      */
-    public void send(String nodeId, Message data) {
-
-        // Spawn a new thread to send the message
-        // To avoid blocking while waiting for ACK
-        new Thread(() -> {
-            try {
-                ProcessConfig node = nodes.get(nodeId);
-                if (node == null)
-                    throw new LedgerException(ErrorMessage.NoSuchNode);
+    @Override
+    public boolean send(String nodeId, Message data) {
+        try {
+            ProcessConfig node = nodes.get(nodeId);
+            if (node == null)
+                throw new LedgerException(ErrorMessage.NoSuchNode);
 
-                data.setMessageId(messageCounter.getAndIncrement());
+            // Refused before taking a sequence number, so the node sees no gap
+            Outbox outbox = outboxes.get(nodeId);
+            synchronized (outbox) {
+                if (outbox.backlogSize >= BACKLOG_BUDGET) {
+                    LOGGER.log(Level.INFO, MessageFormat.format(
+                            "{0} - Backlog to {1} is full, refusing {2} message", config.getId(), nodeId,
+                            data.getType()));
+                    return false;
+                }
+            }
 
-                // If the message is not ACK, it will be resent
-                InetAddress destAddress = InetAddress.getByName(node.getHostname());
-                int destPort = node.getPort();
-                int count = 1;
-                int messageId = data.getMessageId();
-                int sleepTime = BASE_SLEEP_TIME;
+            AtomicInteger sequenceNumber = sequenceNumbers.get(nodeId);
+            data.setMessageId(sequenceNumber.getAndIncrement());
 
-                // Send message to local queue instead of using network if destination in self
-                if (nodeId.equals(this.config.getId())) {
-                    this.localhostQueue.add(data);
+            // Send message to local queue instead of using network if destination in self
+            // (the message object itself is delivered)
+            if (nodeId.equals(this.config.getId())) {
+                this.delivered.add(new Delivery(deliver(data, null), true));
 
-                    LOGGER.log(Level.INFO,
-                            MessageFormat.format("{0} - Message {1} (locally) sent to {2}:{3} successfully",
-                                    config.getId(), data.getType(), destAddress, destPort));
+                LOGGER.log(Level.INFO, MessageFormat.format("{0} - Message {1} (locally) sent successfully",
+                        config.getId(), data.getType()));
 
-                    return;
-                }
+                return true;
+            }
 
-                for (;;) {
-                    LOGGER.log(Level.INFO, MessageFormat.format(
-                            "{0} - Sending {1} message to {2}:{3} with message ID {4} - Attempt #{5}", config.getId(),
-                            data.getType(), destAddress, destPort, messageId, count++));
+            InetAddress destAddress = InetAddress.getByName(node.getHostname());
+            int destPort = node.getPort();
 
-                    unreliableSend(destAddress, destPort, data);
+            byte[] body = MessageCodec.encode(data);
+            if (body.length <= FRAGMENT_SIZE) {
+                track(nodeId, destAddress, destPort, data, body);
+                return true;
+            }
+            if (body.length > REASSEMBLY_BUDGET)
+                throw new LedgerException(ErrorMessage.MessageTooLarge);
 
-                    // Wait (using exponential back-off), then look for ACK
-                    Thread.sleep(sleepTime);
+            // The first fragment takes the identifier of the message
+            int count = (body.length + FRAGMENT_SIZE - 1) / FRAGMENT_SIZE;
+            for (int i = 0; i < count; i++) {
+                int start = Reassembler.offsetOf(i, count, body.length);
+                int end = i == count - 1 ? body.length : Reassembler.offsetOf(i + 1, count, body.length);
 
-                    // receive method will set receivedAcks when sees corresponding ACK
-                    if (receivedAcks.contains(messageId))
-                        break;
+                FragmentMessage fragment = new FragmentMessage(config.getId(), data.getMessageId(), i, count,
+                        body.length, Arrays.copyOfRange(body, start, end));
+                fragment.setMessageId(i == 0 ? data.getMessageId() : sequenceNumber.getAndIncrement());
+                track(nodeId, destAddress, destPort, fragment, MessageCodec.encode(fragment));
+            }
+        } catch (UnknownHostException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
 
-                    // Might be a problem if it overflows (unlikely)
-                    sleepTime <<= 1;
-                }
+    /*
+     * Sends a message right away if the window of the node has room for it,
+     * otherwise queues it in the backlog of the node
+     */
+    private void track(String nodeId, InetAddress address, int port, Message data, byte[] body) {
+        PendingMessage pending = new PendingMessage(address, port, data, body);
 
-                LOGGER.log(Level.INFO, MessageFormat.format("{0} - Message {1} sent to {2}:{3} successfully",
-                        config.getId(), data.getType(), destAddress, destPort));
-            } catch (InterruptedException | UnknownHostException e) {
-                e.printStackTrace();
+        Outbox outbox = outboxes.get(nodeId);
+        synchronized (outbox) {
+            if (outbox.inFlight >= WINDOW) {
+                outbox.backlog.add(pending);
+                outbox.backlogSize += body.length;
+                return;
             }
-        }).start();
+            outbox.inFlight++;
+        }
+
+        start(nodeId, pending);
+    }
+
+    /*
+     * Adds a message to the pending table and sends it
+     * If the message is not ACK, it will be resent
+     */
+    private void start(String nodeId, PendingMessage pending) {
+        NavigableMap<Integer, PendingMessage> pendingToNode = pendingMessages.get(nodeId);
+        pending.sleepTime = rttEstimators.get(nodeId).timeout();
+        pendingToNode.put(pending.data.getMessageId(), pending);
+
+        transmit(nodeId, pendingToNode, pending);
+    }
+
+    /*
+     * Sends a pending message and schedules its retransmission
+     * Runs on the caller thread for the first attempt and on the runner of the
+     * retransmission timer for the following ones
+     * The message keeps the datagram it was first written in, and retransmissions
+     * write that datagram again (no encoding nor signing) while the session it
+     * was authenticated under is still the one in use with the node
+     */
+    private void transmit(String nodeId, NavigableMap<Integer, PendingMessage> pendingToNode,
+            PendingMessage pending) {
+        int messageId = pending.data.getMessageId();
+
+        // receive method removes the message from the table when sees corresponding ACK
+        if (pendingToNode.get(messageId) != pending)
+            return;
+
+        LOGGER.log(Level.INFO, MessageFormat.format(
+                "{0} - Sending {1} message to {2}:{3} with message ID {4} - Attempt #{5}", config.getId(),
+                pending.data.getType(), pending.address, pending.port, messageId, pending.attempts++));
+
+        if (pending.attempts > 2)
+            stats.peer(nodeId).retransmission();
+
+        pending.sentAt = System.nanoTime();
+        sessions.refresh(nodeId, false);
+        InetSocketAddress to = new InetSocketAddress(pending.address, pending.port);
+        SentFrame sent = pending.sent;
+        if (sent != null && sent.session() == sessionTo(nodeId))
+            writer.resend(nodeId, to, pending.data, pending.body, sent.datagram());
+        else
+            writer.enqueue(nodeId, to, pending.data, pending.body,
+                    datagram -> pending.sent = new SentFrame(datagram, sessionOf(datagram)));
+
+        // Wait (using exponential back-off), then look for ACK
+        pending.timeout = retransmissionTimer.schedule(() -> transmit(nodeId, pendingToNode, pending),
+                pending.sleepTime);
+
+        pending.sleepTime = rttEstimators.get(nodeId).backOff(pending.sleepTime);
     }
 
     /*
      * Sends a message to a specific node without guarantee of delivery
      * Mainly used to send ACKs, if they are lost, the original message will be
      * resent
+     * Frames are bound to the node they are sent to, so addresses that are not
+     * the configured address of a node are refused
      *
      * @param address The address of the destination node
      *
@@ -234,106 +475,480 @@ public class PerfectLink {
      * @param data The message to be sent
      */
     public void unreliableSend(InetAddress hostname, int port, Message data) {
-        new Thread(() -> {
-            try {
+        InetSocketAddress address = new InetSocketAddress(hostname, port);
+        Optional<String> nodeId = addresses.entrySet().stream().filter(entry -> entry.getValue().equals(address))
+                .map(Map.Entry::getKey).findFirst();
+        if (nodeId.isEmpty())
+            throw new LedgerException(ErrorMessage.NoSuchNode);
 
-                // Sign message
-                String jsonString = new Gson().toJson(data);
-                Optional<String> signature;
-                try {
-                    signature = Optional.of(RSAEncryption.sign(jsonString, config.getPrivateKeyPath()));
-                } catch (Exception e) {
-                    throw new LedgerException(ErrorMessage.FailedToSignMessage);
+        writer.enqueue(nodeId.get(), address, data);
+    }
+
+    /*
+     * Receives a message from any node in the network (blocking)
+     * Messages are handed over by the inbound pipeline or, if sent to self,
+     * straight by send
+     */
+    @Override
+    public Message receive() throws IOException {
+        try {
+            Delivery delivery = delivered.take();
+            if (!delivery.local() && undelivered.getAndDecrement() == DELIVERY_QUEUE_CAPACITY) {
+                synchronized (deliveryRoom) {
+                    deliveryRoom.notifyAll();
                 }
+            }
+            return delivery.message();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    /*
+     * First stage of the inbound pipeline, run by the reader thread
+     * Reads the socket and runs the cheap checks of every datagram; the frames
+     * worth authenticating are handed to the verifiers
+     */
+    private void read() {
+        try {
+            for (;;) {
+                awaitDeliveryRoom();
+                drain();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - Stopped reading from the socket: {1}",
+                    config.getId(), e.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Waits while the delivered queue is full, so that a slow consumer holds the
+     * reader back (outside of any lock) instead of the verifiers
+     * Frames already read are still delivered, going past the capacity by at
+     * most the messages of those frames
+     */
+    private void awaitDeliveryRoom() throws InterruptedException {
+        if (undelivered.get() < DELIVERY_QUEUE_CAPACITY)
+            return;
 
-                // Serialize message
-                SignedMessage message = new SignedMessage(jsonString, signature.get());
-                byte[] buf = new Gson().toJson(message).getBytes();
+        synchronized (deliveryRoom) {
+            while (undelivered.get() >= DELIVERY_QUEUE_CAPACITY)
+                deliveryRoom.wait();
+        }
+    }
 
-                // Create UDP packet
-                DatagramPacket packet = new DatagramPacket(buf, buf.length, hostname, port);
+    /*
+     * Blocks until at least one datagram is available and reads up to
+     * MAX_DATAGRAMS_PER_WAKEUP of them
+     */
+    private void drain() throws IOException {
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            InetSocketAddress from;
+            while ((from = (InetSocketAddress) channel.receive(buffer)) == null) {
+                readSelector.select();
+                readSelector.selectedKeys().clear();
+            }
 
-                socket.send(packet);
+            for (int read = 1;; read++) {
+                buffer.flip();
+                inspect(buffer, from);
 
-            } catch (IOException e) {
-                e.printStackTrace();
-                throw new LedgerException(ErrorMessage.SocketSendingError);
+                buffer.clear();
+                if (read == MAX_DATAGRAMS_PER_WAKEUP
+                        || (from = (InetSocketAddress) channel.receive(buffer)) == null)
+                    return;
             }
-        }).start();
+        } finally {
+            bufferPool.release(buffer);
+        }
     }
 
     /*
-     * Receives a message from any node in the network (blocking)
+     * Runs the cheap checks of a frame straight on the receive buffer, from the
+     * cheapest to the most expensive; the frame is only copied and queued to be
+     * authenticated if some message survives them:
+     *   1. frame header (version, sizes of the signature or tag, the digests and the batch)
+     *   2. sender of the frame is a known node
+     *   3. each message header: sender, type, receive window and duplicates
+     *   4. each message header: filters added by the owner of the link
+     * Frame layout: version | senderId | session | signature | digests | count | message*
+     * Frames authenticated by a session tag are checked by the reader itself
+     * (they cost far less than handing them over)
      */
-    public Message receive() throws IOException, ClassNotFoundException {
+    private void inspect(ByteBuffer buffer, InetSocketAddress from) {
+        String senderId;
+        int session;
+        int signatureLength;
+        int signatureStart;
+        int signedStart;
+        int count;
+
+        try {
+            if (buffer.get() != MessageCodec.WIRE_VERSION)
+                throw new IllegalArgumentException("Unknown wire version");
+            senderId = matchSender(buffer, MessageCodec.readLength(buffer));
+            session = MessageCodec.readVarInt(buffer);
+            signatureLength = MessageCodec.readLength(buffer);
+            if (signatureLength > MAX_SIGNATURE_LENGTH)
+                throw new IllegalArgumentException("Signature too large");
+            signatureStart = buffer.position();
+            buffer.position(signatureStart + Math.max(signatureLength, 0));
+            signedStart = buffer.position();
+            skipDigests(buffer);
+            count = MessageCodec.readVarInt(buffer);
+            // Every message takes at least one byte
+            if (count < 0 || count > buffer.remaining())
+                throw new IllegalArgumentException("Invalid message count");
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - Discarding malformed datagram from {1}:{2}",
+                    config.getId(), from.getAddress(), from.getPort()));
+            stats.discarded();
+            return;
+        }
 
-        Message message;
-        Boolean local = false;
-        SignedMessage responseData = null;
-        DatagramPacket response = null;
-        
-        if (this.localhostQueue.size() > 0) {
-            message = this.localhostQueue.poll();
-            local = true; 
-            this.receivedAcks.add(message.getMessageId());
-        } else {
-            byte[] buf = new byte[65535];
-            response = new DatagramPacket(buf, buf.length);
+        // Unknown sender, there is no key to verify the signature with
+        if (senderId == null) {
+            stats.discarded();
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - Discarding message from unknown node at {1}:{2}",
+                    config.getId(), from.getAddress(), from.getPort()));
+            return;
+        }
+
+        int entriesStart = buffer.position();
+        stats.peer(senderId).datagramReceived(buffer.limit());
 
-            socket.receive(response);
+        // Answer duplicates and find out if anything must be delivered
+        boolean deliverable = false;
+        Header header = new Header();
+        try {
+            for (int i = 0; i < count; i++) {
+                if (inspectEntry(buffer, senderId, header))
+                    deliverable = true;
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - Discarding malformed datagram from {1}:{2}",
+                    config.getId(), from.getAddress(), from.getPort()));
+            return;
+        }
+        if (!deliverable)
+            return;
 
-            byte[] buffer = Arrays.copyOfRange(response.getData(), 0, response.getLength());
-            responseData = new Gson().fromJson(new String(buffer), SignedMessage.class);
-            message = new Gson().fromJson(responseData.getMessage(), Message.class);
+        // The receive buffer is reused for the next datagram
+        buffer.rewind();
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+        InboundFrame frame = new InboundFrame(senderId, from, copy, session, signatureStart, signatureLength,
+                signedStart, entriesStart, count, reorderers.get(senderId).nextTicket++);
+        if (verifiers == null || session != SIGNED)
+            authenticate(frame);
+        else
+            verifiers.execute(() -> authenticate(frame));
+    }
 
+    /*
+     * Second stage of the inbound pipeline, run by the verifiers (or by the
+     * reader when they are all busy)
+     * Verifies the signature (or session tag) of a frame, then releases the
+     * frames of its sender that are ready, in the order they were read
+     */
+    private void authenticate(InboundFrame frame) {
+        try {
             // Verify signature (byzantine nodes will avoid it to cooperate with each other)
             // BYZANTINE_TESTS
             // Any byzantine node will not verify signatures
-            if (config.getByzantineBehavior() == ByzantineBehavior.NONE
-                    && !RSAEncryption.verifySignature(responseData.getMessage(), responseData.getSignature(),
-                            nodes.get(message.getSenderId()).getPublicKeyPath())) {
-                message.setType(Message.Type.IGNORE);
-
-                LOGGER.log(Level.INFO, MessageFormat.format(
-                        "@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@\n"
-                                + "@      WARNING: INVALID MESSAGE SIGNATURE!      @\n"
-                                + "@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@\n"
-                                + "IT IS POSSIBLE THAT NODE {0}:{1} IS DOING SOMETHING NASTY!",
-                        InetAddress.getByName(response.getAddress().getHostName()), response.getPort()));
+            frame.authentic = config.getByzantineBehavior() != ByzantineBehavior.NONE
+                    || (frame.session == SIGNED
+                            ? verify(frame.buffer, frame.signatureStart, frame.signatureLength, frame.signedStart,
+                                    nodes.get(frame.senderId))
+                            : verifyTag(frame));
+        } catch (RuntimeException e) {
+            stats.invalidSignature();
+            frame.authentic = false;
+        }
 
-                return message;
+        if (!frame.authentic) {
+            LOGGER.log(Level.INFO, MessageFormat.format(
+                    "@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@\n"
+                            + "@      WARNING: INVALID MESSAGE SIGNATURE!      @\n"
+                            + "@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@\n"
+                            + "IT IS POSSIBLE THAT NODE {0}:{1} IS DOING SOMETHING NASTY!",
+                    frame.from.getAddress(), frame.from.getPort()));
+        }
+
+        // Third stage: frames of the same sender leave in the order they were read
+        Reorderer reorderer = reorderers.get(frame.senderId);
+        synchronized (reorderer) {
+            reorderer.verified.put(frame.ticket, frame);
+
+            InboundFrame next;
+            while ((next = reorderer.verified.remove(reorderer.nextRelease)) != null) {
+                reorderer.nextRelease++;
+                if (next.authentic)
+                    process(next);
             }
         }
+    }
 
-        String senderId = message.getSenderId();
-        int messageId = message.getMessageId();
+    /*
+     * Checks the session tag of a frame; frames with an invalid tag are counted
+     * as invalid signatures
+     */
+    private boolean verifyTag(InboundFrame frame) {
+        long start = System.nanoTime();
+        boolean valid = sessions.verify(frame.senderId, frame.session, frame.buffer, frame.signatureStart,
+                frame.signatureLength, frame.signedStart);
+        stats.getMacTime().recordSince(start);
+        if (!valid)
+            stats.invalidSignature();
+        return valid;
+    }
 
-        if (!nodes.containsKey(senderId))
-            throw new LedgerException(ErrorMessage.NoSuchNode);
+    /*
+     * Last stage of the inbound pipeline, run with the reorderer of the sender
+     * held (must never block)
+     * Decodes the messages of an authentic frame and hands the ones to be
+     * delivered over to receive
+     */
+    private void process(InboundFrame inbound) {
+        ByteBuffer frame = inbound.buffer;
+        String senderId = inbound.senderId;
+        Header header = new Header();
+
+        frame.position(inbound.entriesStart);
+        for (int i = 0; i < inbound.count; i++) {
+            int end = MessageCodec.readLength(frame) + frame.position();
+            int start = frame.position();
+            Type type = MessageCodec.readType(frame);
+            frame.position(start);
+
+            if (type == Type.ACK) {
+                // Handle ACKS, since it's possible to receive multiple acks from the same
+                // message
+                isDeliverable(frame, senderId, type, header);
+                if (senderId.equals(header.senderId)) {
+                    try {
+                        acknowledge(senderId, (AckMessage) MessageCodec.decode(frame.duplicate().limit(end)));
+                    } catch (LedgerException e) {
+                        LOGGER.log(Level.INFO, MessageFormat.format("{0} - Discarding malformed ACK from {1}",
+                                config.getId(), senderId));
+                    }
+                }
+            } else if (type == Type.SESSION) {
+                // Key agreement, handled by the link itself
+                isDeliverable(frame, senderId, type, header);
+                if (senderId.equals(header.senderId)) {
+                    try {
+                        sessions.handle(senderId, (SessionMessage) MessageCodec.decode(frame.duplicate().limit(end)));
+                    } catch (LedgerException e) {
+                        LOGGER.log(Level.INFO, MessageFormat.format("{0} - Discarding malformed {1} message from {2}",
+                                config.getId(), type, senderId));
+                    }
+                }
+            } else if (isDeliverable(frame, senderId, type, header)) {
+                ByteBuffer entry = frame.duplicate().limit(end);
+                try {
+                    Message message = MessageCodec.decode(entry);
+                    message = message instanceof FragmentMessage fragment
+                            ? reassemble(fragment, inbound.from)
+                            : deliver(message, inbound.from);
+                    if (message != null)
+                        hand(message);
+                } catch (LedgerException e) {
+                    LOGGER.log(Level.INFO, MessageFormat.format("{0} - Discarding malformed {1} message from {2}",
+                            config.getId(), type, senderId));
+                }
+            }
+            frame.position(end);
+        }
+    }
+
+    /*
+     * Queues a message from the network for receive without waiting; the reader
+     * stops reading while the queue is full
+     */
+    private void hand(Message message) {
+        undelivered.incrementAndGet();
+        delivered.add(new Delivery(message, false));
+    }
+
+    /*
+     * Inspects the header of the next message of a frame (consumes the message)
+     * Repeated messages are acknowledged again since the first ACK may have been
+     * lost
+     *
+     * @return True if the message must be delivered once the frame is verified
+     */
+    private boolean inspectEntry(ByteBuffer frame, String senderId, Header header) {
+        int length = MessageCodec.readLength(frame);
+        if (length < 0 || length > frame.remaining())
+            throw new IllegalArgumentException("Invalid message length");
+        int end = frame.position() + length;
+
+        Type type = MessageCodec.readType(frame);
+        frame.position(frame.position() - 1);
+        stats.peer(senderId).messageReceived(type, length);
+        boolean deliverable = isDeliverable(frame, senderId, type, header);
+
+        boolean unsequenced = type == Type.ACK || type == Type.SESSION;
+        if (!deliverable && !unsequenced && senderId.equals(header.senderId)
+                && receivedMessages.get(senderId).contains(header.messageId)) {
+            stats.peer(senderId).duplicate();
+            sendAck(senderId, header.messageId);
+        }
+
+        frame.position(end);
+        return deliverable || (unsequenced && senderId.equals(header.senderId));
+    }
+
+    /*
+     * Reads the header of a message and checks that it was sent by the sender
+     * of the frame, is of the type this link delivers, was not received before
+     * and passes the filters of the link
+     * Leaves the sender and identifier of the message in the header
+     */
+    private boolean isDeliverable(ByteBuffer frame, String senderId, Type type, Header header) {
+        int start = frame.position();
+        MessageCodec.readType(frame);
+        header.senderId = matchSender(frame, MessageCodec.readLength(frame));
+        header.messageId = MessageCodec.readVarInt(frame);
+        frame.position(start);
+
+        if (type == Type.ACK || type == Type.SESSION || !senderId.equals(header.senderId))
+            return false;
+
+        // It's not an ACK -> Must be of the type this link delivers (fragments are
+        // checked once reassembled)
+        if (type != Type.FRAGMENT && !this.messageClass.isAssignableFrom(MessageCodec.classOf(type))) {
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - Unexpected {1} message from {2}, ignoring",
+                    config.getId(), type, senderId));
+            return false;
+        }
+
+        // Too far ahead of the messages received so far => Discard without an ACK,
+        // the sender will retransmit it once the window has moved
+        SlidingWindow received = receivedMessages.get(senderId);
+        if (!received.accepts(header.messageId)) {
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - {1} message {2} from {3} is beyond the receive window",
+                    config.getId(), type, header.messageId, senderId));
+            return false;
+        }
+
+        // Message already received => Discard
+        if (received.contains(header.messageId))
+            return false;
+
+        // Rejected by a filter => Discard without an ACK, the sender will retransmit it
+        if (!passesFilters(senderId, type, frame)) {
+            stats.peer(senderId).filtered();
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - {1} message {2} from {3} filtered out",
+                    config.getId(), type, header.messageId, senderId));
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Finds the node whose identifier is encoded at the position of the buffer
+     * without decoding it into a string (consumes the identifier)
+     *
+     * @return The identifier of the node or null if there is no such node
+     */
+    private String matchSender(ByteBuffer in, int length) {
+        int start = in.position();
+        in.position(start + Math.max(length, 0));
+
+        for (Peer peer : peers) {
+            byte[] id = peer.encodedId();
+            if (id.length != length)
+                continue;
 
-        // Handle ACKS, since it's possible to receive multiple acks from the same
-        // message
-        if (message.getType().equals(Message.Type.ACK)) {
-            receivedAcks.add(messageId);
-            return message;
+            int i = 0;
+            while (i < length && in.get(start + i) == id[i])
+                i++;
+            if (i == length)
+                return peer.id();
         }
+        return null;
+    }
 
-        // It's not an ACK -> Deserialize for the correct type
-        if (!local)
-            message = new Gson().fromJson(responseData.getMessage(), this.messageClass);
+    /*
+     * Updates the link state with a received message
+     *
+     * @param message The decoded message
+     *
+     * @param from Address of the sender or null if it was sent locally
+     */
+    private Message deliver(Message message, InetSocketAddress from) {
+        String senderId = message.getSenderId();
+        int messageId = message.getMessageId();
 
-        boolean isRepeated = !receivedMessages.get(message.getSenderId()).add(messageId);
+        boolean isRepeated = !receivedMessages.get(senderId).add(messageId);
         Type originalType = message.getType();
         // Message already received (add returns false if already exists) => Discard
         if (isRepeated) {
             message.setType(Message.Type.IGNORE);
         }
 
+        // Every message received through the network is acknowledged by the next
+        // ACK frame to its sender
+        if (from != null)
+            sendAck(senderId, messageId);
+
+        return dispatch(message, originalType);
+    }
+
+    /*
+     * Adds a fragment to the message it belongs to
+     *
+     * @return The message if this was its last missing fragment, null otherwise
+     */
+    private Message reassemble(FragmentMessage fragment, InetSocketAddress from) {
+        String senderId = fragment.getSenderId();
+
+        // No room to reassemble the message => Discard without an ACK, the sender
+        // will retransmit the fragment later on
+        if (!reassembler.accepts(senderId, fragment)) {
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - Cannot reassemble fragment {1} of {2} from {3}",
+                    config.getId(), fragment.getIndex(), fragment.getGroup(), senderId));
+            return null;
+        }
+
+        deliver(fragment, from);
+        byte[] encoded = reassembler.add(senderId, fragment);
+        if (encoded == null)
+            return null;
+
+        Message message = MessageCodec.decode(encoded);
+        if (!senderId.equals(message.getSenderId()) || message.getType() == Type.ACK
+                || message.getType() == Type.SESSION || message.getType() == Type.FRAGMENT || !this.messageClass.isInstance(message)) {
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - Unexpected {1} message from {2}, ignoring",
+                    config.getId(), message.getType(), senderId));
+            return null;
+        }
+
+        // Duplicates were already filtered fragment by fragment
+        message.setMessageId(fragment.getGroup());
+        return dispatch(message, message.getType());
+    }
+
+    /*
+     * Applies the ACKs piggybacked on a received message
+     *
+     * @param message The message, of type IGNORE if it was repeated
+     *
+     * @param originalType Type of the message as it was received
+     */
+    private Message dispatch(Message message, Type originalType) {
+        String senderId = message.getSenderId();
+
         switch (message.getType()) {
             case CREATE, BALANCE, TRANSFER -> {
                 return message;
             }
-            case PRE_PREPARE -> {
+            case PRE_PREPARE, FRAGMENT -> {
                 return message;
             }
             case IGNORE -> {
@@ -343,37 +958,241 @@ public class PerfectLink {
             case PREPARE -> {
                 ConsensusMessage consensusMessage = (ConsensusMessage) message;
                 if (consensusMessage.getReplyTo() != null && consensusMessage.getReplyTo().equals(config.getId()))
-                    receivedAcks.add(consensusMessage.getReplyToMessageId());
+                    acknowledge(senderId, consensusMessage.getReplyToMessageId());
 
                 return message;
             }
             case COMMIT -> {
                 ConsensusMessage consensusMessage = (ConsensusMessage) message;
                 if (consensusMessage.getReplyTo() != null && consensusMessage.getReplyTo().equals(config.getId()))
-                    receivedAcks.add(consensusMessage.getReplyToMessageId());
+                    acknowledge(senderId, consensusMessage.getReplyToMessageId());
             }
             case REPLY -> {
                 LedgerResponse castedMessage = (LedgerResponse) message;
-                receivedAcks.addAll(castedMessage.getRepliesTo());
+                ackAll(senderId, castedMessage.getRepliesTo());
             }
             default -> {
-                System.out.println("WHAT: que mensagem vai responder com um ack: " + message.getType());
+                LOGGER.log(Level.FINE, MessageFormat.format("{0} - No ACKs piggybacked on {1} message from {2}",
+                        config.getId(), message.getType(), senderId));
+            }
+        }
+
+        return message;
+    }
+
+    /*
+     * ACKs are delayed for a short while so that a single frame acknowledges
+     * every message received from a node in the meantime
+     * Duplicates are acknowledged before their frame is authenticated, so the
+     * frame goes to the configured address of the node
+     *
+     * @param nodeId The node that sent the message
+     *
+     * @param messageId The identifier of the message to acknowledge
+     */
+    private void sendAck(String nodeId, int messageId) {
+        PendingAcks acks = pendingAcks.get(nodeId);
+        boolean flush = false;
+        synchronized (acks) {
+            acks.messageIds.add(messageId);
+            if (acks.messageIds.size() >= MAX_PENDING_ACKS) {
+                flush = true;
+            } else if (!acks.scheduled) {
+                acks.scheduled = true;
+                retransmissionTimer.schedule(() -> flushAcks(nodeId), ACK_DELAY);
             }
         }
 
-        if (!local) {
-            InetAddress address = InetAddress.getByName(response.getAddress().getHostAddress());
-            int port = response.getPort();
+        if (flush)
+            flushAcks(nodeId);
+    }
+
+    /*
+     * ACK is sent without needing for another ACK because
+     * we're assuming an eventually synchronous network
+     * Even if a node receives the message multiple times,
+     * it will discard duplicates
+     * The frame carries the floor of the messages received from the node plus
+     * the ranges of the ones to acknowledge above it
+     */
+    private void flushAcks(String nodeId) {
+        PendingAcks acks = pendingAcks.get(nodeId);
+        AckMessage ack;
+        synchronized (acks) {
+            acks.scheduled = false;
+            if (acks.messageIds.isEmpty())
+                return;
 
-            Message responseMessage = new Message(this.config.getId(), Message.Type.ACK);
-            responseMessage.setMessageId(messageId);
-            // ACK is sent without needing for another ACK because
-            // we're assuming an eventually synchronous network
-            // Even if a node receives the message multiple times,
-            // it will discard duplicates
-            unreliableSend(address, port, responseMessage);
+            ack = new AckMessage(this.config.getId(), receivedMessages.get(nodeId).getFloor());
+            acks.messageIds.forEach(ack::addReceived);
+            acks.messageIds.clear();
+        }
+
+        sessions.refresh(nodeId, false);
+        writer.enqueue(nodeId, addresses.get(nodeId), ack);
+    }
+
+    /*
+     * Sends a message of the key agreement of a session without guarantee of
+     * delivery (lost offers and requests are repeated while there is traffic to
+     * the node, lost answers once the initiator gives up on its offer)
+     */
+    private void sendSession(String nodeId, SessionMessage message) {
+        writer.enqueue(nodeId, addresses.get(nodeId), message);
+    }
+
+    /*
+     * Session the frames to a node are authenticated under (SIGNED => signature)
+     */
+    private int sessionTo(String nodeId) {
+        PeerSessions.Session session = sessions.sending(nodeId);
+        return session == null ? SIGNED : session.getEpoch();
+    }
+
+    /*
+     * Frames the batches to nodes with a session in use on their own,
+     * authenticated by its tag, and leaves the others to be signed
+     */
+    @Override
+    protected List<byte[]> frames(List<String> destIds, List<List<byte[]>> batches) {
+        byte[][] frames = new byte[batches.size()][];
+        List<Integer> signed = new ArrayList<>();
+        for (int i = 0; i < batches.size(); i++) {
+            PeerSessions.Session session = sessions.sending(destIds.get(i));
+            if (session == null)
+                signed.add(i);
+            else
+                frames[i] = frame(batches.get(i), session);
+        }
+        if (signed.size() == batches.size())
+            return super.frames(destIds, batches);
+
+        List<byte[]> signedFrames = super.frames(signed.stream().map(destIds::get).toList(),
+                signed.stream().map(batches::get).toList());
+        for (int i = 0; i < signed.size(); i++)
+            frames[signed.get(i)] = signedFrames.get(i);
+        return Arrays.asList(frames);
+    }
+
+    private record Peer(String id, byte[] encodedId) {
+    }
+
+    private record Delivery(Message message, boolean local) {
+    }
+
+    /*
+     * Datagram a message was written in and the session it was authenticated
+     * under
+     */
+    private record SentFrame(byte[] datagram, int session) {
+    }
+
+    /*
+     * Sender and identifier read from the header of a message
+     */
+    private static class Header {
+
+        private String senderId;
+        private int messageId;
+    }
+
+    /*
+     * Frame that passed the cheap checks, on its way through the verifiers
+     */
+    private static class InboundFrame {
+
+        private final String senderId;
+        private final InetSocketAddress from;
+        // Copy of the datagram
+        private final ByteBuffer buffer;
+        // Session the frame was authenticated under (SIGNED => signature)
+        private final int session;
+        private final int signatureStart;
+        private final int signatureLength;
+        private final int signedStart;
+        private final int entriesStart;
+        // Number of messages in the frame
+        private final int count;
+        // Position of the frame among the ones read from the same sender
+        private final long ticket;
+        // Set by the verifier before the frame is handed to the reorderer
+        private boolean authentic;
+
+        private InboundFrame(String senderId, InetSocketAddress from, ByteBuffer buffer, int session,
+                int signatureStart, int signatureLength, int signedStart, int entriesStart, int count, long ticket) {
+            this.senderId = senderId;
+            this.from = from;
+            this.buffer = buffer;
+            this.session = session;
+            this.signatureStart = signatureStart;
+            this.signatureLength = signatureLength;
+            this.signedStart = signedStart;
+            this.entriesStart = entriesStart;
+            this.count = count;
+            this.ticket = ticket;
+        }
+    }
+
+    private static class Reorderer {
+
+        // Ticket of the next frame read from the node (reader thread only)
+        private long nextTicket = 0;
+        // Ticket of the next frame to be processed
+        private long nextRelease = 0;
+        // Verified frames waiting for the ones read before them {ticket -> frame}
+        private final Map<Long, InboundFrame> verified = new HashMap<>();
+    }
+
+    private static class Outbox {
+
+        // Messages sent and not acknowledged yet
+        private int inFlight = 0;
+        // Messages waiting for room in the window
+        private final Queue<PendingMessage> backlog = new ArrayDeque<>();
+        // Size of the messages in the backlog (bytes)
+        private long backlogSize = 0;
+    }
+
+    private static class PendingAcks {
+
+        // Identifiers of the messages to acknowledge (sorted)
+        private final SortedSet<Integer> messageIds = new TreeSet<>();
+        // True if a flush is scheduled
+        private boolean scheduled = false;
+    }
+
+    private static class PendingMessage {
+
+        // Destination address
+        private final InetAddress address;
+        // Destination port
+        private final int port;
+        // Message waiting for an ACK
+        private final Message data;
+        // Encoded message
+        private final byte[] body;
+        // Datagram the message was last written in (written again by retransmissions)
+        private volatile SentFrame sent;
+        // Time to wait before the next retransmission
+        private int sleepTime;
+        // Number of the next attempt
+        private volatile int attempts = 1;
+        // Time of the last transmission (ns)
+        private volatile long sentAt;
+        // Scheduled retransmission
+        private volatile HashedWheelTimer.Timeout timeout;
+
+        private PendingMessage(InetAddress address, int port, Message data, byte[] body) {
+            this.address = address;
+            this.port = port;
+            this.data = data;
+            this.body = body;
+        }
+
+        private void cancel() {
+            HashedWheelTimer.Timeout scheduled = this.timeout;
+            if (scheduled != null)
+                scheduled.cancel();
         }
-        
-        return message;
     }
 }
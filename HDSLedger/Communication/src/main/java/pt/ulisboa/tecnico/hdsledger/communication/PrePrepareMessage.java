@@ -1,7 +1,5 @@
 package pt.ulisboa.tecnico.hdsledger.communication;
 
-import com.google.gson.Gson;
-
 public class PrePrepareMessage {
     
     // Block object serialized with Gson
@@ -30,7 +28,7 @@ public class PrePrepareMessage {
         this.leaderSignature = leaderSignature;
     }
 
-    public String toJson() {
-        return new Gson().toJson(this);
+    public byte[] toBytes() {
+        return MessageCodec.encodePrePrepare(this);
     }
 }   
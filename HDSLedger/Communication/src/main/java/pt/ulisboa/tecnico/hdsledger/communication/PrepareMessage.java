@@ -1,7 +1,5 @@
 package pt.ulisboa.tecnico.hdsledger.communication;
 
-import com.google.gson.Gson;
-
 public class PrepareMessage {
     
     // Block object serialized with Gson
@@ -30,7 +28,7 @@ public class PrepareMessage {
         this.leaderSignature = leaderSignature;
     }
 
-    public String toJson() {
-        return new Gson().toJson(this);
+    public byte[] toBytes() {
+        return MessageCodec.encodePrepare(this);
     }
 }   
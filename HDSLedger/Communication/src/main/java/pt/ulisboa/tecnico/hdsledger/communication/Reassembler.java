@@ -0,0 +1,158 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/*
+ * Reassembly of fragmented messages (thread-safe)
+ * The whole size of a message is reserved from the budget of its sender when
+ * its first fragment arrives; fragments of new messages are refused while the
+ * budget is exhausted, so that a single node cannot take all the memory and
+ * refused fragments are retransmitted by the sender later on
+ * Messages that get no new fragment for a while are dropped and their bytes
+ * returned to the budget, so that a sender that crashed halfway through a
+ * message does not keep its budget (and the memory) forever
+ */
+class Reassembler {
+
+    // Maximum number of bytes being reassembled for each sender
+    private final int budget;
+    // Messages being reassembled {sender -> {group -> partial message}}
+    private final Map<String, Map<Integer, Partial>> partials = new HashMap<>();
+    // Bytes reserved for each sender
+    private final Map<String, Integer> reserved = new HashMap<>();
+    // Time after which a message without new fragments is dropped (ns)
+    private final long timeout;
+    // Last time stale messages were looked for (ns)
+    private long lastEviction = System.nanoTime();
+
+    /*
+     * @param timeout Time after which a message without new fragments is
+     * dropped (ms)
+     */
+    Reassembler(int budget, long timeout) {
+        this.budget = budget;
+        this.timeout = timeout * 1_000_000;
+    }
+
+    /*
+     * Checks that a fragment is consistent and that there is room for it
+     * Must be called before the fragment is acknowledged
+     */
+    synchronized boolean accepts(String senderId, FragmentMessage fragment) {
+        evictStale(System.nanoTime());
+        Partial partial = partials.getOrDefault(senderId, Map.of()).get(fragment.getGroup());
+        if (partial != null)
+            return fits(fragment, partial.received.length, partial.data.length);
+
+        int length = fragment.getLength();
+        return fragment.getCount() > 1 && length > 0
+                && reserved.getOrDefault(senderId, 0) + length <= budget
+                && fits(fragment, fragment.getCount(), length);
+    }
+
+    /*
+     * Adds an accepted fragment
+     *
+     * @return The encoded message if this was its last missing fragment, null
+     * otherwise
+     */
+    synchronized byte[] add(String senderId, FragmentMessage fragment) {
+        Map<Integer, Partial> fromSender = partials.computeIfAbsent(senderId, id -> new HashMap<>());
+        Partial partial = fromSender.computeIfAbsent(fragment.getGroup(), group -> {
+            reserved.merge(senderId, fragment.getLength(), Integer::sum);
+            return new Partial(fragment.getCount(), fragment.getLength());
+        });
+
+        partial.updatedAt = System.nanoTime();
+        if (!partial.add(fragment))
+            return null;
+
+        fromSender.remove(fragment.getGroup());
+        reserved.merge(senderId, -partial.data.length, Integer::sum);
+        return partial.data;
+    }
+
+    /*
+     * Number of messages being reassembled
+     */
+    synchronized int size() {
+        return partials.values().stream().mapToInt(Map::size).sum();
+    }
+
+    /*
+     * Drops the messages that got no new fragment within the timeout, looking
+     * for them at most once per timeout
+     * Fragments of a dropped message that arrive later start it over
+     */
+    private void evictStale(long now) {
+        if (now - lastEviction < timeout)
+            return;
+        lastEviction = now;
+
+        for (Iterator<Map.Entry<String, Map<Integer, Partial>>> senders = partials.entrySet().iterator(); senders
+                .hasNext();) {
+            Map.Entry<String, Map<Integer, Partial>> sender = senders.next();
+            for (Iterator<Partial> fromSender = sender.getValue().values().iterator(); fromSender.hasNext();) {
+                Partial partial = fromSender.next();
+                if (now - partial.updatedAt >= timeout) {
+                    fromSender.remove();
+                    reserved.merge(sender.getKey(), -partial.data.length, Integer::sum);
+                }
+            }
+            if (sender.getValue().isEmpty())
+                senders.remove();
+        }
+    }
+
+    /*
+     * Offset of a fragment in the encoded message: every fragment has the size
+     * ceil(length / count) except the last one, which takes the rest
+     */
+    static int offsetOf(int index, int count, int length) {
+        return (int) ((long) index * ((length + count - 1) / count));
+    }
+
+    private static boolean fits(FragmentMessage fragment, int count, int length) {
+        int index = fragment.getIndex();
+        if (fragment.getCount() != count || fragment.getLength() != length || index < 0 || index >= count
+                || fragment.getPayload() == null)
+            return false;
+
+        int start = offsetOf(index, count, length);
+        int end = index == count - 1 ? length : offsetOf(index + 1, count, length);
+        return start < end && fragment.getPayload().length == end - start;
+    }
+
+    private static class Partial {
+
+        // Encoded message
+        private final byte[] data;
+        // Fragments received so far
+        private final boolean[] received;
+        private int missing;
+        // Last time a fragment was added (ns)
+        private long updatedAt;
+
+        private Partial(int count, int length) {
+            this.data = new byte[length];
+            this.received = new boolean[count];
+            this.missing = count;
+        }
+
+        /*
+         * @return True if the message is complete
+         */
+        private boolean add(FragmentMessage fragment) {
+            int index = fragment.getIndex();
+            if (received[index])
+                return false;
+
+            byte[] payload = fragment.getPayload();
+            System.arraycopy(payload, 0, data, offsetOf(index, received.length, data.length), payload.length);
+            received[index] = true;
+            return --missing == 0;
+        }
+    }
+}
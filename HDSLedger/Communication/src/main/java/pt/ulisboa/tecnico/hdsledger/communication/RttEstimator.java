@@ -0,0 +1,71 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+/*
+ * Round-trip time estimation of a peer (Jacobson/Karels)
+ * Keeps a smoothed RTT and its mean deviation, measured from the ACKs of
+ * messages that were only transmitted once (Karn's algorithm), and derives
+ * the retransmission timeout from them
+ */
+class RttEstimator {
+
+    // Gains of the smoothed RTT and of its deviation (1/8 and 1/4)
+    private static final int RTT_SHIFT = 3;
+    private static final int DEVIATION_SHIFT = 2;
+    // Lower bound of the timeout (ms), covers the delay of the ACKs
+    private static final int MIN_TIMEOUT = 50;
+
+    // Timeout used until the first sample (ms)
+    private final int initialTimeout;
+    // Upper bound of the timeout, including back-off (ms)
+    private final int maxTimeout;
+    // Smoothed RTT and mean deviation (us), srtt < 0 until the first sample
+    private long srtt = -1;
+    private long rttvar = 0;
+
+    RttEstimator(int initialTimeout, int maxTimeout) {
+        this.initialTimeout = initialTimeout;
+        this.maxTimeout = maxTimeout;
+    }
+
+    /*
+     * Updates the estimation with a new sample
+     *
+     * @param rtt Time between sending a message and receiving its ACK (us)
+     */
+    synchronized void sample(long rtt) {
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+            return;
+        }
+
+        long error = rtt - srtt;
+        srtt += error >> RTT_SHIFT;
+        rttvar += (Math.abs(error) - rttvar) >> DEVIATION_SHIFT;
+    }
+
+    /*
+     * Smoothed RTT (us), -1 until the first sample
+     */
+    synchronized long smoothedRtt() {
+        return srtt;
+    }
+
+    /*
+     * Timeout of the first transmission of a message (ms)
+     */
+    synchronized int timeout() {
+        if (srtt < 0)
+            return Math.min(initialTimeout, maxTimeout);
+
+        long timeout = (srtt + 4 * rttvar) / 1000;
+        return (int) Math.max(MIN_TIMEOUT, Math.min(timeout, maxTimeout));
+    }
+
+    /*
+     * Timeout of the next transmission after the given one timed out (ms)
+     */
+    int backOff(int timeout) {
+        return (int) Math.min((long) timeout << 1, maxTimeout);
+    }
+}
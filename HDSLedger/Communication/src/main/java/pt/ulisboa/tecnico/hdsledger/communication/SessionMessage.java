@@ -0,0 +1,42 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+public class SessionMessage extends Message {
+
+    private static final long serialVersionUID = 1L;
+
+    // Step of the key agreement
+    private final Phase phase;
+    // Session being agreed on (chosen by the initiator), or the stamp of a request
+    // (both grow with the clock, older ones are replays)
+    private final int epoch;
+    // Ephemeral public key of the sender (X.509, null in requests)
+    private final byte[] publicKey;
+
+    public enum Phase {
+        // Asks the initiator to offer a new session
+        REQUEST,
+        // Ephemeral key of the initiator
+        OFFER,
+        // Ephemeral key of the responder
+        ANSWER;
+    }
+
+    public SessionMessage(String senderId, Phase phase, int epoch, byte[] publicKey) {
+        super(senderId, Type.SESSION);
+        this.phase = phase;
+        this.epoch = epoch;
+        this.publicKey = publicKey;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public byte[] getPublicKey() {
+        return publicKey;
+    }
+}
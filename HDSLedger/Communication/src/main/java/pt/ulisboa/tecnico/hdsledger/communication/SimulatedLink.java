@@ -0,0 +1,153 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import pt.ulisboa.tecnico.hdsledger.communication.Message.Type;
+import pt.ulisboa.tecnico.hdsledger.utilities.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.MessageFormat;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+
+/*
+ * Link over a SimulatedNetwork, for running several nodes and clients in one
+ * JVM without opening sockets
+ * Messages are encoded on send and decoded on arrival, so nodes never share
+ * message objects; they are not signed, since the network itself tells the
+ * receiver which link a message came from
+ */
+public class SimulatedLink extends AbstractLink {
+
+    private static final CustomLogger LOGGER = new CustomLogger(SimulatedLink.class.getName());
+    // Number of sequence numbers above the floor tracked for each node
+    private static final int RECEIVE_WINDOW = 4096;
+    // Time the messages to a node may wait for its bandwidth before it is congested (ms)
+    private static final int CONGESTION_DELAY = 100;
+    private final SimulatedNetwork network;
+    // Next sequence number of the messages sent to each node
+    private final Map<String, AtomicInteger> sequenceNumbers = new ConcurrentHashMap<>();
+    // Set of received messages from specific node (the network duplicates messages)
+    private final Map<String, SlidingWindow> receivedMessages = new ConcurrentHashMap<>();
+    // Messages delivered to the caller of receive, including the ones sent to self
+    private final BlockingQueue<Message> inbound = new LinkedBlockingQueue<>();
+
+    public SimulatedLink(SimulatedNetwork network, ProcessConfig self, int port, ProcessConfig[] nodes,
+            Class<? extends Message> messageClass) {
+        this(network, self, port, nodes, messageClass, true);
+    }
+
+    public SimulatedLink(SimulatedNetwork network, ProcessConfig self, int port, ProcessConfig[] nodes,
+            Class<? extends Message> messageClass, boolean activateLogs) {
+
+        super(self, port, nodes, messageClass);
+        this.network = network;
+
+        for (ProcessConfig node : nodes) {
+            receivedMessages.put(node.getId(), new SlidingWindow(RECEIVE_WINDOW));
+            sequenceNumbers.put(node.getId(), new AtomicInteger(0));
+            // Time the messages queued to the node take to go through its bandwidth (ms)
+            stats.peer(node.getId()).gauge("backlog", () -> network.backlogOf(self.getId(), node.getId()));
+        }
+        stats.gauge("delivery queue", inbound::size);
+        if (activateLogs)
+            stats.dumpEvery(STATS_INTERVAL);
+
+        network.register(self.getHostname(), port, this);
+        if (!activateLogs) {
+            LogManager.getLogManager().reset();
+        }
+    }
+
+    @Override
+    public boolean send(String nodeId, Message data) {
+        ProcessConfig node = nodes.get(nodeId);
+        if (node == null)
+            throw new LedgerException(ErrorMessage.NoSuchNode);
+
+        data.setMessageId(sequenceNumbers.get(nodeId).getAndIncrement());
+
+        // Send message to local queue instead of using network if destination in self
+        if (nodeId.equals(config.getId())) {
+            inbound.add(data);
+            return true;
+        }
+
+        byte[] body = MessageCodec.encode(data);
+        stats.peer(nodeId).messageSent(data.getType(), body.length);
+        network.transmit(config.getId(), node, body);
+        return true;
+    }
+
+    @Override
+    public boolean isCongested(String nodeId) {
+        if (!nodes.containsKey(nodeId))
+            throw new LedgerException(ErrorMessage.NoSuchNode);
+
+        return network.backlogOf(config.getId(), nodeId) > CONGESTION_DELAY;
+    }
+
+    @Override
+    public Message receive() throws IOException {
+        try {
+            return inbound.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    /*
+     * Called by the network when a message reaches this link
+     *
+     * @param fromId The node the message came from
+     *
+     * @param body The encoded message
+     */
+    void arrive(String fromId, byte[] body) {
+        SlidingWindow received = receivedMessages.get(fromId);
+        if (received == null)
+            return;
+
+        Message message;
+        try {
+            message = MessageCodec.decode(body);
+        } catch (LedgerException e) {
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - Discarding malformed message from {1}",
+                    config.getId(), fromId));
+            return;
+        }
+
+        Type type = message.getType();
+        stats.peer(fromId).messageReceived(type, body.length);
+        if (!fromId.equals(message.getSenderId()) || type == Type.ACK || type == Type.FRAGMENT
+                || !this.messageClass.isInstance(message)) {
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - Unexpected {1} message from {2}, ignoring",
+                    config.getId(), type, fromId));
+            return;
+        }
+
+        // Too far ahead of the messages received so far => The sender tries again later
+        if (!received.accepts(message.getMessageId())) {
+            network.retry(this, fromId, body);
+            return;
+        }
+
+        // Rejected by a filter => The sender tries again later
+        if (!passesFilters(fromId, type, ByteBuffer.wrap(body))) {
+            stats.peer(fromId).filtered();
+            network.retry(this, fromId, body);
+            return;
+        }
+
+        // Message already received => Discard
+        if (received.add(message.getMessageId()))
+            inbound.add(message);
+        else
+            stats.peer(fromId).duplicate();
+    }
+}
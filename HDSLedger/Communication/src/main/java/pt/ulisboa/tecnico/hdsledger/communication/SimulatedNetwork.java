@@ -0,0 +1,218 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import pt.ulisboa.tecnico.hdsledger.utilities.ErrorMessage;
+import pt.ulisboa.tecnico.hdsledger.utilities.HashedWheelTimer;
+import pt.ulisboa.tecnico.hdsledger.utilities.LedgerException;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * In-memory network connecting the SimulatedLinks of one JVM
+ * Every message is delayed by the conditions of the directed link it goes
+ * through: latency plus uniform jitter, the time to push its bytes through
+ * the bandwidth of the link (messages queue behind each other) and, for every
+ * lost copy, the retransmission timeout a real sender would wait (doubling
+ * on each loss, as PerfectLink does); duplicated copies are delivered as well
+ * The random choices of each directed link come from its own generator, seeded
+ * from the seed of the network and the ends of the link, so runs can be
+ * repeated: a link draws the same choices for the same sequence of messages,
+ * whatever the other links carry in between
+ * Only the links of this JVM are reachable: sending to a node that has no link
+ * registered on the network fails at once
+ */
+public class SimulatedNetwork {
+
+    // Network shared by the links opened through Link.open
+    private static volatile SimulatedNetwork shared;
+    // Granularity of the delivery timer (ms)
+    private static final int TICK = 1;
+    // Number of buckets of the delivery timer
+    private static final int WHEEL_SIZE = 1024;
+    // Retransmission timeout modelled for the first loss of a message (ms)
+    private static final int RETRANSMISSION_TIMEOUT = 200;
+    // Maximum retransmission timeout modelled, including back-off (ms)
+    private static final int MAX_RETRANSMISSION_TIMEOUT = 10000;
+    // Link endpoints by address (hostname:port)
+    private final Map<String, SimulatedLink> endpoints = new ConcurrentHashMap<>();
+    // Conditions of specific directed links {from -> {to -> conditions}}
+    private final Map<String, Map<String, Conditions>> conditions = new ConcurrentHashMap<>();
+    // State of every directed link that carried a message {from -> {to -> channel}}
+    private final Map<String, Map<String, Channel>> channels = new ConcurrentHashMap<>();
+    // Conditions of the links without specific ones
+    private volatile Conditions defaults;
+    // Seed the generator of every directed link derives from
+    private final long seed;
+    private final HashedWheelTimer timer;
+
+    /*
+     * Conditions of a directed link
+     *
+     * @param latency One-way delay (ms)
+     *
+     * @param jitter Maximum extra delay, drawn uniformly for each copy (ms)
+     *
+     * @param loss Probability of losing each copy sent
+     *
+     * @param duplication Probability of delivering a message twice
+     *
+     * @param bandwidth Bytes per second, 0 for unlimited
+     */
+    public record Conditions(int latency, int jitter, double loss, double duplication, long bandwidth) {
+
+        public static final Conditions PERFECT = new Conditions(0, 0, 0, 0, 0);
+
+        public Conditions {
+            if (latency < 0 || jitter < 0 || loss < 0 || loss >= 1 || duplication < 0 || duplication > 1
+                    || bandwidth < 0)
+                throw new IllegalArgumentException("Invalid network conditions");
+        }
+    }
+
+    public SimulatedNetwork() {
+        this(Conditions.PERFECT, 0);
+    }
+
+    public SimulatedNetwork(Conditions defaults, long seed) {
+        this.defaults = defaults;
+        this.seed = seed;
+        this.timer = new HashedWheelTimer("simulated-network", TICK, TimeUnit.MILLISECONDS, WHEEL_SIZE);
+    }
+
+    /*
+     * Network used by the links opened with the SIMULATED transport
+     */
+    public static SimulatedNetwork shared() {
+        if (shared == null) {
+            synchronized (SimulatedNetwork.class) {
+                if (shared == null)
+                    shared = new SimulatedNetwork();
+            }
+        }
+        return shared;
+    }
+
+    public void setDefaultConditions(Conditions defaults) {
+        this.defaults = defaults;
+    }
+
+    /*
+     * Sets the conditions of the link from one node to another (one direction)
+     */
+    public void setConditions(String fromId, String toId, Conditions linkConditions) {
+        conditions.computeIfAbsent(fromId, id -> new ConcurrentHashMap<>()).put(toId, linkConditions);
+    }
+
+    public Conditions getConditions(String fromId, String toId) {
+        return conditions.getOrDefault(fromId, Map.of()).getOrDefault(toId, defaults);
+    }
+
+    void register(String hostname, int port, SimulatedLink link) {
+        if (endpoints.putIfAbsent(addressOf(hostname, port), link) != null)
+            throw new LedgerException(ErrorMessage.CannotOpenSocket);
+    }
+
+    /*
+     * Schedules the delivery of an encoded message to the link listening on the
+     * address of a node
+     *
+     * @throws LedgerException If no link listens there (the node runs in another
+     * JVM or did not open its link yet)
+     */
+    void transmit(String fromId, ProcessConfig to, byte[] body) {
+        SimulatedLink destination = endpoints.get(addressOf(to.getHostname(), to.getPort()));
+        if (destination == null)
+            throw new LedgerException(ErrorMessage.NodeNotListening);
+
+        Conditions link = getConditions(fromId, to.getId());
+        Channel channel = channels.computeIfAbsent(fromId, id -> new ConcurrentHashMap<>())
+                .computeIfAbsent(to.getId(), id -> new Channel(seed, fromId, id));
+
+        long delay;
+        long duplicateDelay = -1;
+        synchronized (channel) {
+            // Each lost copy costs a retransmission timeout and bandwidth
+            delay = 0;
+            long timeout = RETRANSMISSION_TIMEOUT;
+            int copies = 1;
+            while (channel.random.nextDouble() < link.loss()) {
+                delay += timeout;
+                timeout = Math.min(2 * timeout, MAX_RETRANSMISSION_TIMEOUT);
+                copies++;
+            }
+            delay += channel.occupy(link.bandwidth(), (long) copies * body.length) + link.latency()
+                    + channel.jitter(link);
+            if (channel.random.nextDouble() < link.duplication())
+                duplicateDelay = delay + channel.jitter(link);
+        }
+
+        schedule(destination, fromId, body, delay);
+        if (duplicateDelay >= 0)
+            schedule(destination, fromId, body, duplicateDelay);
+    }
+
+    /*
+     * Delivers a message again later (the receiver was not ready for it)
+     */
+    void retry(SimulatedLink destination, String fromId, byte[] body) {
+        schedule(destination, fromId, body, RETRANSMISSION_TIMEOUT);
+    }
+
+    /*
+     * Time the messages queued on the link from one node to another still take
+     * to go through its bandwidth (ms)
+     */
+    long backlogOf(String fromId, String toId) {
+        Channel channel = channels.getOrDefault(fromId, Map.of()).get(toId);
+        return channel == null ? 0 : channel.backlog();
+    }
+
+    private void schedule(SimulatedLink destination, String fromId, byte[] body, long delay) {
+        timer.schedule(() -> destination.arrive(fromId, body), delay);
+    }
+
+    private static String addressOf(String hostname, int port) {
+        return hostname + ":" + port;
+    }
+
+    /*
+     * Bandwidth state and random choices of a directed link
+     */
+    private static class Channel {
+
+        // Instant the link finishes pushing the bytes queued so far (ns)
+        private long busyUntil = 0;
+        // Generator of the losses, jitter and duplicates of the link (guarded by
+        // the channel)
+        private final Random random;
+
+        private Channel(long seed, String fromId, String toId) {
+            this.random = new Random(31 * seed + (fromId + "->" + toId).hashCode());
+        }
+
+        private long jitter(Conditions link) {
+            return link.jitter() == 0 ? 0 : random.nextInt(link.jitter() + 1);
+        }
+
+        /*
+         * Queues some bytes on the link
+         *
+         * @return Time until the last of them is through (ms)
+         */
+        private synchronized long occupy(long bandwidth, long bytes) {
+            if (bandwidth == 0)
+                return 0;
+
+            long now = System.nanoTime();
+            busyUntil = Math.max(busyUntil, now) + TimeUnit.SECONDS.toNanos(bytes) / bandwidth;
+            return TimeUnit.NANOSECONDS.toMillis(busyUntil - now);
+        }
+
+        private synchronized long backlog() {
+            return Math.max(0, TimeUnit.NANOSECONDS.toMillis(busyUntil - System.nanoTime()));
+        }
+    }
+}
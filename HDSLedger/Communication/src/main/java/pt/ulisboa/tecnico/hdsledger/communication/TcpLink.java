@@ -0,0 +1,822 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import pt.ulisboa.tecnico.hdsledger.communication.Message.Type;
+import pt.ulisboa.tecnico.hdsledger.utilities.*;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig.ByzantineBehavior;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.MessageFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+
+/*
+ * Link over long-lived TCP connections
+ * Each node keeps one outbound connection to every other node, opened on the
+ * first message and reopened after a failure, and written by its own thread
+ * Inbound connections are accepted and read by a single selector thread; it
+ * trusts the signature of each frame, not the connection it came from. Only
+ * hosts of the configured nodes may connect, connections that have not sent
+ * an authentic frame yet are few (the oldest ones are dropped), and each node
+ * keeps at most MAX_CONNECTIONS_PER_NODE; frame buffers grow with the bytes
+ * that arrive, not with the length the frame claims
+ * TCP already orders and retransmits the bytes of a connection, but the bytes
+ * handed to a connection that fails are lost: each node acknowledges the
+ * messages it received with a cumulative ACK, sent over its own outbound
+ * connection (piggybacked on its messages or after ACK_DELAY), and messages
+ * not acknowledged yet are written again on the next connection. A connection
+ * whose messages go unacknowledged for too long is considered lost
+ * Frames are length-prefixed and carry the same signed batches as the
+ * datagrams of PerfectLink
+ * The selector thread never blocks: while the delivered queue is full, the
+ * connections that deliver to it are no longer read (TCP then holds their
+ * senders back)
+ */
+public class TcpLink extends AbstractLink {
+
+    private static final CustomLogger LOGGER = new CustomLogger(TcpLink.class.getName());
+    // Largest frame accepted from a connection (bytes)
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024 + 64 * 1024;
+    // Size budget of the messages packed into one frame (larger messages go alone)
+    private static final int MAX_BATCH_SIZE = 64 * 1024;
+    // Maximum size of the messages waiting to be written to each node (bytes)
+    private static final long BACKLOG_BUDGET = 32L * 1024 * 1024;
+    // Number of queued messages from which a node is considered congested
+    private static final int CONGESTION_THRESHOLD = 256;
+    // Time to wait before reconnecting to a node (ms)
+    private static final int RECONNECT_DELAY = 200;
+    // Maximum time to wait before reconnecting to a node, including back-off (ms)
+    private static final int MAX_RECONNECT_DELAY = 5000;
+    // Number of sequence numbers above the floor tracked for each node
+    private static final int RECEIVE_WINDOW = 4096;
+    // Initial size of the buffer of an inbound frame (grown as its bytes arrive)
+    private static final int INITIAL_FRAME_BUFFER = 64 * 1024;
+    // Maximum number of frames read from a connection on each wakeup (others wait their turn)
+    private static final int MAX_FRAMES_PER_WAKEUP = 64;
+    // Inbound connections a node may keep (a reconnection may overlap the old one)
+    private static final int MAX_CONNECTIONS_PER_NODE = 2;
+    // Number of messages from the network waiting to be received beyond which
+    // connections are no longer read
+    private static final int DELIVERY_QUEUE_CAPACITY = 4096;
+    // Time to wait for more messages to piggyback an ACK on (ms)
+    private static final int ACK_DELAY = 20;
+    // Time to wait for an ACK before a connection is considered lost (ms)
+    private static final int ACK_TIMEOUT = 2000;
+    // Maximum time to wait for an ACK, including back-off (ms)
+    private static final int MAX_ACK_TIMEOUT = 30000;
+    // Listening socket
+    private final ServerSocketChannel server;
+    // Selector the inbound connections are accepted and read with
+    private final Selector selector;
+    // Hosts of the nodes, the only ones allowed to connect
+    private final Set<InetAddress> hosts = new HashSet<>();
+    // Maximum number of inbound connections that did not send an authentic frame yet
+    private final int maxPendingConnections;
+    // Inbound connections that did not send an authentic frame yet, oldest first
+    // (selector thread only)
+    private final Deque<Inbound> pendingConnections = new ArrayDeque<>();
+    // Inbound connections of each node, oldest first (selector thread only)
+    private final Map<String, Deque<Inbound>> nodeConnections = new HashMap<>();
+    // Outbound connection to each node
+    private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+    // Next sequence number of the messages sent to each node
+    private final Map<String, AtomicInteger> sequenceNumbers = new ConcurrentHashMap<>();
+    // Set of received messages from specific node (a frame may be written again
+    // after a reconnection)
+    private final Map<String, SlidingWindow> receivedMessages = new ConcurrentHashMap<>();
+    // Messages delivered to the caller of receive, including the ones sent to self
+    private final BlockingQueue<Delivery> delivered = new LinkedBlockingQueue<>();
+    // Messages from the network in the delivered queue
+    private final AtomicInteger undelivered = new AtomicInteger();
+    // Inbound connections not read until the delivered queue has room again
+    // (selector thread only)
+    private final List<Inbound> pausedConnections = new ArrayList<>();
+
+    public TcpLink(ProcessConfig self, int port, ProcessConfig[] nodes, Class<? extends Message> messageClass) {
+        this(self, port, nodes, messageClass, true);
+    }
+
+    public TcpLink(ProcessConfig self, int port, ProcessConfig[] nodes, Class<? extends Message> messageClass,
+            boolean activateLogs) {
+
+        super(self, port, nodes, messageClass);
+
+        for (ProcessConfig node : nodes) {
+            String id = node.getId();
+            receivedMessages.put(id, new SlidingWindow(RECEIVE_WINDOW));
+            sequenceNumbers.put(id, new AtomicInteger(0));
+            if (!id.equals(config.getId()))
+                connections.put(id, new Connection(node));
+            try {
+                hosts.add(InetAddress.getByName(node.getHostname()));
+            } catch (UnknownHostException e) {
+                LOGGER.log(Level.INFO, MessageFormat.format("{0} - Unknown host {1} of node {2}", config.getId(),
+                        node.getHostname(), id));
+            }
+        }
+        this.maxPendingConnections = MAX_CONNECTIONS_PER_NODE * nodes.length;
+
+        try {
+            this.server = ServerSocketChannel.open();
+            this.server.bind(new InetSocketAddress(InetAddress.getByName(config.getHostname()), port));
+            this.server.configureBlocking(false);
+            this.selector = Selector.open();
+            this.server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            throw new LedgerException(ErrorMessage.CannotOpenSocket);
+        }
+        if (!activateLogs) {
+            LogManager.getLogManager().reset();
+        }
+
+        stats.gauge("delivery queue", undelivered::get);
+        connections.forEach((nodeId, connection) -> stats.peer(nodeId).gauge("backlog", () -> {
+            synchronized (connection) {
+                return connection.backlog.size();
+            }
+        }));
+        if (activateLogs)
+            stats.dumpEvery(STATS_INTERVAL);
+
+        String name = MessageFormat.format("{0}-tcp-{1}", self.getId(), String.valueOf(port));
+        start(this::serve, name + "-selector");
+        connections.values().forEach(connection -> start(connection::run, name + "-writer-" + connection.node.getId()));
+    }
+
+    private static void start(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*
+     * Queues a message to be written to a specific node
+     *
+     * @param nodeId The node identifier
+     *
+     * @param data The message to be sent
+     *
+     * @return False if the message was refused because the node is not keeping up
+     */
+    @Override
+    public boolean send(String nodeId, Message data) {
+        if (!nodes.containsKey(nodeId))
+            throw new LedgerException(ErrorMessage.NoSuchNode);
+
+        // Send message to local queue instead of using network if destination in self
+        if (nodeId.equals(config.getId())) {
+            data.setMessageId(sequenceNumbers.get(nodeId).getAndIncrement());
+            delivered.add(new Delivery(data, true));
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - Message {1} (locally) sent successfully",
+                    config.getId(), data.getType()));
+            return true;
+        }
+
+        Connection connection = connections.get(nodeId);
+        synchronized (connection) {
+            // Refused before taking a sequence number, so the node sees no gap
+            if (connection.backlogSize >= BACKLOG_BUDGET) {
+                LOGGER.log(Level.INFO, MessageFormat.format("{0} - Backlog to {1} is full, refusing {2} message",
+                        config.getId(), nodeId, data.getType()));
+                return false;
+            }
+
+            data.setMessageId(sequenceNumbers.get(nodeId).getAndIncrement());
+            byte[] body = MessageCodec.encode(data);
+            if (body.length > MAX_FRAME_SIZE - MAX_BATCH_SIZE)
+                throw new LedgerException(ErrorMessage.MessageTooLarge);
+            stats.peer(nodeId).messageSent(data.getType(), body.length);
+
+            connection.backlog.add(new Outgoing(data.getMessageId(), body));
+            connection.backlogSize += body.length;
+            connection.notifyAll();
+        }
+
+        LOGGER.log(Level.INFO, MessageFormat.format("{0} - Queued {1} message to {2} with message ID {3}",
+                config.getId(), data.getType(), nodeId, data.getMessageId()));
+        return true;
+    }
+
+    @Override
+    public boolean isCongested(String nodeId) {
+        if (!nodes.containsKey(nodeId))
+            throw new LedgerException(ErrorMessage.NoSuchNode);
+
+        Connection connection = connections.get(nodeId);
+        if (connection == null)
+            return false;
+
+        synchronized (connection) {
+            return connection.backlog.size() >= CONGESTION_THRESHOLD;
+        }
+    }
+
+    /*
+     * Receives a message from any node in the network (blocking)
+     */
+    @Override
+    public Message receive() throws IOException {
+        try {
+            Delivery delivery = delivered.take();
+            // Room again => Wake the selector up to resume the paused connections
+            if (!delivery.local() && undelivered.getAndDecrement() == DELIVERY_QUEUE_CAPACITY)
+                selector.wakeup();
+            return delivery.message();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    /*
+     * Accepts and reads every inbound connection, until the selector fails
+     */
+    private void serve() {
+        try {
+            for (;;) {
+                if (!pausedConnections.isEmpty() && undelivered.get() < DELIVERY_QUEUE_CAPACITY)
+                    resume();
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept();
+                    else if (key.isReadable())
+                        read((Inbound) key.attachment());
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - Stopped accepting connections: {1}",
+                    config.getId(), e.getMessage()));
+        }
+    }
+
+    /*
+     * Stops reading an inbound connection until the delivered queue has room
+     */
+    private void pause(Inbound connection) {
+        connection.key.interestOps(0);
+        pausedConnections.add(connection);
+    }
+
+    private void resume() {
+        for (Inbound connection : pausedConnections) {
+            if (connection.key.isValid())
+                connection.key.interestOps(SelectionKey.OP_READ);
+        }
+        pausedConnections.clear();
+    }
+
+    /*
+     * Accepts the pending inbound connections from the hosts of the nodes; past
+     * maxPendingConnections, the oldest connection that has not sent an authentic
+     * frame is dropped
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            InetSocketAddress from = (InetSocketAddress) channel.getRemoteAddress();
+            if (!hosts.contains(from.getAddress())) {
+                LOGGER.log(Level.INFO, MessageFormat.format("{0} - Refusing connection from unknown host {1}",
+                        config.getId(), from));
+                close(channel);
+                continue;
+            }
+
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Inbound connection = new Inbound(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                pendingConnections.add(connection);
+            } catch (IOException e) {
+                close(channel);
+                continue;
+            }
+
+            if (pendingConnections.size() > maxPendingConnections)
+                close(pendingConnections.peek(), "too many connections");
+        }
+    }
+
+    /*
+     * Reads the bytes available on an inbound connection, processing every
+     * frame completed, up to MAX_FRAMES_PER_WAKEUP of them
+     * Connections that close or send something malformed are dropped, and the
+     * ones read while the delivered queue is full are paused
+     */
+    private void read(Inbound connection) {
+        SocketChannel channel = connection.channel;
+        try {
+            for (int frames = 0; frames < MAX_FRAMES_PER_WAKEUP;) {
+                if (undelivered.get() >= DELIVERY_QUEUE_CAPACITY) {
+                    pause(connection);
+                    return;
+                }
+                if (connection.frame == null) {
+                    if (channel.read(connection.header) < 0)
+                        throw new EOFException();
+                    if (connection.header.hasRemaining())
+                        return;
+
+                    int length = connection.header.getInt(0);
+                    connection.header.clear();
+                    if (length <= 0 || length > MAX_FRAME_SIZE) {
+                        close(connection, MessageFormat.format("frame of {0} bytes", length));
+                        return;
+                    }
+                    connection.length = length;
+                    connection.frame = ByteBuffer.allocate(Math.min(length, INITIAL_FRAME_BUFFER));
+                }
+
+                // Buffer full before the end of the frame => Grow it, the bytes did arrive
+                ByteBuffer frame = connection.frame;
+                if (!frame.hasRemaining()) {
+                    frame = ByteBuffer.allocate(Math.min(2 * frame.capacity(), connection.length)).put(frame.flip());
+                    connection.frame = frame;
+                }
+
+                int read = channel.read(frame);
+                if (read < 0)
+                    throw new EOFException();
+                if (frame.position() < connection.length) {
+                    if (read == 0)
+                        return;
+                    continue;
+                }
+
+                connection.frame = null;
+                frames++;
+                if (!process(connection, frame.flip())) {
+                    close(connection, "invalid frame");
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // Connection closed by the other side, it reconnects if it has more to say
+            close(connection, null);
+        }
+    }
+
+    /*
+     * Binds an inbound connection to the node whose authentic frame it carried;
+     * past MAX_CONNECTIONS_PER_NODE, the oldest connection of the node is
+     * dropped (it reconnected)
+     */
+    private void bind(Inbound connection, String nodeId) {
+        pendingConnections.remove(connection);
+        connection.nodeId = nodeId;
+
+        Deque<Inbound> bound = nodeConnections.computeIfAbsent(nodeId, id -> new ArrayDeque<>());
+        bound.add(connection);
+        if (bound.size() > MAX_CONNECTIONS_PER_NODE)
+            close(bound.peek(), "replaced by a newer connection");
+    }
+
+    /*
+     * @param reason Logged reason to drop the connection, null if it was closed
+     * by the other side
+     */
+    private void close(Inbound connection, String reason) {
+        if (reason != null) {
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - Closing connection from {1}: {2}", config.getId(),
+                    connection.channel.socket().getRemoteSocketAddress(), reason));
+        }
+
+        if (connection.nodeId == null)
+            pendingConnections.remove(connection);
+        else
+            nodeConnections.get(connection.nodeId).remove(connection);
+        pausedConnections.remove(connection);
+        if (connection.key != null)
+            connection.key.cancel();
+        close(connection.channel);
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /*
+     * Checks the signature of a frame, queues its messages for delivery and
+     * applies its ACKs
+     * The signature is only verified if the frame carries an ACK or some
+     * message that was not received before (frames written again after a
+     * reconnection); the first authentic frame of a connection binds it to its
+     * sender, whose frames are the only ones it may carry from then on
+     * Messages are acknowledged even if they were all received before, since
+     * the ACK sent then may have been lost
+     * Frame layout: version | senderId | session | signature | digests | count | message*
+     *
+     * @return False if the frame is not valid (the connection is dropped)
+     */
+    private boolean process(Inbound connection, ByteBuffer frame) {
+        String senderId;
+        int signatureLength;
+        int signatureStart;
+        int signedStart;
+        int count;
+
+        try {
+            if (frame.get() != MessageCodec.WIRE_VERSION)
+                throw new IllegalArgumentException("Unknown wire version");
+            senderId = MessageCodec.readString(frame);
+            // Sessions are only agreed on by datagram links, every frame here is signed
+            if (MessageCodec.readVarInt(frame) != SIGNED)
+                throw new IllegalArgumentException("Unexpected session frame");
+            signatureLength = MessageCodec.readLength(frame);
+            if (signatureLength > MAX_SIGNATURE_LENGTH)
+                throw new IllegalArgumentException("Signature too large");
+            signatureStart = frame.position();
+            frame.position(signatureStart + Math.max(signatureLength, 0));
+            signedStart = frame.position();
+            skipDigests(frame);
+            count = MessageCodec.readVarInt(frame);
+            // Every message takes at least one byte
+            if (count < 0 || count > frame.remaining())
+                throw new IllegalArgumentException("Invalid message count");
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - Discarding malformed frame", config.getId()));
+            stats.discarded();
+            return false;
+        }
+
+        ProcessConfig sender = nodes.get(senderId);
+        if (sender == null || senderId.equals(config.getId())
+                || (connection.nodeId != null && !connection.nodeId.equals(senderId))) {
+            stats.discarded();
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - Discarding frame from unexpected node {1}",
+                    config.getId(), senderId));
+            return false;
+        }
+
+        int entriesStart = frame.position();
+        stats.peer(senderId).datagramReceived(frame.limit());
+        try {
+            Contents contents = inspect(frame, senderId, count);
+            if (contents.messages())
+                connections.get(senderId).acknowledgeLater();
+            if (!contents.authenticate())
+                return true;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - Discarding malformed frame from {1}",
+                    config.getId(), senderId));
+            return false;
+        }
+
+        // Verify signature (byzantine nodes will avoid it to cooperate with each other)
+        // BYZANTINE_TESTS
+        // Any byzantine node will not verify signatures
+        if (config.getByzantineBehavior() == ByzantineBehavior.NONE && !verify(frame, signatureStart,
+                signatureLength, signedStart, sender)) {
+            LOGGER.log(Level.INFO, MessageFormat.format(
+                    "@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@\n"
+                            + "@      WARNING: INVALID MESSAGE SIGNATURE!      @\n"
+                            + "@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@\n"
+                            + "IT IS POSSIBLE THAT NODE {0} IS DOING SOMETHING NASTY!",
+                    senderId));
+            return false;
+        }
+        if (connection.nodeId == null)
+            bind(connection, senderId);
+
+        frame.position(entriesStart);
+        try {
+            for (int i = 0; i < count; i++) {
+                int length = MessageCodec.readLength(frame);
+                if (length < 0 || length > frame.remaining())
+                    throw new IllegalArgumentException("Invalid message length");
+                int end = frame.position() + length;
+
+                Message message = MessageCodec.decode(frame.duplicate().limit(end));
+                if (message instanceof AckMessage ack && senderId.equals(ack.getSenderId()))
+                    connections.get(senderId).acknowledged(ack.getCumulative());
+                else
+                    deliver(senderId, message);
+                frame.position(end);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | LedgerException e) {
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - Discarding malformed frame from {1}",
+                    config.getId(), senderId));
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Looks at the headers of the messages of a frame (consumes the messages
+     * and counts them in the statistics of the sender)
+     */
+    private Contents inspect(ByteBuffer frame, String senderId, int count) {
+        SlidingWindow received = receivedMessages.get(senderId);
+        LinkStats.PeerStats peer = stats.peer(senderId);
+        boolean messages = false;
+        boolean authenticate = false;
+        for (int i = 0; i < count; i++) {
+            int length = MessageCodec.readLength(frame);
+            if (length < 0 || length > frame.remaining())
+                throw new IllegalArgumentException("Invalid message length");
+            int end = frame.position() + length;
+
+            // type | senderId | messageId
+            Type type = MessageCodec.readType(frame);
+            peer.messageReceived(type, length);
+            MessageCodec.readString(frame);
+            int messageId = MessageCodec.readVarInt(frame);
+            if (type == Type.ACK) {
+                authenticate = true;
+            } else {
+                messages = true;
+                if (!received.contains(messageId))
+                    authenticate = true;
+                else
+                    peer.duplicate();
+            }
+            frame.position(end);
+        }
+        return new Contents(messages, authenticate);
+    }
+
+    /*
+     * @param messages True if the frame carries messages to acknowledge
+     *
+     * @param authenticate True if the frame carries an ACK or a message not
+     * received before
+     */
+    private record Contents(boolean messages, boolean authenticate) {
+    }
+
+    /*
+     * Filters are not applied: TCP does not retransmit, so a message rejected
+     * by one would never be delivered
+     */
+    @Override
+    public void addFilter(InboundFilter filter) {
+    }
+
+    private void deliver(String senderId, Message message) {
+        Type type = message.getType();
+        if (!senderId.equals(message.getSenderId()) || type == Type.ACK || type == Type.FRAGMENT
+                || !this.messageClass.isInstance(message)) {
+            LOGGER.log(Level.INFO, MessageFormat.format("{0} - Unexpected {1} message from {2}, ignoring",
+                    config.getId(), type, senderId));
+            return;
+        }
+
+        // Message already received (frames are written again after a reconnection) => Discard
+        if (!receivedMessages.get(senderId).add(message.getMessageId()))
+            return;
+
+        undelivered.incrementAndGet();
+        delivered.add(new Delivery(message, false));
+    }
+
+    private record Delivery(Message message, boolean local) {
+    }
+
+    /*
+     * Encoded message waiting to be written or acknowledged
+     */
+    private record Outgoing(int messageId, byte[] body) {
+    }
+
+    /*
+     * State of an inbound connection, only touched by the selector thread
+     */
+    private static class Inbound {
+
+        private final SocketChannel channel;
+        private SelectionKey key;
+        // Length prefix of the next frame
+        private final ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        // Frame being read (null while reading its length) and its length
+        private ByteBuffer frame;
+        private int length;
+        // Node whose authentic frames the connection carries (null until the first one)
+        private String nodeId;
+
+        private Inbound(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /*
+     * Outbound connection to a node, driven by its own writer thread
+     * Messages are queued by send and written in signed batches, along with the
+     * ACK of the messages received from the node; they are kept until the node
+     * acknowledges them and written again on the next connection if this one
+     * fails or goes unacknowledged for too long
+     */
+    private class Connection {
+
+        private final ProcessConfig node;
+        // Messages waiting to be written
+        private final Deque<Outgoing> backlog = new ArrayDeque<>();
+        // Messages written and not acknowledged yet, oldest first
+        private final Deque<Outgoing> unacked = new ArrayDeque<>();
+        // Size of the messages in the backlog or not acknowledged yet (bytes)
+        private long backlogSize = 0;
+        // True if the messages received from the node must be acknowledged
+        private boolean ackDue = false;
+        // Time the ACK became due (ns)
+        private long ackDueSince;
+        // Time since when an ACK is awaited: the last ACK received or the first
+        // write after every message was acknowledged (ns)
+        private long awaitingSince;
+        // Time to wait for an ACK before the connection is considered lost (ms)
+        private int ackTimeout = ACK_TIMEOUT;
+
+        private Connection(ProcessConfig node) {
+            this.node = node;
+        }
+
+        private void run() {
+            SocketChannel channel = null;
+            ByteBuffer frame = null;
+            int reconnectDelay = RECONNECT_DELAY;
+
+            for (;;) {
+                try {
+                    if (frame == null)
+                        frame = nextFrame();
+                    if (channel == null) {
+                        channel = SocketChannel.open(new InetSocketAddress(node.getHostname(), node.getPort()));
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        reconnectDelay = RECONNECT_DELAY;
+                        LOGGER.log(Level.INFO, MessageFormat.format("{0} - Connected to {1}:{2}",
+                                config.getId(), node.getHostname(), String.valueOf(node.getPort())));
+                    }
+
+                    while (frame.hasRemaining())
+                        channel.write(frame);
+                    stats.peer(node.getId()).datagramSent(frame.limit());
+                    frame = null;
+                } catch (InterruptedException e) {
+                    return;
+                } catch (LedgerException e) {
+                    LOGGER.log(Level.INFO, MessageFormat.format("{0} - Failed to write frame to {1}: {2}",
+                            config.getId(), node.getId(), e.getMessage()));
+                    frame = null;
+                } catch (IOException e) {
+                    LOGGER.log(Level.INFO, MessageFormat.format("{0} - Connection to {1}:{2} failed ({3}), retrying in {4}ms",
+                            config.getId(), node.getHostname(), String.valueOf(node.getPort()), e.getMessage(),
+                            reconnectDelay));
+                    close(channel);
+                    channel = null;
+                    // The frame in flight is rebuilt from the messages written again
+                    frame = null;
+                    rewind();
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(reconnectDelay);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    reconnectDelay = Math.min(2 * reconnectDelay, MAX_RECONNECT_DELAY);
+                }
+            }
+        }
+
+        /*
+         * Blocks until there are messages to write or an ACK to send and packs
+         * as many messages as the batch size budget allows into a length-prefixed
+         * frame, after the ACK
+         *
+         * @throws IOException If the messages written went unacknowledged for
+         * longer than the ACK timeout
+         */
+        private ByteBuffer nextFrame() throws InterruptedException, IOException {
+            List<byte[]> bodies = new ArrayList<>();
+            synchronized (this) {
+                for (;;) {
+                    long now = System.nanoTime();
+                    long ackWait = ackDue ? ackDueSince + TimeUnit.MILLISECONDS.toNanos(ACK_DELAY) - now
+                            : Long.MAX_VALUE;
+                    long timeoutWait = unacked.isEmpty() ? Long.MAX_VALUE
+                            : awaitingSince + TimeUnit.MILLISECONDS.toNanos(ackTimeout) - now;
+                    if (timeoutWait <= 0) {
+                        ackTimeout = Math.min(2 * ackTimeout, MAX_ACK_TIMEOUT);
+                        throw new IOException("no ACK");
+                    }
+                    if (!backlog.isEmpty() || ackWait <= 0)
+                        break;
+
+                    long wait = Math.min(ackWait, timeoutWait);
+                    if (wait == Long.MAX_VALUE)
+                        wait();
+                    else
+                        TimeUnit.NANOSECONDS.timedWait(this, wait);
+                }
+
+                if (ackDue) {
+                    ackDue = false;
+                    AckMessage ack = new AckMessage(config.getId(), receivedMessages.get(node.getId()).getFloor());
+                    byte[] body = MessageCodec.encode(ack);
+                    stats.peer(node.getId()).messageSent(Type.ACK, body.length);
+                    bodies.add(body);
+                }
+
+                if (unacked.isEmpty())
+                    awaitingSince = System.nanoTime();
+                int size = 0;
+                while (!backlog.isEmpty()
+                        && (bodies.isEmpty() || size + backlog.peek().body().length <= MAX_BATCH_SIZE)) {
+                    Outgoing outgoing = backlog.poll();
+                    unacked.add(outgoing);
+                    size += outgoing.body().length;
+                    bodies.add(outgoing.body());
+                }
+            }
+
+            byte[] signed = frame(node.getId(), bodies);
+            ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + signed.length);
+            buffer.putInt(signed.length);
+            buffer.put(signed);
+            return buffer.flip();
+        }
+
+        /*
+         * Schedules an ACK of the messages received from the node (called by the
+         * selector thread)
+         */
+        private synchronized void acknowledgeLater() {
+            if (ackDue)
+                return;
+            ackDue = true;
+            ackDueSince = System.nanoTime();
+            notifyAll();
+        }
+
+        /*
+         * Drops the messages the node acknowledged (called by the selector thread)
+         *
+         * @param cumulative Every message up to this identifier was received
+         */
+        private synchronized void acknowledged(int cumulative) {
+            boolean progress = false;
+            while (!unacked.isEmpty() && unacked.peek().messageId() <= cumulative) {
+                backlogSize -= unacked.poll().body().length;
+                progress = true;
+            }
+            if (progress) {
+                awaitingSince = System.nanoTime();
+                ackTimeout = ACK_TIMEOUT;
+            }
+        }
+
+        /*
+         * Puts the messages not acknowledged yet back in front of the backlog, to
+         * be written again on the next connection along with a new ACK (the last
+         * one may have been lost with the connection)
+         */
+        private synchronized void rewind() {
+            LinkStats.PeerStats peer = stats.peer(node.getId());
+            while (!unacked.isEmpty()) {
+                backlog.addFirst(unacked.pollLast());
+                peer.retransmission();
+            }
+            if (receivedMessages.get(node.getId()).getFloor() >= 0 && !ackDue) {
+                ackDue = true;
+                ackDueSince = System.nanoTime();
+            }
+        }
+
+        private void close(SocketChannel channel) {
+            if (channel == null)
+                return;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package pt.ulisboa.tecnico.hdsledger.communication;
 
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 import com.google.gson.Gson;
@@ -50,6 +51,14 @@ public class UpdateAccount {
         return new Gson().toJson(this);
     }
 
+    /*
+     * Leaf of the update in the Merkle tree of the updates of its instance (the
+     * JSON clients check against the root)
+     */
+    public byte[] toMerkleLeaf() {
+        return toJson().getBytes(StandardCharsets.UTF_8);
+    }
+
     public String getOwnerId() {
         return ownerId;
     }
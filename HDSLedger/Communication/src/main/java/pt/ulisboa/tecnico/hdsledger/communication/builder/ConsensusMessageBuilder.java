@@ -10,7 +10,7 @@ public class ConsensusMessageBuilder {
         instance = new ConsensusMessage(sender, type);
     }
 
-    public ConsensusMessageBuilder setMessage(String message) {
+    public ConsensusMessageBuilder setMessage(byte[] message) {
         instance.setMessage(message);
         return this;
     }
@@ -0,0 +1,132 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import org.junit.jupiter.api.Test;
+import pt.ulisboa.tecnico.hdsledger.utilities.KeyRing;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ * Signed frames: every one is bound to its destination
+ * Inbound filters: they see the header fields of the message they check
+ */
+class AbstractLinkTest {
+
+    private final ProcessConfig[] nodes = TestNodes.of(3);
+    private final FrameLink sender = new FrameLink(TestNodes.byId(nodes, "1"), nodes);
+    private final FrameLink receiver = new FrameLink(TestNodes.byId(nodes, "2"), nodes);
+    private final FrameLink other = new FrameLink(TestNodes.byId(nodes, "3"), nodes);
+
+    private static final List<byte[]> BODIES = List.of(
+            MessageCodec.encode(new Message("1", Message.Type.IGNORE)),
+            MessageCodec.encode(new Message("1", Message.Type.IGNORE)));
+
+    /*
+     * Link that only frames and verifies
+     */
+    private static class FrameLink extends AbstractLink {
+
+        private FrameLink(ProcessConfig self, ProcessConfig[] nodes) {
+            super(self, self.getPort(), nodes, Message.class);
+        }
+
+        // version | senderId | session | signature | digests | count | message*
+        private boolean accepts(byte[] encoded) {
+            ByteBuffer frame = ByteBuffer.wrap(encoded);
+            frame.get();
+            ProcessConfig signer = nodes.get(MessageCodec.readString(frame));
+            assertEquals(SIGNED, MessageCodec.readVarInt(frame));
+            int signatureLength = MessageCodec.readLength(frame);
+            int signatureStart = frame.position();
+            return verify(frame, signatureStart, signatureLength, signatureStart + signatureLength, signer);
+        }
+
+        @Override
+        public boolean send(String nodeId, Message data) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Message receive() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isCongested(String nodeId) {
+            return false;
+        }
+    }
+
+    @Test
+    void frameIsOnlyAcceptedByItsDestination() {
+        byte[] frame = sender.frame("2", BODIES);
+        assertTrue(receiver.accepts(frame));
+        // Replayed to another node, which numbers the messages of the sender apart
+        assertFalse(other.accepts(frame));
+    }
+
+    @Test
+    void framesSharingASignatureAreEachAcceptedByTheirDestination() {
+        List<byte[]> frames = sender.frames(List.of("2", "3"), List.of(BODIES, BODIES.subList(0, 1)));
+        assertTrue(receiver.accepts(frames.get(0)));
+        assertTrue(other.accepts(frames.get(1)));
+        assertFalse(receiver.accepts(frames.get(1)));
+        assertFalse(other.accepts(frames.get(0)));
+    }
+
+    @Test
+    void frameWithoutDigestsIsRefused() {
+        // Signature over the batch alone, as frames without a destination were signed
+        MessageCodec.Output batch = new MessageCodec.Output(64);
+        batch.writeVarInt(BODIES.size());
+        BODIES.forEach(batch::writeBytes);
+        MessageCodec.Output tail = new MessageCodec.Output(64);
+        tail.writeBytes(new byte[0]);
+        tail.writeRaw(batch.toByteArray());
+        byte[] signed = tail.toByteArray();
+
+        MessageCodec.Output frame = new MessageCodec.Output(256);
+        frame.writeByte(MessageCodec.WIRE_VERSION);
+        frame.writeString("1");
+        frame.writeVarInt(AbstractLink.SIGNED);
+        frame.writeBytes(KeyRing.sign(TestNodes.byId(nodes, "1"), signed));
+        frame.writeRaw(signed);
+        assertFalse(receiver.accepts(frame.toByteArray()));
+    }
+
+    @Test
+    void sessionOfASignedFrameIsSigned() {
+        assertEquals(AbstractLink.SIGNED, AbstractLink.sessionOf(sender.frame("2", BODIES)));
+        for (byte[] frame : sender.frames(List.of("2", "3"), List.of(BODIES, BODIES)))
+            assertEquals(AbstractLink.SIGNED, AbstractLink.sessionOf(frame));
+    }
+
+    @Test
+    void tamperedFrameIsRefused() {
+        byte[] frame = sender.frame("2", BODIES);
+        frame[frame.length - 1] ^= 1;
+        assertFalse(receiver.accepts(frame));
+    }
+
+    @Test
+    void filtersSeeTheConsensusInstanceOfTheMessage() {
+        List<Integer> instances = new ArrayList<>();
+        receiver.addFilter((senderId, type, instance) -> instances.add(instance));
+
+        // Identifiers of one and several bytes, which the instance follows
+        for (int messageId : new int[] { 0, 98, 100_000 }) {
+            ConsensusMessage message = new ConsensusMessage("1", Message.Type.COMMIT);
+            message.setMessageId(messageId);
+            message.setConsensusInstance(33);
+            assertTrue(receiver.passesFilters("1", Message.Type.COMMIT,
+                    ByteBuffer.wrap(MessageCodec.encode(message))));
+        }
+        // Only consensus messages carry an instance
+        receiver.passesFilters("1", Message.Type.IGNORE, ByteBuffer.wrap(BODIES.get(0)));
+        assertEquals(List.of(33, 33, 33, -1), instances);
+    }
+}
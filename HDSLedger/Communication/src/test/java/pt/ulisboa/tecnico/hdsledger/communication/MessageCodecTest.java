@@ -0,0 +1,193 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import org.junit.jupiter.api.Test;
+import pt.ulisboa.tecnico.hdsledger.utilities.LedgerException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageCodecTest {
+
+    // Larger than the compression threshold and easy to deflate
+    private static final byte[] PAYLOAD = "{\"value\":\"repeated\"}".repeat(200).getBytes(StandardCharsets.UTF_8);
+
+    private static ConsensusMessage consensus(byte[] payload) {
+        ConsensusMessage message = new ConsensusMessage("3", Message.Type.PREPARE);
+        message.setMessageId(41);
+        message.setConsensusInstance(7);
+        message.setRound(2);
+        message.setReplyTo("1");
+        message.setReplyToMessageId(-1);
+        message.setMessage(payload);
+        return message;
+    }
+
+    /*
+     * Prepare message whose payload is deflated and claims the given size
+     */
+    private static byte[] deflated(byte[] payload, int claimedSize) {
+        MessageCodec.Output out = new MessageCodec.Output(64);
+        out.writeByte(MessageCodec.encode(consensus(null))[0]);
+        out.writeString("3");
+        out.writeVarInt(41);
+        out.writeVarInt(7);
+        out.writeVarInt(2);
+        out.writeString("1");
+        out.writeVarInt(-1);
+        // DEFLATE | size | deflated
+        out.writeByte(1);
+        out.writeVarInt(claimedSize);
+        out.writeBytes(deflate(payload));
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[data.length + 64];
+        int length = deflater.deflate(buffer);
+        deflater.end();
+        return Arrays.copyOf(buffer, length);
+    }
+
+    @Test
+    void roundTripsConsensusMessages() {
+        for (byte[] payload : new byte[][] { null, new byte[0], "small".getBytes(StandardCharsets.UTF_8), PAYLOAD }) {
+            ConsensusMessage decoded = (ConsensusMessage) MessageCodec.decode(MessageCodec.encode(consensus(payload)));
+            assertEquals("3", decoded.getSenderId());
+            assertEquals(Message.Type.PREPARE, decoded.getType());
+            assertEquals(41, decoded.getMessageId());
+            assertEquals(7, decoded.getConsensusInstance());
+            assertEquals(2, decoded.getRound());
+            assertEquals("1", decoded.getReplyTo());
+            assertEquals(-1, decoded.getReplyToMessageId());
+            assertArrayEquals(payload, decoded.getMessage());
+        }
+    }
+
+    @Test
+    void compressesLargePayloads() {
+        byte[] compressed = MessageCodec.encode(consensus(PAYLOAD));
+        byte[] raw = MessageCodec.encode(consensus(PAYLOAD), false);
+        assertTrue(raw.length > PAYLOAD.length);
+        assertTrue(compressed.length < PAYLOAD.length / 4);
+        assertArrayEquals(PAYLOAD, ((ConsensusMessage) MessageCodec.decode(raw)).getMessage());
+    }
+
+    @Test
+    void roundTripsRequestsAcksAndSessions() {
+        LedgerRequest request = new LedgerRequest("10", Message.Type.TRANSFER, "{\"amount\":5}", "c2lnbmF0dXJl");
+        request.setMessageId(3);
+        LedgerRequest decodedRequest = (LedgerRequest) MessageCodec.decode(MessageCodec.encode(request));
+        assertEquals(request, decodedRequest);
+        assertEquals(3, decodedRequest.getMessageId());
+
+        AckMessage ack = new AckMessage("2", 12, List.of(new AckMessage.Range(14, 15), new AckMessage.Range(20, 20)));
+        AckMessage decodedAck = (AckMessage) MessageCodec.decode(MessageCodec.encode(ack));
+        assertEquals(12, decodedAck.getCumulative());
+        assertEquals(ack.getRanges(), decodedAck.getRanges());
+
+        SessionMessage session = new SessionMessage("1", SessionMessage.Phase.OFFER, 1_000_000, new byte[] { 1, 2, 3 });
+        SessionMessage decodedSession = (SessionMessage) MessageCodec.decode(MessageCodec.encode(session));
+        assertEquals(SessionMessage.Phase.OFFER, decodedSession.getPhase());
+        assertEquals(1_000_000, decodedSession.getEpoch());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, decodedSession.getPublicKey());
+    }
+
+    @Test
+    void decodesCraftedPayloadOfTheClaimedSize() {
+        ConsensusMessage decoded = (ConsensusMessage) MessageCodec.decode(deflated(PAYLOAD, PAYLOAD.length));
+        assertArrayEquals(PAYLOAD, decoded.getMessage());
+    }
+
+    @Test
+    void rejectsPayloadInflatingPastTheClaimedSize() {
+        // A few bytes that would inflate into a megabyte
+        byte[] bomb = new byte[1 << 20];
+        assertThrows(LedgerException.class, () -> MessageCodec.decode(deflated(bomb, 1024)));
+    }
+
+    @Test
+    void rejectsPayloadShorterThanTheClaimedSize() {
+        assertThrows(LedgerException.class, () -> MessageCodec.decode(deflated(PAYLOAD, PAYLOAD.length + 1)));
+    }
+
+    @Test
+    void rejectsClaimedSizesAboveTheLimit() {
+        assertThrows(LedgerException.class, () -> MessageCodec.decode(deflated(PAYLOAD, 16 * 1024 * 1024 + 1)));
+        assertThrows(LedgerException.class, () -> MessageCodec.decode(deflated(PAYLOAD, -1)));
+    }
+
+    /*
+     * ACK from node 2 with the given cumulative identifier and (gap, span) pairs
+     */
+    private static byte[] ack(int cumulative, int... deltas) {
+        MessageCodec.Output out = new MessageCodec.Output(64);
+        out.writeByte(MessageCodec.encode(new AckMessage("2", 0))[0]);
+        out.writeString("2");
+        out.writeVarInt(0);
+        out.writeVarInt(cumulative);
+        out.writeVarInt(deltas.length / 2);
+        for (int delta : deltas)
+            out.writeVarInt(delta);
+        return out.toByteArray();
+    }
+
+    @Test
+    void decodesWellFormedAckRanges() {
+        AckMessage decoded = (AckMessage) MessageCodec.decode(ack(3, 2, 1, 3, 0));
+        assertEquals(List.of(new AckMessage.Range(5, 6), new AckMessage.Range(9, 9)), decoded.getRanges());
+    }
+
+    @Test
+    void rejectsMalformedAckRanges() {
+        // Last before first
+        assertThrows(LedgerException.class, () -> MessageCodec.decode(ack(3, 1, -3)));
+        // At or below the cumulative identifier
+        assertThrows(LedgerException.class, () -> MessageCodec.decode(ack(3, 0, 0)));
+        assertThrows(LedgerException.class, () -> MessageCodec.decode(ack(3, -2, 1)));
+        // Overlapping the previous range
+        assertThrows(LedgerException.class, () -> MessageCodec.decode(ack(3, 2, 4, 0, 1)));
+        assertThrows(LedgerException.class, () -> MessageCodec.decode(ack(3, 2, 4, -1, 0)));
+        // Past the largest identifier
+        assertThrows(LedgerException.class, () -> MessageCodec.decode(ack(Integer.MAX_VALUE - 1, 1, 1)));
+    }
+
+    @Test
+    void ackRangesAreValidatedOnConstruction() {
+        assertThrows(IllegalArgumentException.class, () -> new AckMessage.Range(4, 1));
+        assertThrows(IllegalArgumentException.class,
+                () -> new AckMessage("2", 5, List.of(new AckMessage.Range(5, 6))));
+        assertThrows(IllegalArgumentException.class,
+                () -> new AckMessage("2", 0, List.of(new AckMessage.Range(4, 6), new AckMessage.Range(6, 7))));
+
+        AckMessage ack = new AckMessage("2", 3);
+        for (int id : new int[] { 2, 5, 6, 9 })
+            ack.addReceived(id);
+        assertEquals(List.of(new AckMessage.Range(5, 6), new AckMessage.Range(9, 9)), ack.getRanges());
+    }
+
+    @Test
+    void rejectsTruncatedAndCorruptedMessages() {
+        byte[] encoded = MessageCodec.encode(consensus(PAYLOAD));
+        for (int length = 0; length < encoded.length; length += 7) {
+            byte[] truncated = Arrays.copyOf(encoded, length);
+            assertThrows(LedgerException.class, () -> MessageCodec.decode(truncated));
+        }
+
+        byte[] unknownType = encoded.clone();
+        unknownType[0] = 127;
+        assertThrows(LedgerException.class, () -> MessageCodec.decode(unknownType));
+
+        // Length prefix far beyond the data
+        MessageCodec.Output out = new MessageCodec.Output(8);
+        out.writeByte(encoded[0]);
+        out.writeVarInt(Integer.MAX_VALUE);
+        assertThrows(LedgerException.class, () -> MessageCodec.decode(out.toByteArray()));
+    }
+}
@@ -0,0 +1,207 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import pt.ulisboa.tecnico.hdsledger.communication.SessionMessage.Phase;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ * Key agreement between two peers wired back to back: node 1 offers the
+ * sessions, node 2 answers them
+ */
+class PeerSessionsTest {
+
+    private static final byte[] DATA = "count | message*".getBytes(StandardCharsets.UTF_8);
+
+    // Session messages sent and not yet handed to the other side
+    private final Deque<Sent> wire = new ArrayDeque<>();
+    private PeerSessions initiator;
+    private PeerSessions responder;
+
+    private record Sent(String from, String to, SessionMessage message) {
+    }
+
+    @BeforeEach
+    void setUp() {
+        List<String> ids = List.of("1", "2");
+        initiator = new PeerSessions("1", ids, (to, message) -> wire.add(new Sent("1", to, message)));
+        responder = new PeerSessions("2", ids, (to, message) -> wire.add(new Sent("2", to, message)));
+    }
+
+    /*
+     * Hands every message on the wire to its destination
+     *
+     * @return The messages handed over
+     */
+    private List<SessionMessage> pump() {
+        List<SessionMessage> handed = new ArrayList<>();
+        Sent sent;
+        while ((sent = wire.poll()) != null) {
+            (sent.to().equals("1") ? initiator : responder).handle(sent.from(), sent.message());
+            handed.add(sent.message());
+        }
+        return handed;
+    }
+
+    // tag | data
+    private static ByteBuffer frame(PeerSessions.Session session, byte[] data) {
+        byte[] tag = session.tag(data);
+        return ByteBuffer.allocate(tag.length + data.length).put(tag).put(data).flip();
+    }
+
+    private static boolean verify(PeerSessions receiver, String senderId, int epoch, ByteBuffer frame) {
+        return receiver.verify(senderId, epoch, frame, 0, PeerSessions.TAG_LENGTH, PeerSessions.TAG_LENGTH);
+    }
+
+    /*
+     * Agrees on a session and has the responder take it in use
+     *
+     * @return The offer of the session
+     */
+    private SessionMessage establish() {
+        initiator.refresh("2", false);
+        SessionMessage offer = wire.peek().message();
+        pump();
+
+        PeerSessions.Session session = initiator.sending("2");
+        assertNotNull(session);
+        assertTrue(verify(responder, "1", session.getEpoch(), frame(session, DATA)));
+        assertNotNull(responder.sending("1"));
+        return offer;
+    }
+
+    private static SessionMessage offer(int epoch) throws Exception {
+        byte[] publicKey = KeyPairGenerator.getInstance("X25519").generateKeyPair().getPublic().getEncoded();
+        return new SessionMessage("1", Phase.OFFER, epoch, publicKey);
+    }
+
+    @Test
+    void agreesOnSessionAndAuthenticatesBothWays() {
+        initiator.refresh("2", false);
+        List<SessionMessage> handed = pump();
+        assertEquals(List.of(Phase.OFFER, Phase.ANSWER), handed.stream().map(SessionMessage::getPhase).toList());
+
+        // The responder signs until a frame of the initiator proves it has the keys
+        PeerSessions.Session sending = initiator.sending("2");
+        assertNotNull(sending);
+        assertNull(responder.sending("1"));
+        assertTrue(verify(responder, "1", sending.getEpoch(), frame(sending, DATA)));
+
+        PeerSessions.Session answering = responder.sending("1");
+        assertNotNull(answering);
+        assertEquals(sending.getEpoch(), answering.getEpoch());
+        assertTrue(verify(initiator, "2", answering.getEpoch(), frame(answering, DATA)));
+    }
+
+    @Test
+    void rejectsTamperedAndReflectedFrames() {
+        establish();
+        PeerSessions.Session session = initiator.sending("2");
+
+        ByteBuffer tampered = frame(session, DATA);
+        tampered.put(tampered.limit() - 1, (byte) (tampered.get(tampered.limit() - 1) ^ 1));
+        assertFalse(verify(responder, "1", session.getEpoch(), tampered));
+
+        // Each direction has its own key
+        assertFalse(verify(initiator, "2", session.getEpoch(), frame(session, DATA)));
+        // Wrong session
+        assertFalse(verify(responder, "1", session.getEpoch() + 1, frame(session, DATA)));
+    }
+
+    @Test
+    void invalidFramesDoNotRestartAgreement() {
+        establish();
+        PeerSessions.Session session = initiator.sending("2");
+
+        ByteBuffer forged = ByteBuffer.allocate(PeerSessions.TAG_LENGTH + DATA.length)
+                .put(new byte[PeerSessions.TAG_LENGTH]).put(DATA).flip();
+        assertFalse(verify(responder, "1", session.getEpoch(), forged.duplicate()));
+        assertFalse(verify(responder, "1", session.getEpoch() + 7, forged.duplicate()));
+        assertFalse(verify(initiator, "2", session.getEpoch() + 7, forged.duplicate()));
+
+        assertTrue(wire.isEmpty());
+        assertSame(session, initiator.sending("2"));
+        assertTrue(verify(responder, "1", session.getEpoch(), frame(session, DATA)));
+    }
+
+    @Test
+    void unknownSessionWithoutOneInUseAsksForOne() {
+        ByteBuffer frame = ByteBuffer.allocate(PeerSessions.TAG_LENGTH + DATA.length)
+                .put(new byte[PeerSessions.TAG_LENGTH]).put(DATA).flip();
+        assertFalse(verify(responder, "1", 5, frame));
+
+        assertEquals(1, wire.size());
+        assertEquals(Phase.REQUEST, wire.peek().message().getPhase());
+
+        // At most one request every retry interval
+        assertFalse(verify(responder, "1", 5, frame.rewind()));
+        assertEquals(1, wire.size());
+    }
+
+    @Test
+    void ignoresReplayedOffers() {
+        SessionMessage offer = establish();
+        PeerSessions.Session session = initiator.sending("2");
+
+        responder.handle("1", offer);
+        assertTrue(wire.isEmpty());
+        assertEquals(session.getEpoch(), responder.sending("1").getEpoch());
+        assertTrue(verify(responder, "1", session.getEpoch(), frame(session, DATA)));
+    }
+
+    @Test
+    void ignoresOffersOlderThanTheLastOne() throws Exception {
+        establish();
+        int epoch = initiator.sending("2").getEpoch();
+
+        responder.handle("1", offer(epoch - 1));
+        assertTrue(wire.isEmpty());
+
+        responder.handle("1", offer(epoch + 1));
+        assertEquals(Phase.ANSWER, wire.poll().message().getPhase());
+    }
+
+    @Test
+    void keepsSessionInUseAcrossManyOffers() throws Exception {
+        establish();
+        PeerSessions.Session session = initiator.sending("2");
+
+        // More offers than the sessions accepted at once, none of them used
+        for (int i = 1; i <= 6; i++)
+            responder.handle("1", offer(session.getEpoch() + i));
+        assertEquals(6, wire.size());
+
+        assertTrue(verify(responder, "1", session.getEpoch(), frame(session, DATA)));
+    }
+
+    @Test
+    void ignoresReplayedRequests() throws Exception {
+        // Requests are stamped, so this one is newer than any before it
+        SessionMessage request = new SessionMessage("2", Phase.REQUEST, PeerSessions.nextStamp(0), null);
+        initiator.handle("2", request);
+        assertEquals(Phase.OFFER, wire.poll().message().getPhase());
+
+        // Past the retry interval, only the stamp keeps the replay out
+        Thread.sleep(1100);
+        initiator.handle("2", request);
+        assertTrue(wire.isEmpty());
+    }
+
+    @Test
+    void stampsGrow() {
+        int stamp = PeerSessions.nextStamp(0);
+        assertTrue(stamp > 0);
+        assertTrue(PeerSessions.nextStamp(stamp) > stamp);
+        // Ahead of the clock (several stamps within a second) => Next number
+        assertEquals(stamp + 101, PeerSessions.nextStamp(stamp + 100));
+    }
+}
@@ -0,0 +1,90 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import org.junit.jupiter.api.Test;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ * Send window and backlog of each node
+ */
+class PerfectLinkTest {
+
+    private static PerfectLink open(ProcessConfig self, ProcessConfig[] nodes, int window) {
+        return new PerfectLink(self, self.getPort(), nodes, Message.class, false, 50, 200, window);
+    }
+
+    private static ConsensusMessage consensus(int round, byte[] payload) {
+        ConsensusMessage message = new ConsensusMessage("1", Message.Type.PREPARE);
+        message.setRound(round);
+        message.setMessage(payload);
+        return message;
+    }
+
+    /*
+     * Receives a message, failing the test if none arrives in time
+     */
+    private static Message receive(Link link) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Message> message = executor.submit(link::receive);
+            return message.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void messagesBeyondTheWindowWaitInTheBacklog() throws Exception {
+        ProcessConfig[] nodes = TestNodes.of(2);
+        PerfectLink first = open(TestNodes.byId(nodes, "1"), nodes, 2);
+
+        // Node 2 is not up yet, so nothing is acknowledged
+        assertTrue(first.send("2", consensus(0, null)));
+        assertTrue(first.send("2", consensus(1, null)));
+        assertFalse(first.isCongested("2"));
+        assertTrue(first.send("2", consensus(2, null)));
+        assertTrue(first.send("2", consensus(3, null)));
+        assertTrue(first.isCongested("2"));
+
+        // Once it is, every message gets through and the backlog drains
+        PerfectLink second = open(TestNodes.byId(nodes, "2"), nodes, 2);
+        Set<Integer> rounds = new HashSet<>();
+        for (int i = 0; i < 4; i++)
+            assertTrue(rounds.add(((ConsensusMessage) receive(second)).getRound()));
+        assertEquals(Set.of(0, 1, 2, 3), rounds);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (first.isCongested("2") && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertFalse(first.isCongested("2"));
+    }
+
+    @Test
+    void messagesAreRefusedOnceTheBacklogIsFull() {
+        ProcessConfig[] nodes = TestNodes.of(2);
+        PerfectLink first = open(TestNodes.byId(nodes, "1"), nodes, 1);
+
+        // Incompressible, so the backlog holds about a megabyte per message
+        byte[] payload = new byte[1 << 20];
+        new Random(7).nextBytes(payload);
+        int accepted = 0;
+        while (first.send("2", consensus(accepted, payload))) {
+            accepted++;
+            assertTrue(accepted <= 64, "backlog never filled");
+        }
+        // Around the budget of 32 MB
+        assertTrue(accepted >= 31, "refused after " + accepted + " messages");
+        assertTrue(first.isCongested("2"));
+        // Other nodes are not affected
+        assertTrue(first.send("1", consensus(0, null)));
+    }
+}
@@ -0,0 +1,107 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReassemblerTest {
+
+    private static final long TIMEOUT = 50;
+
+    /*
+     * Fragments of a message, split as the link splits them
+     */
+    private static List<FragmentMessage> fragments(String senderId, int group, byte[] data, int count) {
+        List<FragmentMessage> fragments = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int start = Reassembler.offsetOf(i, count, data.length);
+            int end = i == count - 1 ? data.length : Reassembler.offsetOf(i + 1, count, data.length);
+            fragments.add(new FragmentMessage(senderId, group, i, count, data.length,
+                    Arrays.copyOfRange(data, start, end)));
+        }
+        return fragments;
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) i;
+        return data;
+    }
+
+    @Test
+    void reassemblesFragmentsInAnyOrder() {
+        Reassembler reassembler = new Reassembler(1024, TIMEOUT);
+        byte[] data = data(100);
+        List<FragmentMessage> fragments = fragments("1", 7, data, 3);
+
+        assertTrue(reassembler.accepts("1", fragments.get(2)));
+        assertNull(reassembler.add("1", fragments.get(2)));
+        assertNull(reassembler.add("1", fragments.get(0)));
+        // Duplicates do not count
+        assertNull(reassembler.add("1", fragments.get(0)));
+        assertArrayEquals(data, reassembler.add("1", fragments.get(1)));
+        assertEquals(0, reassembler.size());
+    }
+
+    @Test
+    void refusesInconsistentFragments() {
+        Reassembler reassembler = new Reassembler(1024, TIMEOUT);
+        List<FragmentMessage> fragments = fragments("1", 7, data(100), 3);
+        reassembler.add("1", fragments.get(0));
+
+        // Another count, length or slice size than the message they claim to be part of
+        assertFalse(reassembler.accepts("1", new FragmentMessage("1", 7, 1, 4, 100, new byte[25])));
+        assertFalse(reassembler.accepts("1", new FragmentMessage("1", 7, 1, 3, 99, new byte[33])));
+        assertFalse(reassembler.accepts("1", new FragmentMessage("1", 7, 1, 3, 100, new byte[30])));
+        assertFalse(reassembler.accepts("1", new FragmentMessage("1", 7, 3, 3, 100, new byte[34])));
+        // A single fragment is not a fragmented message
+        assertFalse(reassembler.accepts("1", new FragmentMessage("1", 8, 0, 1, 10, new byte[10])));
+    }
+
+    @Test
+    void budgetIsKeptForEachSender() {
+        Reassembler reassembler = new Reassembler(150, TIMEOUT);
+        reassembler.add("1", fragments("1", 1, data(100), 2).get(0));
+
+        assertFalse(reassembler.accepts("1", fragments("1", 2, data(100), 2).get(0)));
+        assertTrue(reassembler.accepts("2", fragments("2", 2, data(100), 2).get(0)));
+        // Fragments of the message already being reassembled are still taken
+        assertTrue(reassembler.accepts("1", fragments("1", 1, data(100), 2).get(1)));
+    }
+
+    @Test
+    void staleMessagesAreDroppedAndTheirBudgetReturned() throws InterruptedException {
+        Reassembler reassembler = new Reassembler(150, TIMEOUT);
+        // The sender crashes after the first fragment
+        reassembler.add("1", fragments("1", 1, data(100), 2).get(0));
+        List<FragmentMessage> next = fragments("1", 2, data(100), 2);
+        assertFalse(reassembler.accepts("1", next.get(0)));
+
+        Thread.sleep(2 * TIMEOUT + 10);
+        assertTrue(reassembler.accepts("1", next.get(0)));
+        assertEquals(0, reassembler.size());
+        reassembler.add("1", next.get(0));
+        assertArrayEquals(data(100), reassembler.add("1", next.get(1)));
+    }
+
+    @Test
+    void messagesGettingFragmentsAreKept() throws InterruptedException {
+        Reassembler reassembler = new Reassembler(1024, TIMEOUT);
+        byte[] data = data(100);
+        List<FragmentMessage> fragments = fragments("1", 1, data, 10);
+
+        // Takes longer than the timeout as a whole
+        for (int i = 0; i < 9; i++) {
+            assertTrue(reassembler.accepts("1", fragments.get(i)));
+            assertNull(reassembler.add("1", fragments.get(i)));
+            Thread.sleep(TIMEOUT / 3);
+        }
+        assertTrue(reassembler.accepts("1", fragments.get(9)));
+        assertArrayEquals(data, reassembler.add("1", fragments.get(9)));
+    }
+}
@@ -0,0 +1,56 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RttEstimatorTest {
+
+    @Test
+    void usesTheInitialTimeoutUntilTheFirstSample() {
+        RttEstimator estimator = new RttEstimator(200, 1000);
+        assertEquals(-1, estimator.smoothedRtt());
+        assertEquals(200, estimator.timeout());
+        assertEquals(1000, new RttEstimator(5000, 1000).timeout());
+    }
+
+    @Test
+    void timeoutFollowsTheSamples() {
+        RttEstimator estimator = new RttEstimator(200, 10_000);
+        // First sample: srtt = 100 ms, rttvar = 50 ms
+        estimator.sample(100_000);
+        assertEquals(100_000, estimator.smoothedRtt());
+        assertEquals(300, estimator.timeout());
+
+        // Steady samples pull the deviation down, and the timeout with it
+        for (int i = 0; i < 50; i++)
+            estimator.sample(100_000);
+        assertEquals(100_000, estimator.smoothedRtt());
+        assertTrue(estimator.timeout() < 110);
+
+        // A slower path moves the estimate towards it
+        for (int i = 0; i < 50; i++)
+            estimator.sample(400_000);
+        assertTrue(estimator.smoothedRtt() > 390_000);
+        assertTrue(estimator.timeout() >= 400);
+    }
+
+    @Test
+    void timeoutIsBounded() {
+        RttEstimator fast = new RttEstimator(200, 1000);
+        fast.sample(10);
+        assertEquals(50, fast.timeout());
+
+        RttEstimator slow = new RttEstimator(200, 1000);
+        slow.sample(5_000_000);
+        assertEquals(1000, slow.timeout());
+    }
+
+    @Test
+    void backOffDoublesUpToTheMaximum() {
+        RttEstimator estimator = new RttEstimator(200, 1000);
+        assertEquals(400, estimator.backOff(200));
+        assertEquals(1000, estimator.backOff(600));
+        assertEquals(1000, estimator.backOff(1000));
+    }
+}
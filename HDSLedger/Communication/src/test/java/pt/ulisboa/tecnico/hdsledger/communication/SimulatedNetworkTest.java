@@ -0,0 +1,65 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import org.junit.jupiter.api.Test;
+import pt.ulisboa.tecnico.hdsledger.utilities.LedgerException;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SimulatedNetworkTest {
+
+    private static SimulatedLink open(SimulatedNetwork network, ProcessConfig self, ProcessConfig[] nodes) {
+        return new SimulatedLink(network, self, self.getPort(), nodes, Message.class, false);
+    }
+
+    private static ConsensusMessage consensus(String senderId, int round) {
+        ConsensusMessage message = new ConsensusMessage(senderId, Message.Type.PREPARE);
+        message.setRound(round);
+        return message;
+    }
+
+    /*
+     * Receives a message, failing the test if none arrives in time
+     */
+    private static Message receive(Link link) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Message> message = executor.submit(link::receive);
+            return message.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void sendingToANodeWithoutALinkFails() {
+        SimulatedNetwork network = new SimulatedNetwork();
+        ProcessConfig[] nodes = TestNodes.of(2);
+        SimulatedLink first = open(network, TestNodes.byId(nodes, "1"), nodes);
+
+        // Node 2 runs elsewhere, or did not open its link yet
+        assertThrows(LedgerException.class, () -> first.send("2", consensus("1", 0)));
+    }
+
+    @Test
+    void deliversEveryMessageOnceDespiteLossesAndDuplicates() throws Exception {
+        SimulatedNetwork network = new SimulatedNetwork(new SimulatedNetwork.Conditions(0, 5, 0.2, 0.5, 0), 7);
+        ProcessConfig[] nodes = TestNodes.of(2);
+        SimulatedLink first = open(network, TestNodes.byId(nodes, "1"), nodes);
+        SimulatedLink second = open(network, TestNodes.byId(nodes, "2"), nodes);
+
+        for (int i = 0; i < 100; i++)
+            first.send("2", consensus("1", i));
+        Set<Integer> rounds = new HashSet<>();
+        for (int i = 0; i < 100; i++)
+            assertTrue(rounds.add(((ConsensusMessage) receive(second)).getRound()));
+        assertEquals(100, rounds.size());
+    }
+}
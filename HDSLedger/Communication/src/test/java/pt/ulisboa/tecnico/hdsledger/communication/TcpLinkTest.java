@@ -0,0 +1,212 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import org.junit.jupiter.api.Test;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TcpLinkTest {
+
+    private static TcpLink open(ProcessConfig self, ProcessConfig[] nodes) {
+        return new TcpLink(self, self.getPort(), nodes, Message.class, false);
+    }
+
+    private static ConsensusMessage consensus(String senderId, int round, byte[] payload) {
+        ConsensusMessage message = new ConsensusMessage(senderId, Message.Type.PREPARE);
+        message.setRound(round);
+        message.setMessage(payload);
+        return message;
+    }
+
+    /*
+     * Receives a message, failing the test if none arrives in time
+     */
+    private static Message receive(Link link) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Message> message = executor.submit(link::receive);
+            return message.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void deliversMessagesInOrderBothWays() throws Exception {
+        ProcessConfig[] nodes = TestNodes.of(2);
+        TcpLink first = open(TestNodes.byId(nodes, "1"), nodes);
+        TcpLink second = open(TestNodes.byId(nodes, "2"), nodes);
+
+        for (int i = 0; i < 500; i++)
+            assertTrue(first.send("2", consensus("1", i, null)));
+        for (int i = 0; i < 500; i++)
+            assertEquals(i, ((ConsensusMessage) receive(second)).getRound());
+
+        second.send("1", consensus("2", 7, null));
+        Message reply = receive(first);
+        assertEquals("2", reply.getSenderId());
+        assertEquals(7, ((ConsensusMessage) reply).getRound());
+    }
+
+    @Test
+    void deliversMessagesToSelf() throws Exception {
+        ProcessConfig[] nodes = TestNodes.of(1);
+        TcpLink link = open(nodes[0], nodes);
+
+        link.send("1", consensus("1", 3, null));
+        assertEquals(3, ((ConsensusMessage) receive(link)).getRound());
+    }
+
+    @Test
+    void deliversMessagesLargerThanABatch() throws Exception {
+        ProcessConfig[] nodes = TestNodes.of(2);
+        TcpLink first = open(TestNodes.byId(nodes, "1"), nodes);
+        TcpLink second = open(TestNodes.byId(nodes, "2"), nodes);
+
+        byte[] payload = new byte[1 << 20];
+        new Random(7).nextBytes(payload);
+        first.send("2", consensus("1", 0, new byte[] { 1 }));
+        first.send("2", consensus("1", 1, payload));
+        first.send("2", consensus("1", 2, new byte[] { 2 }));
+
+        assertArrayEquals(new byte[] { 1 }, ((ConsensusMessage) receive(second)).getMessage());
+        assertArrayEquals(payload, ((ConsensusMessage) receive(second)).getMessage());
+        assertArrayEquals(new byte[] { 2 }, ((ConsensusMessage) receive(second)).getMessage());
+    }
+
+    @Test
+    void slowConsumerGetsEveryMessage() throws Exception {
+        ProcessConfig[] nodes = TestNodes.of(2);
+        TcpLink first = open(TestNodes.byId(nodes, "1"), nodes);
+        TcpLink second = open(TestNodes.byId(nodes, "2"), nodes);
+
+        // More than the delivered queue holds, received once they were all sent
+        int count = 6000;
+        for (int i = 0; i < count; i++)
+            assertTrue(first.send("2", consensus("1", i, null)));
+        Thread.sleep(500);
+        for (int i = 0; i < count; i++)
+            assertEquals(i, ((ConsensusMessage) receive(second)).getRound());
+    }
+
+    @Test
+    void messagesLostWithAConnectionAreWrittenAgain() throws Exception {
+        ProcessConfig[] nodes = TestNodes.of(2);
+        try (Proxy proxy = new Proxy(TestNodes.byId(nodes, "2").getPort())) {
+            // Node 1 reaches node 2 through the proxy, which drops its first connection
+            ProcessConfig[] throughProxy = TestNodes.copy(nodes);
+            TestNodes.byId(throughProxy, "2").setPort(proxy.port());
+            TcpLink first = open(TestNodes.byId(throughProxy, "1"), throughProxy);
+            TcpLink second = open(TestNodes.byId(nodes, "2"), nodes);
+
+            for (int i = 0; i < 10; i++)
+                first.send("2", consensus("1", i, null));
+            proxy.awaitDropped();
+
+            for (int i = 0; i < 10; i++)
+                assertEquals(i, ((ConsensusMessage) receive(second)).getRound());
+        }
+    }
+
+    /*
+     * Proxy to a local port that swallows everything written to its first
+     * connection (as if it broke with the bytes in flight) and forwards the
+     * next ones
+     */
+    private static class Proxy implements AutoCloseable {
+
+        private final ServerSocket server = new ServerSocket(0);
+        private final List<Socket> sockets = new ArrayList<>();
+        private final Object lock = new Object();
+        private boolean dropped = false;
+
+        private Proxy(int target) throws IOException {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    Socket dropping = server.accept();
+                    track(dropping);
+                    swallow(dropping);
+                    for (;;) {
+                        Socket client = server.accept();
+                        Socket upstream = new Socket("localhost", target);
+                        track(client);
+                        track(upstream);
+                        pump(client, upstream);
+                        pump(upstream, client);
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private int port() {
+            return server.getLocalPort();
+        }
+
+        private void track(Socket socket) {
+            synchronized (sockets) {
+                sockets.add(socket);
+            }
+        }
+
+        /*
+         * Reads the first connection until some bytes arrived, then drops it
+         */
+        private void swallow(Socket socket) throws IOException {
+            socket.getInputStream().read(new byte[1 << 16]);
+            socket.setSoLinger(true, 0);
+            socket.close();
+            synchronized (lock) {
+                dropped = true;
+                lock.notifyAll();
+            }
+        }
+
+        private void awaitDropped() throws InterruptedException {
+            synchronized (lock) {
+                while (!dropped)
+                    lock.wait();
+            }
+        }
+
+        private static void pump(Socket from, Socket to) {
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[1 << 16];
+                try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+                    int read;
+                    while ((read = in.read(buffer)) >= 0)
+                        out.write(buffer, 0, read);
+                } catch (IOException e) {
+                    // Closed
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets)
+                    socket.close();
+            }
+        }
+    }
+}
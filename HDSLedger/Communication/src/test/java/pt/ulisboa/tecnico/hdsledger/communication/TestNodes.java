@@ -0,0 +1,67 @@
+package pt.ulisboa.tecnico.hdsledger.communication;
+
+import com.google.gson.Gson;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Configurations of the nodes of a test cluster, on free local ports and with
+ * the Ed25519 keys of the PKI directory (tests run from the module directory)
+ */
+final class TestNodes {
+
+    // Nodes with Ed25519 keys in the PKI directory
+    static final int MAX_NODES = 4;
+
+    private TestNodes() {
+    }
+
+    static ProcessConfig[] of(int count) {
+        if (count > MAX_NODES)
+            throw new IllegalArgumentException("Only " + MAX_NODES + " nodes have keys");
+
+        List<Map<String, Object>> nodes = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            nodes.add(Map.of(
+                    "id", String.valueOf(i),
+                    "isLeader", i == 1,
+                    "hostname", "localhost",
+                    "port", freePort(),
+                    "publicKeyPath", "../PKI/node" + i + "_ed25519.pub",
+                    "privateKeyPath", "../PKI/node" + i + "_ed25519.priv",
+                    "signatureScheme", "ED25519"));
+        }
+        Gson gson = new Gson();
+        return gson.fromJson(gson.toJson(nodes), ProcessConfig[].class);
+    }
+
+    /*
+     * Copy of the configurations, to be changed without touching the others
+     */
+    static ProcessConfig[] copy(ProcessConfig[] nodes) {
+        Gson gson = new Gson();
+        return gson.fromJson(gson.toJson(nodes), ProcessConfig[].class);
+    }
+
+    static ProcessConfig byId(ProcessConfig[] nodes, String id) {
+        for (ProcessConfig node : nodes) {
+            if (node.getId().equals(id))
+                return node;
+        }
+        throw new IllegalArgumentException("No node " + id);
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -30,7 +30,7 @@ public class Library {
     private final ProcessConfig config;
 
     // Link to communicate with blockchain nodes
-    private final PerfectLink link;
+    private final Link link;
 
     // Current client nonce
     private final AtomicInteger nonce = new AtomicInteger(0);
@@ -64,9 +64,12 @@ public class Library {
         System.arraycopy(nodeConfigs, 0, this.allConfigs, 0, nodeConfigs.length);
         System.arraycopy(clientConfigs, 0, this.allConfigs, nodeConfigs.length, clientConfigs.length);
 
-        // Create link to communicate with nodes
-        this.link = new PerfectLink(clientConfig, clientConfig.getPort(), nodeConfigs, LedgerResponse.class,
-                activateLogs, 5000);
+        // Parse every key once, before the link starts verifying
+        KeyRing.load(clientConfig, nodeConfigs, clientConfigs);
+
+        // Create link to communicate with nodes (clients use the transport of the nodes)
+        this.link = Link.open(nodeConfigs[0].getTransport(), clientConfig, clientConfig.getPort(), nodeConfigs,
+                LedgerResponse.class, activateLogs, 5000);
 
         int f = Math.floorDiv(nodeConfigs.length - 1, 3);
         this.smallQuorumSize = f + 1;
@@ -90,7 +93,7 @@ public class Library {
 
         PublicKey accountPubKey;
         try {
-            accountPubKey = RSAEncryption.readPublicKey(this.config.getPublicKeyPath());
+            accountPubKey = KeyRing.publicKey(this.config.getPublicKeyPath());
         } catch (Exception e) {
             throw new LedgerException(ErrorMessage.FailedToReadPublicKey);
         }
@@ -101,7 +104,7 @@ public class Library {
         String serializedCreateRequest = new Gson().toJson(requestCreate);
         String signature;
         try {
-            signature = RSAEncryption.sign(serializedCreateRequest, config.getPrivateKeyPath());
+            signature = KeyRing.sign(config, serializedCreateRequest);
         } catch (Exception e) {
             throw new LedgerException(ErrorMessage.FailedToSignMessage);
         }
@@ -143,8 +146,8 @@ public class Library {
 
         PublicKey sourcePubKey, destinationPubKey;
         try {
-            sourcePubKey = RSAEncryption.readPublicKey(sourceConfig.get().getPublicKeyPath());
-            destinationPubKey = RSAEncryption.readPublicKey(destinationConfig.get().getPublicKeyPath());
+            sourcePubKey = KeyRing.publicKey(sourceConfig.get().getPublicKeyPath());
+            destinationPubKey = KeyRing.publicKey(destinationConfig.get().getPublicKeyPath());
         } catch (Exception e) {
             throw new LedgerException(ErrorMessage.FailedToReadPublicKey);
         }
@@ -163,7 +166,7 @@ public class Library {
         String requestTransferSerialized = new Gson().toJson(requestTransfer);
         String signature;
         try {
-            signature = RSAEncryption.sign(requestTransferSerialized, config.getPrivateKeyPath());
+            signature = KeyRing.sign(config, requestTransferSerialized);
         } catch (Exception e) {
             throw new LedgerException(ErrorMessage.FailedToSignMessage);
         }
@@ -186,7 +189,7 @@ public class Library {
             throw new LedgerException(ErrorMessage.InvalidAccount);
         PublicKey accountPubKey;
         try {
-            accountPubKey = RSAEncryption.readPublicKey(accountConfig.get().getPublicKeyPath());
+            accountPubKey = KeyRing.publicKey(accountConfig.get().getPublicKeyPath());
         } catch (Exception e) {
             throw new LedgerException(ErrorMessage.FailedToReadPublicKey);
         }
@@ -220,7 +223,7 @@ public class Library {
         String requestTransferSerialized = new Gson().toJson(requestRead);
         String signature;
         try {
-            signature = RSAEncryption.sign(requestTransferSerialized, config.getPrivateKeyPath());
+            signature = KeyRing.sign(config, requestTransferSerialized);
         } catch (Exception e) {
             throw new LedgerException(ErrorMessage.FailedToSignMessage);
         }
@@ -253,7 +256,7 @@ public class Library {
     private String findIdByPublicKey(PublicKey publicKey) {
         for (ProcessConfig config : this.allConfigs) {
             try {
-                PublicKey accountPubKey = RSAEncryption.readPublicKey(config.getPublicKeyPath());
+                PublicKey accountPubKey = KeyRing.publicKey(config.getPublicKeyPath());
                 if (accountPubKey.equals(publicKey)) {
                     return config.getId();
                 }
@@ -346,6 +349,8 @@ public class Library {
     /*
      * Verify if the signatures within a LedgerResponse are all valid and have the
      * minimum size of the small quorum
+     * Nodes sign the Merkle root of the account updates of an instance, so the
+     * root is rebuilt from the account update and its proof of inclusion first
      *
      * @param response LedgerResponse to verify
      */
@@ -354,10 +359,16 @@ public class Library {
         // if(response.getUpdateAccount().getNonces().equals(response.getNonces()))
 
         // Response must have at least small quorum size signatures
-        if (response.getSignatures().size() < this.smallQuorumSize)
+        if (response.getSignatures() == null || response.getSignatures().size() < this.smallQuorumSize)
+            return false;
+
+        if (response.getUpdateAccount() == null)
+            return false;
+        byte[] root = MerkleTree.rootOf(response.getUpdateAccount().toMerkleLeaf(), response.getProof());
+        if (root == null)
             return false;
 
-        String accountUpdateSerialized = new Gson().toJson(response.getUpdateAccount());
+        String signedRoot = CommitMessage.signedRoot(root);
         for (var signature : response.getSignatures().entrySet()) {
             // Find public key of node that signed the response
             Optional<ProcessConfig> nodeConfig = Arrays.stream(this.nodeConfigs)
@@ -368,8 +379,7 @@ public class Library {
 
             // Verify signature
             try {
-                if (!RSAEncryption.verifySignature(accountUpdateSerialized, signature.getValue(),
-                        nodeConfig.get().getPublicKeyPath()))
+                if (!KeyRing.verify(nodeConfig.get(), signedRoot, signature.getValue()))
                     return false;
             } catch (Exception e) {
                 return false;
@@ -0,0 +1,204 @@
+package pt.ulisboa.tecnico.hdsledger.service;
+
+import com.google.gson.Gson;
+
+import pt.ulisboa.tecnico.hdsledger.communication.LedgerRequest;
+import pt.ulisboa.tecnico.hdsledger.communication.LedgerRequestCreate;
+import pt.ulisboa.tecnico.hdsledger.communication.LedgerRequestTransfer;
+import pt.ulisboa.tecnico.hdsledger.communication.LedgerResponse;
+import pt.ulisboa.tecnico.hdsledger.communication.Link;
+import pt.ulisboa.tecnico.hdsledger.communication.Message;
+import pt.ulisboa.tecnico.hdsledger.communication.SimulatedNetwork;
+import pt.ulisboa.tecnico.hdsledger.utilities.KeyRing;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Runs clusters of several sizes in one JVM (see LocalCluster) and measures
+ * the throughput and latency of transfers under a lossy simulated network
+ * Every client creates its account and then keeps up to OUTSTANDING transfers
+ * to the next client in flight; a request is done when the first reply that
+ * covers it arrives
+ * Nodes start an instance only once the previous one is decided, checking
+ * every second, so the throughput is bound by about a block per second
+ *
+ * Usage (from the Service folder):
+ *   mvn exec:java -DmainClass=pt.ulisboa.tecnico.hdsledger.service.ClusterBenchmark \
+ *       [-Dexec.args="<loss> <cluster sizes...>"]
+ */
+public class ClusterBenchmark {
+
+    private static final int CLIENTS = 4;
+    private static final int TRANSFERS_PER_CLIENT = 50;
+    // Transfers of each client waiting for a reply
+    private static final int OUTSTANDING = 8;
+    // Blocks are only proposed once full, so the block size divides both the
+    // number of accounts created and the number of transfers
+    private static final int BLOCK_SIZE = CLIENTS;
+    // One-way latency and jitter of every link (ms)
+    private static final int LATENCY = 1;
+    private static final int JITTER = 1;
+    private static final long SEED = 0;
+    // Time given to each cluster to serve every request (s)
+    private static final int TIMEOUT = 300;
+
+    public static void main(String[] args) throws Exception {
+        double loss = args.length > 0 ? Double.parseDouble(args[0]) : 0.01;
+        int[] sizes = args.length > 1
+                ? Arrays.stream(args).skip(1).mapToInt(Integer::parseInt).toArray()
+                : new int[] { 4, 7, 16 };
+
+        System.out.printf("Transfers over a simulated network (%d clients, %d transfers each, %d in flight, "
+                + "block size %d, latency %d+%d ms, loss %.1f%%)%n", CLIENTS, TRANSFERS_PER_CLIENT, OUTSTANDING,
+                BLOCK_SIZE, LATENCY, JITTER, 100 * loss);
+        System.out.printf("%5s | %8s %9s | %8s %8s %8s %8s%n", "nodes", "done", "tx/s", "p50 ms", "p90 ms",
+                "p99 ms", "max ms");
+
+        for (int size : sizes) {
+            SimulatedNetwork network = new SimulatedNetwork(
+                    new SimulatedNetwork.Conditions(LATENCY, JITTER, loss, 0, 0), SEED);
+            LocalCluster cluster = new LocalCluster(network, size, CLIENTS, BLOCK_SIZE, false);
+
+            List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+            List<Driver> drivers = new ArrayList<>();
+            ProcessConfig[] clients = cluster.getClients();
+            for (int i = 0; i < clients.length; i++)
+                drivers.add(new Driver(cluster, clients[i], clients[(i + 1) % clients.length], latencies));
+
+            // Accounts first, so that transfers find their destination
+            for (Driver driver : drivers)
+                driver.create();
+            for (Driver driver : drivers)
+                driver.await();
+
+            long start = System.nanoTime();
+            List<Thread> threads = new ArrayList<>();
+            for (Driver driver : drivers) {
+                Thread thread = new Thread(driver::transfer, "benchmark-" + driver.client.getId());
+                threads.add(thread);
+                thread.start();
+            }
+            boolean done = true;
+            for (Thread thread : threads)
+                thread.join();
+            for (Driver driver : drivers)
+                done &= driver.await();
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            List<Long> sorted = new ArrayList<>(latencies);
+            sorted.sort(null);
+            System.out.printf("%5d | %8s %9.1f | %8.1f %8.1f %8.1f %8.1f%n", size,
+                    done ? String.valueOf(sorted.size()) : sorted.size() + "!", sorted.size() / seconds,
+                    percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                    percentile(sorted, 1));
+        }
+        System.exit(0);
+    }
+
+    /*
+     * Latency at a percentile of the sorted samples (ms)
+     */
+    private static double percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty())
+            return Double.NaN;
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return sorted.get(Math.max(index, 0)) / 1e6;
+    }
+
+    /*
+     * Client sending signed requests as Library does, and matching the replies
+     * with them by nonce
+     */
+    private static class Driver {
+
+        private final ProcessConfig client;
+        private final PublicKey source;
+        private final PublicKey destination;
+        private final Link link;
+        private final List<Long> latencies;
+        // Requests waiting for a reply {nonce -> time sent (ns)}
+        private final Map<Integer, Long> pending = new ConcurrentHashMap<>();
+        private final Semaphore window = new Semaphore(OUTSTANDING);
+        private volatile CountDownLatch remaining;
+        private int nonce = 0;
+
+        private Driver(LocalCluster cluster, ProcessConfig client, ProcessConfig destination, List<Long> latencies) {
+            this.client = client;
+            this.source = KeyRing.publicKey(client.getPublicKeyPath());
+            this.destination = KeyRing.publicKey(destination.getPublicKeyPath());
+            this.link = cluster.getClientLink(client.getId());
+            this.latencies = latencies;
+
+            Thread listener = new Thread(this::listen, "benchmark-" + client.getId() + "-replies");
+            listener.setDaemon(true);
+            listener.start();
+        }
+
+        private void create() {
+            remaining = new CountDownLatch(1);
+            String serialized = new Gson().toJson(new LedgerRequestCreate(nonce, source));
+            send(Message.Type.CREATE, serialized);
+        }
+
+        private void transfer() {
+            remaining = new CountDownLatch(TRANSFERS_PER_CLIENT);
+            for (int i = 0; i < TRANSFERS_PER_CLIENT; i++) {
+                String serialized = new Gson()
+                        .toJson(new LedgerRequestTransfer(nonce, source, destination, BigDecimal.ONE));
+                send(Message.Type.TRANSFER, serialized);
+            }
+        }
+
+        private void send(Message.Type type, String serialized) {
+            window.acquireUninterruptibly();
+            pending.put(nonce++, System.nanoTime());
+            link.smallQuorumMulticast(new LedgerRequest(client.getId(), type, serialized,
+                    KeyRing.sign(client, serialized)));
+        }
+
+        /*
+         * Waits for the replies to the requests sent
+         *
+         * @return False if some did not arrive in time
+         */
+        private boolean await() throws InterruptedException {
+            return remaining.await(TIMEOUT, TimeUnit.SECONDS);
+        }
+
+        private void listen() {
+            try {
+                for (;;) {
+                    if (!(link.receive() instanceof LedgerResponse response) || response.getUpdateAccount() == null
+                            || response.getUpdateAccount().getNonces() == null)
+                        continue;
+
+                    long now = System.nanoTime();
+                    for (int replied : response.getUpdateAccount().getNonces()) {
+                        Long sentAt = pending.remove(replied);
+                        if (sentAt == null)
+                            continue;
+                        // The account creation is not measured
+                        if (replied > 0)
+                            latencies.add(now - sentAt);
+                        window.release();
+                        remaining.countDown();
+                    }
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                // Link closed
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package pt.ulisboa.tecnico.hdsledger.service;
+
+import com.google.gson.Gson;
+
+import pt.ulisboa.tecnico.hdsledger.communication.ConsensusMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.LedgerRequest;
+import pt.ulisboa.tecnico.hdsledger.communication.LedgerRequestTransfer;
+import pt.ulisboa.tecnico.hdsledger.communication.Message;
+import pt.ulisboa.tecnico.hdsledger.communication.MessageCodec;
+import pt.ulisboa.tecnico.hdsledger.communication.PrePrepareMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.builder.ConsensusMessageBuilder;
+import pt.ulisboa.tecnico.hdsledger.service.models.Block;
+import pt.ulisboa.tecnico.hdsledger.utilities.RSAEncryption;
+
+import java.math.BigDecimal;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Measures what compressing consensus payloads saves on the wire and what it
+ * costs in CPU, for PRE-PREPARE messages carrying blocks of several sizes
+ * Blocks hold transfers between the accounts of the PKI folder; signatures are
+ * random bytes of the size of an RSA signature (they do not compress either)
+ *
+ * Usage (from the Service folder):
+ *   mvn exec:java -Dexec.mainClass=pt.ulisboa.tecnico.hdsledger.service.CompressionBenchmark \
+ *       [-Dexec.args="<nodes> <block sizes...>"]
+ */
+public class CompressionBenchmark {
+
+    // Keys of the accounts transferring between each other
+    private static final String[] ACCOUNTS = { "client10", "client11", "client12", "node1", "node2", "node3",
+            "node4" };
+    private static final String PKI_PATH = "../PKI/";
+    // Size of an RSA-2048 signature (bytes)
+    private static final int SIGNATURE_SIZE = 256;
+    // Size of the fragments of PerfectLink (bytes)
+    private static final int FRAGMENT_SIZE = 8000;
+    // Bandwidths the transfer time is estimated for (bytes per second)
+    private static final long[] BANDWIDTHS = { 100_000_000L / 8, 1_000_000_000L / 8 };
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int ITERATIONS = 1000;
+    private static final Random RANDOM = new Random(0);
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int[] blockSizes = args.length > 1
+                ? Arrays.stream(args).skip(1).mapToInt(Integer::parseInt).toArray()
+                : new int[] { 1, 4, 16, 64, 256 };
+
+        PublicKey[] keys = new PublicKey[ACCOUNTS.length];
+        for (int i = 0; i < ACCOUNTS.length; i++)
+            keys[i] = RSAEncryption.readPublicKey(PKI_PATH + ACCOUNTS[i] + ".pub");
+
+        // PRE-PREPARE goes to n - 1 nodes and every node sends PREPARE to n - 1
+        // nodes, all with the block
+        int copies = (nodes - 1) * (nodes + 1);
+        System.out.printf("Consensus payload compression (threshold %d B, %d nodes, %d copies of the block "
+                + "per instance)%n", MessageCodec.COMPRESSION_THRESHOLD, nodes, copies);
+        System.out.printf("%6s | %9s %9s %6s | %9s %9s | %10s %10s | %7s %7s | %s%n", "block", "raw B",
+                "wire B", "ratio", "encode us", "decode us", "raw/inst", "wire/inst", "raw dg", "wire dg",
+                "transfer time raw -> compressed (100Mb/s, 1Gb/s)");
+
+        for (int blockSize : blockSizes) {
+            ConsensusMessage message = prePrepare(blockSize, keys);
+            byte[] raw = MessageCodec.encode(message, false);
+            byte[] wire = MessageCodec.encode(message);
+
+            double rawEncode = time(() -> MessageCodec.encode(message, false));
+            double wireEncode = time(() -> MessageCodec.encode(message));
+            double rawDecode = time(() -> MessageCodec.decode(raw));
+            double wireDecode = time(() -> MessageCodec.decode(wire));
+            // Time added by compressing on one side and inflating on the other
+            double codecCost = (wireEncode - rawEncode) + (wireDecode - rawDecode);
+
+            StringBuilder transfer = new StringBuilder();
+            for (long bandwidth : BANDWIDTHS) {
+                double rawTime = 1e6 * raw.length / bandwidth;
+                double wireTime = 1e6 * wire.length / bandwidth + codecCost;
+                transfer.append(String.format("%8.1f -> %8.1f us  ", rawTime, wireTime));
+            }
+
+            System.out.printf("%6d | %9d %9d %5.2fx | %9.1f %9.1f | %10d %10d | %7d %7d | %s%n", blockSize,
+                    raw.length, wire.length, (double) raw.length / wire.length, wireEncode - rawEncode,
+                    wireDecode - rawDecode, (long) raw.length * copies, (long) wire.length * copies,
+                    datagrams(raw.length) * copies, datagrams(wire.length) * copies, transfer);
+        }
+    }
+
+    /*
+     * PRE-PREPARE of a block with the given number of transfers, as the leader
+     * builds it
+     */
+    private static ConsensusMessage prePrepare(int blockSize, PublicKey[] keys) {
+        Block block = new Block();
+        block.setConsensusInstance(1);
+        Gson gson = new Gson();
+        for (int i = 0; i < blockSize; i++) {
+            int source = RANDOM.nextInt(keys.length);
+            int destination = (source + 1 + RANDOM.nextInt(keys.length - 1)) % keys.length;
+            LedgerRequestTransfer transfer = new LedgerRequestTransfer(i, keys[source], keys[destination],
+                    BigDecimal.valueOf(1 + RANDOM.nextInt(100)));
+            block.addRequest(new LedgerRequest(ACCOUNTS[source], Message.Type.TRANSFER, gson.toJson(transfer),
+                    signature()));
+        }
+
+        PrePrepareMessage prePrepareMessage = new PrePrepareMessage(block.toJson(), signature());
+        return new ConsensusMessageBuilder("1", Message.Type.PRE_PREPARE)
+                .setConsensusInstance(1)
+                .setRound(1)
+                .setMessage(prePrepareMessage.toBytes())
+                .build();
+    }
+
+    private static String signature() {
+        byte[] signature = new byte[SIGNATURE_SIZE];
+        RANDOM.nextBytes(signature);
+        return Base64.getEncoder().encodeToString(signature);
+    }
+
+    private static long datagrams(int length) {
+        return (length + FRAGMENT_SIZE - 1) / FRAGMENT_SIZE;
+    }
+
+    /*
+     * Median time of a task (us)
+     */
+    private static double time(Runnable task) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++)
+            task.run();
+
+        List<Long> samples = new ArrayList<>(ITERATIONS);
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            samples.add(System.nanoTime() - start);
+        }
+        samples.sort(null);
+        return samples.get(ITERATIONS / 2) / 1000.0;
+    }
+}
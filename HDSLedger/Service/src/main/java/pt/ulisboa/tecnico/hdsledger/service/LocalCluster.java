@@ -0,0 +1,170 @@
+package pt.ulisboa.tecnico.hdsledger.service;
+
+import com.google.gson.Gson;
+
+import pt.ulisboa.tecnico.hdsledger.communication.ConsensusMessage;
+import pt.ulisboa.tecnico.hdsledger.communication.LedgerRequest;
+import pt.ulisboa.tecnico.hdsledger.communication.LedgerResponse;
+import pt.ulisboa.tecnico.hdsledger.communication.Link;
+import pt.ulisboa.tecnico.hdsledger.communication.SimulatedLink;
+import pt.ulisboa.tecnico.hdsledger.communication.SimulatedNetwork;
+import pt.ulisboa.tecnico.hdsledger.service.services.LedgerService;
+import pt.ulisboa.tecnico.hdsledger.service.services.Mempool;
+import pt.ulisboa.tecnico.hdsledger.service.services.NodeService;
+import pt.ulisboa.tecnico.hdsledger.utilities.KeyRing;
+import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.LogManager;
+
+/*
+ * Cluster of nodes running in one JVM over a SimulatedNetwork, for benchmarks
+ * and experiments on a single machine
+ * Nodes and clients get Ed25519 keys generated in a temporary folder, so the
+ * cluster may have any size; node i has identifier "i" (node 1 leads) and
+ * client j has identifier "c<j>"
+ * The links of every client are opened with the cluster, before any node
+ * starts, since the network refuses messages to addresses nobody listens on
+ * Nodes run until the JVM exits
+ */
+public class LocalCluster {
+
+    // Ports of the simulated addresses (nothing is bound)
+    private static final int NODE_PORT = 3000;
+    private static final int NODE_CLIENT_PORT = 4000;
+    private static final int CLIENT_PORT = 5000;
+    private final SimulatedNetwork network;
+    private final ProcessConfig[] nodes;
+    private final ProcessConfig[] clients;
+    // Link of each client to the nodes
+    private final Map<String, Link> clientLinks = new HashMap<>();
+
+    /*
+     * Generates the keys and starts the nodes
+     *
+     * @param blockSize Number of requests in each block
+     *
+     * @param activateLogs False to silence the logs of the nodes and links
+     */
+    public LocalCluster(SimulatedNetwork network, int nodeCount, int clientCount, int blockSize,
+            boolean activateLogs) throws IOException, GeneralSecurityException {
+
+        this.network = network;
+        Path keys = Files.createTempDirectory("hdsledger-keys");
+        keys.toFile().deleteOnExit();
+        this.nodes = configs(keys, nodeCount, "", NODE_PORT);
+        this.clients = configs(keys, clientCount, "c", CLIENT_PORT);
+        for (int i = 0; i < nodeCount; i++) {
+            nodes[i].setLeader(i == 0);
+            nodes[i].setTransport(ProcessConfig.Transport.SIMULATED);
+        }
+
+        // Clients reach the nodes at their client ports
+        ProcessConfig[] nodesForClients = copy(nodes);
+        for (ProcessConfig node : nodesForClients)
+            node.setPort(node.getClientPort());
+        for (ProcessConfig client : clients) {
+            KeyRing.load(client, nodesForClients, clients);
+            clientLinks.put(client.getId(), new SimulatedLink(network, client, client.getPort(), nodesForClients,
+                    LedgerResponse.class, activateLogs));
+        }
+
+        List<Runnable> services = new ArrayList<>();
+        for (ProcessConfig node : nodes)
+            services.add(open(node, blockSize, activateLogs));
+        services.forEach(Runnable::run);
+
+        // Loggers created along with the services log again
+        if (!activateLogs)
+            LogManager.getLogManager().reset();
+    }
+
+    /*
+     * Opens the links and creates the services of a node, as Node does
+     *
+     * @return Starts the services
+     */
+    private Runnable open(ProcessConfig node, int blockSize, boolean activateLogs) {
+        KeyRing.load(node, nodes, clients);
+        Link linkToNodes = new SimulatedLink(network, node, node.getPort(), nodes, ConsensusMessage.class,
+                activateLogs);
+        Link linkToClients = new SimulatedLink(network, node, node.getClientPort(), clients, LedgerRequest.class,
+                activateLogs);
+
+        Mempool mempool = new Mempool(blockSize);
+        NodeService nodeService = new NodeService(clients, linkToNodes, linkToClients, node, nodes[0], nodes,
+                mempool);
+        LedgerService ledgerService = new LedgerService(clients, linkToClients, node, nodeService, mempool,
+                nodes[0]);
+        return () -> {
+            nodeService.listen();
+            ledgerService.listen();
+        };
+    }
+
+    /*
+     * Configurations of a group of processes, each with a key pair of its own
+     */
+    private static ProcessConfig[] configs(Path keys, int count, String prefix, int basePort)
+            throws IOException, GeneralSecurityException {
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("Ed25519");
+        List<Map<String, Object>> configs = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            String id = prefix + i;
+            KeyPair pair = generator.generateKeyPair();
+            Path publicKey = keys.resolve(id + ".pub");
+            Path privateKey = keys.resolve(id + ".priv");
+            Files.write(publicKey, pair.getPublic().getEncoded());
+            Files.write(privateKey, pair.getPrivate().getEncoded());
+            publicKey.toFile().deleteOnExit();
+            privateKey.toFile().deleteOnExit();
+
+            Map<String, Object> config = new LinkedHashMap<>();
+            config.put("id", id);
+            config.put("hostname", "localhost");
+            config.put("port", basePort + i);
+            config.put("clientPort", NODE_CLIENT_PORT + i);
+            config.put("publicKeyPath", publicKey.toString());
+            config.put("privateKeyPath", privateKey.toString());
+            config.put("signatureScheme", "ED25519");
+            configs.add(config);
+        }
+        Gson gson = new Gson();
+        return gson.fromJson(gson.toJson(configs), ProcessConfig[].class);
+    }
+
+    private static ProcessConfig[] copy(ProcessConfig[] configs) {
+        Gson gson = new Gson();
+        return gson.fromJson(gson.toJson(configs), ProcessConfig[].class);
+    }
+
+    public SimulatedNetwork getNetwork() {
+        return network;
+    }
+
+    public ProcessConfig[] getNodes() {
+        return nodes;
+    }
+
+    public ProcessConfig[] getClients() {
+        return clients;
+    }
+
+    /*
+     * Link of a client to the nodes (shared by whoever asks for it)
+     */
+    public Link getClientLink(String clientId) {
+        return clientLinks.get(clientId);
+    }
+}
@@ -2,11 +2,14 @@ package pt.ulisboa.tecnico.hdsledger.service;
 
 import pt.ulisboa.tecnico.hdsledger.service.services.Mempool;
 import pt.ulisboa.tecnico.hdsledger.utilities.CustomLogger;
+import pt.ulisboa.tecnico.hdsledger.utilities.ErrorMessage;
+import pt.ulisboa.tecnico.hdsledger.utilities.KeyRing;
+import pt.ulisboa.tecnico.hdsledger.utilities.LedgerException;
 import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
 import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfigBuilder;
 import pt.ulisboa.tecnico.hdsledger.communication.LedgerRequest;
 import pt.ulisboa.tecnico.hdsledger.communication.ConsensusMessage;
-import pt.ulisboa.tecnico.hdsledger.communication.PerfectLink;
+import pt.ulisboa.tecnico.hdsledger.communication.Link;
 import pt.ulisboa.tecnico.hdsledger.service.services.LedgerService;
 import pt.ulisboa.tecnico.hdsledger.service.services.NodeService;
 
@@ -35,6 +38,10 @@ public class Node {
             ProcessConfig leaderConfig = Arrays.stream(nodeConfigs).filter(ProcessConfig::isLeader).findAny().get();
             ProcessConfig nodeConfig = Arrays.stream(nodeConfigs).filter(c -> c.getId().equals(id)).findAny().get();
 
+            // Simulated links cannot reach the nodes of other JVMs (see LocalCluster)
+            if (nodeConfig.getTransport() == ProcessConfig.Transport.SIMULATED)
+                throw new LedgerException(ErrorMessage.SimulatedTransportOutsideCluster);
+
             // BYZANTINE_TESTS
             if (nodeConfig.getByzantineBehavior() == ProcessConfig.ByzantineBehavior.BAD_CONSENSUS) {
                 Arrays.stream(nodeConfigs).filter(ProcessConfig::isLeader).forEach(n -> n.setLeader(false));
@@ -45,11 +52,14 @@ public class Node {
                     nodeConfig.getId(), nodeConfig.getHostname(), nodeConfig.getPort(),
                     nodeConfig.getByzantineBehavior(), nodeConfig.isLeader()));
 
+            // Parse every key once, before the links start verifying
+            KeyRing.load(nodeConfig, nodeConfigs, clientConfigs);
+
             // Abstraction to send and receive messages
-            PerfectLink linkToNodes = new PerfectLink(nodeConfig, nodeConfig.getPort(), nodeConfigs,
+            Link linkToNodes = Link.open(nodeConfig.getTransport(), nodeConfig, nodeConfig.getPort(), nodeConfigs,
                     ConsensusMessage.class);
-            PerfectLink linkToClients = new PerfectLink(nodeConfig, nodeConfig.getClientPort(), clientConfigs,
-                    LedgerRequest.class);
+            Link linkToClients = Link.open(nodeConfig.getTransport(), nodeConfig, nodeConfig.getClientPort(),
+                    clientConfigs, LedgerRequest.class);
 
             // Shared entities
             Mempool mempool = new Mempool(blockSize);
@@ -1,5 +1,6 @@
 package pt.ulisboa.tecnico.hdsledger.service.models;
 
+import pt.ulisboa.tecnico.hdsledger.utilities.MerkleTree;
 import pt.ulisboa.tecnico.hdsledger.utilities.RSAEncryption;
 
 import java.math.BigDecimal;
@@ -26,9 +27,12 @@ public class Ledger {
     private final Map<String, Account> temporaryAccounts = new ConcurrentHashMap<>();
     // Map consensus instance -> public key hash -> account update
     private final Map<Integer, Map<String, UpdateAccount>> accountUpdates = new ConcurrentHashMap<>();
-    // Map consensus instance -> public key hash -> signer Id -> account update
-    // signature
-    private final Map<Integer, Map<String, Map<String, String>>> accountUpdateSignatures = new ConcurrentHashMap<>();
+    // Map consensus instance -> signer Id -> signature of the Merkle root of the
+    // account updates
+    private final Map<Integer, Map<String, String>> rootSignatures = new ConcurrentHashMap<>();
+    // Map consensus instance -> public key hash -> proof the account update is
+    // under that root
+    private final Map<Integer, Map<String, MerkleTree.Proof>> accountUpdateProofs = new ConcurrentHashMap<>();
 
     private BigDecimal fee = BigDecimal.ONE;
 
@@ -51,21 +55,23 @@ public class Ledger {
         return temporaryAccounts;
     }
 
-    public void addAccountUpdateSignature(int consensusInstance, String publicKeyHash, String signerId,
-            String signature) {
-        accountUpdateSignatures.putIfAbsent(consensusInstance, new ConcurrentHashMap<>());
-        accountUpdateSignatures.get(consensusInstance).putIfAbsent(publicKeyHash, new ConcurrentHashMap<>());
-        this.getAccountUpdateSignatures(consensusInstance, publicKeyHash).put(signerId, signature);
+    public void addRootSignature(int consensusInstance, String signerId, String signature) {
+        this.getRootSignatures(consensusInstance).put(signerId, signature);
     }
 
-    public Map<String, String> getAccountUpdateSignatures(int consensusInstance, String publicKeyHash) {
-        accountUpdateSignatures.putIfAbsent(consensusInstance, new ConcurrentHashMap<>());
-        accountUpdateSignatures.get(consensusInstance).putIfAbsent(publicKeyHash, new ConcurrentHashMap<>());
-        return accountUpdateSignatures.get(consensusInstance).get(publicKeyHash);
+    public Map<String, String> getRootSignatures(int consensusInstance) {
+        rootSignatures.putIfAbsent(consensusInstance, new ConcurrentHashMap<>());
+        return rootSignatures.get(consensusInstance);
     }
 
-    public Map<Integer, Map<String, Map<String, String>>> getAccountUpdateSignatures() {
-        return accountUpdateSignatures;
+    public void addAccountUpdateProof(int consensusInstance, String publicKeyHash, MerkleTree.Proof proof) {
+        accountUpdateProofs.putIfAbsent(consensusInstance, new ConcurrentHashMap<>());
+        accountUpdateProofs.get(consensusInstance).put(publicKeyHash, proof);
+    }
+
+    public MerkleTree.Proof getAccountUpdateProof(int consensusInstance, String publicKeyHash) {
+        Map<String, MerkleTree.Proof> proofs = accountUpdateProofs.get(consensusInstance);
+        return proofs == null ? null : proofs.get(publicKeyHash);
     }
 
     public Optional<Account> createAccount(String ownerId, PublicKey publicKey) {
@@ -73,7 +73,7 @@ public class MessageBucket {
             // for each commit message i have received
             CommitMessage commitMessage = message.deserializeCommitMessage();
             // i get the list of Account Updates in each commit
-            List<UpdateAccount> updates = commitMessage.getUpdateAccountSignatures().values().stream().toList();
+            List<UpdateAccount> updates = commitMessage.getAccountUpdates();
             // Updates may be out of order which leads to a different hash code (even though its the same updates)
             int hash = updates.stream().map(UpdateAccount::hashCode).reduce(0, (acc, next) -> acc ^ next);
             List<ConsensusMessage> msgs = messages.getOrDefault(hash, new ArrayList<>());
@@ -91,13 +91,13 @@ public class MessageBucket {
 
     public void verifyReceivedCommitMessage(CommitMessage quorumMessage, int instance, int round) {
         int quorumHash = quorumMessage
-                .getUpdateAccountSignatures().values().stream()
+                .getAccountUpdates().stream()
                 .map(UpdateAccount::hashCode)
                 .reduce(0, (acc, next) -> acc ^ next);
         bucket.get(instance).get(round).values().forEach((message) -> {
             CommitMessage commitMessage = message.deserializeCommitMessage();
             int messageHash = commitMessage
-                    .getUpdateAccountSignatures().values().stream()
+                    .getAccountUpdates().stream()
                     .map(UpdateAccount::hashCode)
                     .reduce(0, (acc, next) -> acc ^ next);
             if (quorumHash != messageHash)
@@ -5,8 +5,9 @@ import pt.ulisboa.tecnico.hdsledger.communication.*;
 import pt.ulisboa.tecnico.hdsledger.service.models.Block;
 import pt.ulisboa.tecnico.hdsledger.utilities.CustomLogger;
 import pt.ulisboa.tecnico.hdsledger.utilities.ErrorMessage;
+import pt.ulisboa.tecnico.hdsledger.utilities.KeyRing;
+import pt.ulisboa.tecnico.hdsledger.utilities.Lane;
 import pt.ulisboa.tecnico.hdsledger.utilities.LedgerException;
-import pt.ulisboa.tecnico.hdsledger.utilities.RSAEncryption;
 
 import java.io.IOException;
 import java.math.BigDecimal;
@@ -23,7 +24,7 @@ public class LedgerService implements UDPService {
     // Clients configurations
     private final ProcessConfig[] clientConfigs;
     // Link to communicate with client nodes
-    private final PerfectLink link;
+    private final Link link;
     // Node configuration
     private final ProcessConfig config;
     // Node service that provides consensus interface
@@ -34,8 +35,11 @@ public class LedgerService implements UDPService {
     private final ProcessConfig leaderConfig;
     // Used for BYZANTINE_TESTS
     private ProcessConfig censoredClient = null;
+    // Threads handling client requests, apart from consensus traffic so that a
+    // burst of requests cannot hold back the instances they wait for
+    private final Lane lane;
 
-    public LedgerService(ProcessConfig[] clientConfigs, PerfectLink link, ProcessConfig config,
+    public LedgerService(ProcessConfig[] clientConfigs, Link link, ProcessConfig config,
             NodeService service, Mempool mempool, ProcessConfig leaderConfig) {
         this.clientConfigs = clientConfigs;
         this.link = link;
@@ -43,6 +47,7 @@ public class LedgerService implements UDPService {
         this.service = service;
         this.mempool = mempool;
         this.leaderConfig = leaderConfig;
+        this.lane = new Lane(config.getId() + "-client", config.getClientThreads(), config.getLaneCapacity());
         // BYZANTINE_TESTS
         if (this.config.isLeader()
                 && this.config.getByzantineBehavior() == ProcessConfig.ByzantineBehavior.DICTATOR_LEADER) {
@@ -69,8 +74,7 @@ public class LedgerService implements UDPService {
             throw new LedgerException(ErrorMessage.NoSuchClient);
 
         // Verify client action was signed by him
-        if (RSAEncryption.verifySignature(request.getMessage(), request.getClientSignature(),
-                clientConfig.get().getPublicKeyPath()))
+        if (KeyRing.verify(clientConfig.get(), request.getMessage(), request.getClientSignature()))
             return true;
 
         LOGGER.log(Level.INFO, MessageFormat.format(
@@ -191,7 +195,7 @@ public class LedgerService implements UDPService {
             PublicKey sourcePubKey = clientTransfer.getSourcePubKey();
             PublicKey destinationPubKey;
             try {
-                destinationPubKey = RSAEncryption.readPublicKey(this.config.getPublicKeyPath());
+                destinationPubKey = KeyRing.publicKey(this.config.getPublicKeyPath());
             } catch (Exception e) {
                 throw new LedgerException(ErrorMessage.FailedToReadPublicKey);
             }
@@ -203,7 +207,7 @@ public class LedgerService implements UDPService {
             String requestTransferSerialized = new Gson().toJson(requestTransfer);
             String signature;
             try {
-                signature = RSAEncryption.sign(requestTransferSerialized, config.getPrivateKeyPath());
+                signature = KeyRing.sign(config, requestTransferSerialized);
             } catch (Exception e) {
                 throw new LedgerException(ErrorMessage.FailedToSignMessage);
             }
@@ -243,7 +247,7 @@ public class LedgerService implements UDPService {
             return result;
         }
         try {
-            result = RSAEncryption.readPublicKey(senderConfig.get().getPublicKeyPath()).equals(pubKey);
+            result = KeyRing.publicKey(senderConfig.get().getPublicKeyPath()).equals(pubKey);
         } catch (Exception e) {
             throw new LedgerException(ErrorMessage.FailedToReadPublicKey);
         }
@@ -307,8 +311,8 @@ public class LedgerService implements UDPService {
 
                         Message message = link.receive();
 
-                        // Separate thread to handle each message
-                        new Thread(() -> {
+                        // Handled by the client lane (waits while the lane is full)
+                        lane.submit(() -> {
 
                             switch (message.getType()) {
                                 case CREATE -> {
@@ -340,7 +344,7 @@ public class LedgerService implements UDPService {
                                 default -> throw new LedgerException(ErrorMessage.CannotParseMessage);
                             }
 
-                        }).start();
+                        });
                     }
                 } catch (IOException | ClassNotFoundException e) {
                     e.printStackTrace();
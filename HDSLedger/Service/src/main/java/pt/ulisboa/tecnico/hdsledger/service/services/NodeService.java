@@ -4,9 +4,13 @@ import pt.ulisboa.tecnico.hdsledger.communication.*;
 import pt.ulisboa.tecnico.hdsledger.communication.Message.Type;
 import pt.ulisboa.tecnico.hdsledger.communication.builder.ConsensusMessageBuilder;
 import pt.ulisboa.tecnico.hdsledger.service.models.*;
+import pt.ulisboa.tecnico.hdsledger.utilities.BatchVerifier;
 import pt.ulisboa.tecnico.hdsledger.utilities.CustomLogger;
 import pt.ulisboa.tecnico.hdsledger.utilities.ErrorMessage;
+import pt.ulisboa.tecnico.hdsledger.utilities.KeyRing;
+import pt.ulisboa.tecnico.hdsledger.utilities.Lane;
 import pt.ulisboa.tecnico.hdsledger.utilities.LedgerException;
+import pt.ulisboa.tecnico.hdsledger.utilities.MerkleTree;
 import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig;
 import pt.ulisboa.tecnico.hdsledger.utilities.RSAEncryption;
 import pt.ulisboa.tecnico.hdsledger.utilities.ProcessConfig.ByzantineBehavior;
@@ -28,6 +32,8 @@ public class NodeService implements UDPService {
     private final ProcessConfig[] nodesConfig;
     // Clients configurations
     private final ProcessConfig[] clientsConfig;
+    // Clients configurations by id
+    private final Map<String, ProcessConfig> clientsById = new HashMap<>();
     // Current node is leader
     private final ProcessConfig config;
     // Leader configuration
@@ -37,9 +43,9 @@ public class NodeService implements UDPService {
     private final String leaderPublicKeyHash;
 
     // Link to communicate with blockchain nodes
-    private final PerfectLink link;
+    private final Link link;
     // Link to communicate with client nodes
-    private final PerfectLink clientLink;
+    private final Link clientLink;
 
     // Consensus instance -> Round -> List of prepare messages
     private final MessageBucket prepareMessages;
@@ -60,11 +66,18 @@ public class NodeService implements UDPService {
     private final Mempool mempool;
     // Account refresh threshold (# instances)
     private final int refreshThreshold = 2;
-
-    public NodeService(ProcessConfig[] clientsConfig, PerfectLink link, PerfectLink clientLink, ProcessConfig config,
+    // Consensus instances ahead of the last decided one whose messages are accepted
+    private static final int CONSENSUS_WINDOW = 64;
+    // Threads handling consensus messages
+    private final Lane lane;
+    // Threads checking the client signatures of blocks
+    private final BatchVerifier verifier;
+
+    public NodeService(ProcessConfig[] clientsConfig, Link link, Link clientLink, ProcessConfig config,
             ProcessConfig leaderConfig, ProcessConfig[] nodesConfig, Mempool mempool) {
 
         this.clientsConfig = clientsConfig;
+        Arrays.stream(clientsConfig).forEach(client -> this.clientsById.put(client.getId(), client));
         this.link = link;
         this.clientLink = clientLink;
         this.config = config;
@@ -75,9 +88,11 @@ public class NodeService implements UDPService {
 
         this.prepareMessages = new MessageBucket(nodesConfig.length);
         this.commitMessages = new MessageBucket(nodesConfig.length);
+        this.lane = new Lane(config.getId() + "-consensus", config.getConsensusThreads(), config.getLaneCapacity());
+        this.verifier = new BatchVerifier(config.getId() + "-verifier", config.getVerifierThreads());
 
         try {
-            this.leaderPublicKey = RSAEncryption.readPublicKey(leaderConfig.getPublicKeyPath());
+            this.leaderPublicKey = KeyRing.publicKey(leaderConfig.getPublicKeyPath());
             this.leaderPublicKeyHash = RSAEncryption.digest(this.leaderPublicKey.toString());
         } catch (Exception e) {
             throw new LedgerException(ErrorMessage.FailedToReadPublicKey);
@@ -91,6 +106,10 @@ public class NodeService implements UDPService {
             this.ledger.setFee(this.ledger.getFee().intValue() * 2);
         }
 
+        // Messages of instances too far ahead are dropped before their signature is
+        // checked, the sender retransmits them once this node has caught up
+        this.link.addFilter((senderId, type, instance) -> instance <= lastDecidedConsensusInstance.get()
+                + CONSENSUS_WINDOW);
     }
 
     public ProcessConfig getConfig() {
@@ -111,11 +130,13 @@ public class NodeService implements UDPService {
             return;
         }
 
-        // Get latest account update and corresponding signatures
+        // Get latest account update, the signatures of the root it is under and the
+        // proof of it
         Account account = this.ledger.getAccount(publicKeyHash);
         UpdateAccount accountUpdate = account.getMostRecentAccountUpdate();
 
-        Map<String, String> signatures = this.ledger.getAccountUpdateSignatures(accountUpdate.getConsensusInstance(),
+        Map<String, String> signatures = this.ledger.getRootSignatures(accountUpdate.getConsensusInstance());
+        MerkleTree.Proof proof = this.ledger.getAccountUpdateProof(accountUpdate.getConsensusInstance(),
                 publicKeyHash);
 
         // BYZANTINE_TESTS
@@ -128,7 +149,7 @@ public class NodeService implements UDPService {
         }
 
         LedgerResponse response = new LedgerResponse(this.config.getId(), accountUpdate.isValid(), accountUpdate,
-                signatures,
+                signatures, proof,
                 requestBalance.getNonce());
 
         List<Integer> repliesTo = new ArrayList<>();
@@ -145,10 +166,10 @@ public class NodeService implements UDPService {
      *
      * @param block - Block to validate
      *
-     * @return - Map signature -> account update it's signing or empty map if block
-     * is invalid
+     * @return - Account updates of the block (marked invalid if the block is
+     * invalid) or an empty list
      */
-    private Map<String, UpdateAccount> tryAddBlock(int instance, Block block) {
+    private List<UpdateAccount> tryAddBlock(int instance, Block block) {
 
         // Public key hash -> {nonces}
         Map<String, List<Integer>> nonces = new HashMap<>();
@@ -159,7 +180,7 @@ public class NodeService implements UDPService {
             Arrays.stream(this.clientsConfig).forEach(client -> {
                 PublicKey pubKey;
                 try {
-                    pubKey = RSAEncryption.readPublicKey(client.getPublicKeyPath());
+                    pubKey = KeyRing.publicKey(client.getPublicKeyPath());
                 } catch (Exception e) {
                     throw new LedgerException(ErrorMessage.FailedToReadPublicKey);
                 }
@@ -171,7 +192,7 @@ public class NodeService implements UDPService {
             });
             PublicKey pubKey;
             try {
-                pubKey = RSAEncryption.readPublicKey(this.leaderConfig.getPublicKeyPath());
+                pubKey = KeyRing.publicKey(this.leaderConfig.getPublicKeyPath());
             } catch (Exception e) {
                 throw new LedgerException(ErrorMessage.FailedToReadPublicKey);
             }
@@ -287,26 +308,16 @@ public class NodeService implements UDPService {
             }
         }
 
-        // Create account updates and sign them
-        HashMap<String, UpdateAccount> accountUpdates = new HashMap<>();
+        // Create account updates (signed all at once, see signAccountUpdates)
+        List<UpdateAccount> accountUpdates = new ArrayList<>();
 
         for (Map.Entry<String, List<Integer>> entry : nonces.entrySet()) {
             Account account = this.ledger.getTemporaryAccount(entry.getKey());
             List<Integer> accountNonces = entry.getValue();
-            String accountSignature;
             UpdateAccount upAcc = new UpdateAccount(account.getOwnerId(), account.getPublicKeyHash(),
                     account.getBalance(), instance, accountNonces, instance == 1 ? account.isActive() : isValid);
-            try {
-                accountSignature = RSAEncryption.sign(upAcc.toJson(), this.config.getPrivateKeyPath());
-            } catch (Exception e) {
-                LOGGER.log(Level.INFO,
-                        MessageFormat.format("{0} - Error signing account update for consensus instance {1}",
-                                config.getId(), consensusInstance));
-                e.printStackTrace();
-                return this.createEmptyUpdateAccounts(instance, block);
-            }
 
-            accountUpdates.put(accountSignature, upAcc);
+            accountUpdates.add(upAcc);
 
             this.ledger.addAccountUpdate(instance, account.getPublicKeyHash(), upAcc);
         }
@@ -326,7 +337,7 @@ public class NodeService implements UDPService {
     /*
      * 
      */
-    private Map<String, UpdateAccount> createEmptyUpdateAccounts(int instance, Block block) {
+    private List<UpdateAccount> createEmptyUpdateAccounts(int instance, Block block) {
 
         // senderId -> pubKeyHash
         Map<String, String> senderToPubKeyHash = new HashMap<>();
@@ -360,8 +371,7 @@ public class NodeService implements UDPService {
             }
         }
 
-        // signature -> update account
-        Map<String, UpdateAccount> accountUpdates = new HashMap<>();
+        List<UpdateAccount> accountUpdates = new ArrayList<>();
         for (Map.Entry<String, String> entry : senderToPubKeyHash.entrySet()) {
             String senderId = entry.getKey();
             String pubKeyHash = entry.getValue();
@@ -371,18 +381,7 @@ public class NodeService implements UDPService {
             UpdateAccount upAcc = new UpdateAccount(senderId, pubKeyHash, BigDecimal.ZERO, instance, senderNonces,
                     false);
 
-            String accountSignature;
-            try {
-                accountSignature = RSAEncryption.sign(upAcc.toJson(), this.config.getPrivateKeyPath());
-            } catch (Exception e) {
-                LOGGER.log(Level.INFO,
-                        MessageFormat.format("{0} - Error signing account update for consensus instance {1}",
-                                config.getId(), consensusInstance));
-                e.printStackTrace();
-                return new HashMap<>();
-            }
-
-            accountUpdates.put(accountSignature, upAcc);
+            accountUpdates.add(upAcc);
 
             this.ledger.addAccountUpdate(instance, pubKeyHash, upAcc);
         }
@@ -390,12 +389,35 @@ public class NodeService implements UDPService {
         return accountUpdates;
     }
 
+    /*
+     * Puts the account updates of an instance in canonical order and signs the
+     * root of their Merkle tree, a single signature however many accounts were
+     * touched (each client gets a proof that its update is under the root)
+     */
+    private CommitMessage signAccountUpdates(int instance, boolean isValidBlock, List<UpdateAccount> accountUpdates) {
+        List<UpdateAccount> ordered = new ArrayList<>(accountUpdates);
+        ordered.sort(CommitMessage.CANONICAL_ORDER);
+        if (ordered.isEmpty())
+            return new CommitMessage(isValidBlock, ordered, null);
+
+        try {
+            byte[] root = CommitMessage.treeOf(ordered).getRoot();
+            return new CommitMessage(isValidBlock, ordered, KeyRing.sign(this.config, CommitMessage.signedRoot(root)));
+        } catch (Exception e) {
+            LOGGER.log(Level.INFO,
+                    MessageFormat.format("{0} - Error signing account updates for consensus instance {1}",
+                            config.getId(), instance));
+            e.printStackTrace();
+            return new CommitMessage(isValidBlock, new ArrayList<>(), null);
+        }
+    }
+
     /*
      * Verify if a block was signed by the leader
      */
     private boolean checkIfSignedByLeader(String block, String leaderMessage, String errorLog) {
         if (this.config.getByzantineBehavior() == ProcessConfig.ByzantineBehavior.NONE
-                && !RSAEncryption.verifySignature(block, leaderMessage, this.leaderConfig.getPublicKeyPath())) {
+                && !KeyRing.verify(this.leaderConfig, block, leaderMessage)) {
             LOGGER.log(Level.INFO, errorLog);
             return false;
         }
@@ -405,26 +427,23 @@ public class NodeService implements UDPService {
 
     /*
      * Verify every transaction signature
+     * Signatures are checked in parallel, the first invalid one stops the rest
      */
     private boolean verifyTransactions(List<LedgerRequest> requests, String senderId) {
 
-        for (LedgerRequest request : requests) {
-            String serializedRequest = request.getMessage();
-            String clientBlockSignature = request.getClientSignature();
-
-            String clientId = request.getSenderId();
-            Optional<ProcessConfig> clientConfig = Arrays.stream(this.clientsConfig)
-                    .filter(client -> client.getId().equals(clientId)).findFirst();
+        boolean valid = this.verifier.verifyAll(requests, request -> {
+            ProcessConfig clientConfig = this.clientsById.get(request.getSenderId());
+            return clientConfig != null
+                    && KeyRing.verify(clientConfig, request.getMessage(), request.getClientSignature());
+        });
 
-            if (clientConfig.isEmpty() || !RSAEncryption.verifySignature(serializedRequest, clientBlockSignature,
-                    clientConfig.get().getPublicKeyPath())) {
-                LOGGER.log(Level.INFO,
-                        MessageFormat.format("  @@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@\n"
-                                + "  @       WARNING: INVALID CLIENT SIGNATURE!      @\n"
-                                + "  @@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@\n"
-                                + "IT IS POSSIBLE THAT NODE {0} IS DOING SOMETHING NASTY!", senderId));
-                return false;
-            }
+        if (!valid) {
+            LOGGER.log(Level.INFO,
+                    MessageFormat.format("  @@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@\n"
+                            + "  @       WARNING: INVALID CLIENT SIGNATURE!      @\n"
+                            + "  @@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@\n"
+                            + "IT IS POSSIBLE THAT NODE {0} IS DOING SOMETHING NASTY!", senderId));
+            return false;
         }
 
         return true;
@@ -453,7 +472,7 @@ public class NodeService implements UDPService {
         String blockSignature;
         String blockJson = block.toJson();
         try {
-            blockSignature = RSAEncryption.sign(blockJson, this.config.getPrivateKeyPath());
+            blockSignature = KeyRing.sign(this.config, blockJson);
         } catch (Exception e) {
             LOGGER.log(Level.INFO, MessageFormat.format("{0} - Error signing block for consensus instance {1}",
                     config.getId(), instance));
@@ -466,7 +485,7 @@ public class NodeService implements UDPService {
         ConsensusMessage consensusMessage = new ConsensusMessageBuilder(config.getId(), Message.Type.PRE_PREPARE)
                 .setConsensusInstance(instance)
                 .setRound(round)
-                .setMessage(prePrepareMessage.toJson())
+                .setMessage(prePrepareMessage.toBytes())
                 .build();
 
         return consensusMessage;
@@ -595,7 +614,7 @@ public class NodeService implements UDPService {
         ConsensusMessage consensusMessage = new ConsensusMessageBuilder(config.getId(), Message.Type.PREPARE)
                 .setConsensusInstance(consensusInstance)
                 .setRound(round)
-                .setMessage(prepareMessage.toJson())
+                .setMessage(prepareMessage.toBytes())
                 .setReplyTo(senderId)
                 .setReplyToMessageId(senderMessageId)
                 .build();
@@ -661,7 +680,7 @@ public class NodeService implements UDPService {
                     .setRound(round)
                     .setReplyTo(senderId)
                     .setReplyToMessageId(message.getMessageId())
-                    .setMessage(instance.getCommitMessage().toJson())
+                    .setMessage(instance.getCommitMessage().toBytes())
                     .build();
 
             link.send(senderId, m);
@@ -682,23 +701,21 @@ public class NodeService implements UDPService {
                     .values();
 
             // Verify transactions validity and update temporary state
-            Map<String, UpdateAccount> accountUpdates = this.tryAddBlock(consensusInstance, preparedBlock.get());
+            List<UpdateAccount> accountUpdates = this.tryAddBlock(consensusInstance, preparedBlock.get());
 
             // If block is invalid, create "invalid" updateAccount with the requests nonce
             // to reply to the client requests, this instance will not update the blockchain
             // but the updateAccounts will be stored (as invalid)
             boolean isValidBlock = true;
-            if (accountUpdates.values().size() == 0) {
-                accountUpdates = new HashMap<>();
-            } else if (consensusInstance != 1 && !accountUpdates.values().stream().toList().get(0).isValid()) {
+            if (consensusInstance != 1 && !accountUpdates.isEmpty() && !accountUpdates.get(0).isValid()) {
                 isValidBlock = false;
             }
 
-            // Reply to every prepare message received with the signatures of the updated
-            // account
+            // Reply to every prepare message received with the updated accounts and the
+            // signature of their Merkle root
             // This serves as proof that the update is valid (if a quorum of signatures is
             // obtained)
-            CommitMessage c = new CommitMessage(isValidBlock, accountUpdates);
+            CommitMessage c = this.signAccountUpdates(consensusInstance, isValidBlock, accountUpdates);
             instance.setCommitMessage(c);
 
             sendersMessage.forEach(senderMessage -> {
@@ -707,7 +724,7 @@ public class NodeService implements UDPService {
                         .setRound(round)
                         .setReplyTo(senderMessage.getSenderId())
                         .setReplyToMessageId(senderMessage.getMessageId())
-                        .setMessage(c.toJson())
+                        .setMessage(c.toBytes())
                         .build();
 
                 link.send(senderMessage.getSenderId(), m);
@@ -725,8 +742,7 @@ public class NodeService implements UDPService {
             pubKey = transferRequest.getSourcePubKey();
         }
         boolean result = false;
-        Optional<ProcessConfig> senderConfig = Arrays.stream(this.clientsConfig)
-                .filter(config -> config.getId().equals(request.getSenderId())).findAny();
+        Optional<ProcessConfig> senderConfig = Optional.ofNullable(this.clientsById.get(request.getSenderId()));
         if (senderConfig.isEmpty()) {
             LOGGER.log(Level.INFO, MessageFormat.format(
                     "@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@\n"
@@ -737,7 +753,7 @@ public class NodeService implements UDPService {
             return result;
         }
         try {
-            result = RSAEncryption.readPublicKey(senderConfig.get().getPublicKeyPath()).equals(pubKey);
+            result = KeyRing.publicKey(senderConfig.get().getPublicKeyPath()).equals(pubKey);
         } catch (Exception e) {
             throw new LedgerException(ErrorMessage.FailedToReadPublicKey);
         }
@@ -755,10 +771,15 @@ public class NodeService implements UDPService {
     }
 
     /*
-     * Verify if the signatures of the updated accounts are valid
+     * Verify if the updated accounts are in canonical order and the signature of
+     * their Merkle root is valid
      */
     private boolean verifyAccountSignatures(String senderId, int consensusInstance, CommitMessage message) {
-        Map<String, UpdateAccount> accountSignatures = message.getUpdateAccountSignatures();
+        List<UpdateAccount> accountUpdates = message.getAccountUpdates();
+        if (accountUpdates.isEmpty())
+            return true;
+        if (!CommitMessage.isCanonical(accountUpdates))
+            return false;
 
         // Get sender public key from config
         Optional<ProcessConfig> senderConfig = Arrays.stream(this.nodesConfig)
@@ -767,17 +788,8 @@ public class NodeService implements UDPService {
             return false;
         }
 
-        for (var entry : accountSignatures.entrySet()) {
-            String signature = entry.getKey();
-            UpdateAccount accountUpdate = entry.getValue();
-
-            if (!RSAEncryption.verifySignature(accountUpdate.toJson(), signature,
-                    senderConfig.get().getPublicKeyPath())) {
-                return false;
-            }
-        }
-
-        return true;
+        byte[] root = CommitMessage.treeOf(accountUpdates).getRoot();
+        return KeyRing.verify(senderConfig.get(), CommitMessage.signedRoot(root), message.getRootSignature());
     }
 
     /*
@@ -850,13 +862,17 @@ public class NodeService implements UDPService {
             // Verify if update accounts are valid or not
             boolean successfulAdd = quorumCommitMessage.isValidBlock();
 
-            // Store signatures from other nodes
+            // Store the signatures of the root from other nodes and the proof of each
+            // account update under it
             commitQuorum.get().forEach((m) -> {
-                String signerId = m.getSenderId();
-                Map<String, UpdateAccount> updates = m.deserializeCommitMessage().getUpdateAccountSignatures();
-                updates.forEach((signature, accountUpdate) -> this.ledger.addAccountUpdateSignature(consensusInstance,
-                        accountUpdate.getHashPubKey(), signerId, signature));
+                String rootSignature = m.deserializeCommitMessage().getRootSignature();
+                if (rootSignature != null)
+                    this.ledger.addRootSignature(consensusInstance, m.getSenderId(), rootSignature);
             });
+            List<UpdateAccount> quorumUpdates = quorumCommitMessage.getAccountUpdates();
+            MerkleTree tree = CommitMessage.treeOf(quorumUpdates);
+            for (int i = 0; i < quorumUpdates.size(); i++)
+                this.ledger.addAccountUpdateProof(consensusInstance, quorumUpdates.get(i).getHashPubKey(), tree.proof(i));
 
             if (successfulAdd) {
                 // Apply temporary transactions to account and append block to blockchain
@@ -894,8 +910,8 @@ public class NodeService implements UDPService {
 
                                     response = new LedgerResponse(this.config.getId(), successfulAdd,
                                             updateAccount,
-                                            this.ledger.getAccountUpdateSignatures(
-                                                    updateAccount.getConsensusInstance(),
+                                            this.ledger.getRootSignatures(updateAccount.getConsensusInstance()),
+                                            this.ledger.getAccountUpdateProof(updateAccount.getConsensusInstance(),
                                                     accountHashPublicKey));
 
                                     responses.put(request.getSenderId(), response);
@@ -927,8 +943,8 @@ public class NodeService implements UDPService {
                                 LedgerResponse response = new LedgerResponse(this.config.getId(),
                                         accountUpdate.isValid(),
                                         accountUpdate,
-                                        this.ledger.getAccountUpdateSignatures(
-                                                accountUpdate.getConsensusInstance(),
+                                        this.ledger.getRootSignatures(accountUpdate.getConsensusInstance()),
+                                        this.ledger.getAccountUpdateProof(accountUpdate.getConsensusInstance(),
                                                 accountHashPublicKey),
                                         balance.getNonce());
 
@@ -995,8 +1011,8 @@ public class NodeService implements UDPService {
                             continue;
                         }
 
-                        // Separate thread to handle each message
-                        new Thread(() -> {
+                        // Handled by the consensus lane (waits while the lane is full)
+                        lane.submit(() -> {
 
                             switch (message.getType()) {
 
@@ -1033,7 +1049,7 @@ public class NodeService implements UDPService {
 
                             }
 
-                        }).start();
+                        });
                     }
                 } catch (IOException | ClassNotFoundException e) {
                     e.printStackTrace();
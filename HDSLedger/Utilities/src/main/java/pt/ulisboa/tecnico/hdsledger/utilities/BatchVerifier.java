@@ -0,0 +1,99 @@
+package pt.ulisboa.tecnico.hdsledger.utilities;
+
+import java.text.MessageFormat;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/*
+ * Checks many signatures at once (e.g. the client requests of a block) on a
+ * pool of threads, stopping as soon as one of them is invalid
+ * Batches are split in halves down to a few signatures per task, so a block
+ * keeps every thread of the pool busy; with a single thread the caller checks
+ * them itself
+ */
+public class BatchVerifier {
+
+    // Signatures a task checks without splitting further
+    private static final int LEAF_SIZE = 2;
+    // Threads checking the signatures (null => checked by the caller)
+    private final ForkJoinPool pool;
+
+    /*
+     * @param name Name of the verifier, used in thread names
+     *
+     * @param threads Number of threads checking signatures
+     */
+    public BatchVerifier(String name, int threads) {
+        AtomicInteger count = new AtomicInteger(0);
+        this.pool = threads < 2 ? null : new ForkJoinPool(threads, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName(MessageFormat.format("{0}-{1}", name, String.valueOf(count.getAndIncrement())));
+            return thread;
+        }, null, false);
+    }
+
+    /*
+     * Whether every item passes the check; once one fails, the items not yet
+     * checked are skipped
+     *
+     * @param items Items carrying the signatures
+     *
+     * @param check Verifies the signature of an item
+     */
+    public <T> boolean verifyAll(List<T> items, Predicate<T> check) {
+        if (pool == null || items.size() <= LEAF_SIZE) {
+            for (T item : items) {
+                if (!check.test(item))
+                    return false;
+            }
+            return true;
+        }
+
+        AtomicBoolean failed = new AtomicBoolean(false);
+        pool.invoke(new Batch<>(items, 0, items.size(), check, failed));
+        return !failed.get();
+    }
+
+    /*
+     * Items [start, end) of a batch
+     */
+    private static class Batch<T> extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<T> items;
+        private final int start;
+        private final int end;
+        private final Predicate<T> check;
+        // Set by the first item failing the check, read by every task
+        private final AtomicBoolean failed;
+
+        private Batch(List<T> items, int start, int end, Predicate<T> check, AtomicBoolean failed) {
+            this.items = items;
+            this.start = start;
+            this.end = end;
+            this.check = check;
+            this.failed = failed;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= LEAF_SIZE) {
+                for (int i = start; i < end && !failed.get(); i++) {
+                    if (!check.test(items.get(i)))
+                        failed.set(true);
+                }
+                return;
+            }
+
+            int middle = (start + end) >>> 1;
+            invokeAll(new Batch<>(items, start, middle, check, failed),
+                    new Batch<>(items, middle, end, check, failed));
+        }
+    }
+}
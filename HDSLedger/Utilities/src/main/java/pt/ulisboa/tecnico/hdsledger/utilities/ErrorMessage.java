@@ -4,6 +4,8 @@ public enum ErrorMessage {
     ConfigFileNotFound("The configuration file is not available at the path supplied"),
     ConfigFileFormat("The configuration file has wrong syntax"),
     NoSuchNode("Can't send a message to a non existing node"),
+    NodeNotListening("No link of the simulated network listens at the address of the node"),
+    SimulatedTransportOutsideCluster("The simulated transport only connects nodes running in the same JVM"),
     NoSuchClient("Received message from a non existing client"),
     SocketSendingError("Error while sending message"),
     SocketReceivingError("Error while receiving message"),
@@ -11,8 +13,10 @@ public enum ErrorMessage {
     SignatureDoesNotMatch("The message signature is not valid"),
     FailedToSignMessage("Error while signing message"),
     CannotParseMessage("Error while parsing received message"),
+    MessageTooLarge("The message is larger than the receiver can reassemble"),
     InvalidAccount("Invalid account id"),
     FailedToReadPublicKey("Error while reading public key"),
+    FailedToReadPrivateKey("Error while reading private key"),
     NoLeader("Error while getting leader"),
     InvalidResponse("Invalid response to client request");
 
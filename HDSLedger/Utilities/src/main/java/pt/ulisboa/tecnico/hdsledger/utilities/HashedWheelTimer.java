@@ -0,0 +1,175 @@
+package pt.ulisboa.tecnico.hdsledger.utilities;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/*
+ * Hashed timing wheel (Varghese & Lauck) driven by a single thread
+ * Timeouts are hashed into a fixed number of buckets by their deadline and the
+ * worker thread expires one bucket per tick, so scheduling and cancelling are
+ * O(1) and the number of threads does not depend on the number of timeouts
+ * Expired tasks run on the worker thread itself, or on an executor for tasks
+ * that may take a while (the worker must keep ticking on time)
+ */
+public class HashedWheelTimer {
+
+    private static final CustomLogger LOGGER = new CustomLogger(HashedWheelTimer.class.getName());
+    // Duration of a tick (in nanoseconds)
+    private final long tickDuration;
+    // Wheel buckets, only touched by the worker thread
+    private final Queue<Timeout>[] wheel;
+    // Bitmask to map a tick to its bucket (wheel size is a power of two)
+    private final int mask;
+    // Timeouts scheduled since the last tick (moved into the wheel by the worker)
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    // Instant the worker started ticking
+    private final long startTime;
+    // Runs the expired tasks (null => the worker runs them)
+    private final Executor executor;
+    // Ticks already processed by the worker
+    private long tick = 0;
+
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        this(name, tickDuration, unit, ticksPerWheel, null);
+    }
+
+    /*
+     * @param executor Runs the expired tasks, null to run them on the worker
+     * thread
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel, Executor executor) {
+        int size = Integer.highestOneBit(Math.max(ticksPerWheel, 2) - 1) << 1;
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Queue<Timeout>[] buckets = new Queue[size];
+        for (int i = 0; i < size; i++)
+            buckets[i] = new ArrayDeque<>();
+
+        this.wheel = buckets;
+        this.mask = size - 1;
+        this.tickDuration = unit.toNanos(tickDuration);
+        this.startTime = System.nanoTime();
+        this.executor = executor;
+
+        Thread worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /*
+     * Schedules a task to run once after the given delay
+     *
+     * @param task Task to be run by the executor or, without one, by the worker
+     * thread (then it must not block)
+     *
+     * @param delay Delay in milliseconds
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0));
+        Timeout timeout = new Timeout(task, deadline);
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        for (;;) {
+            // Sleep until the end of the current tick
+            long deadline = tickDuration * (tick + 1);
+            long sleepTime = deadline - (System.nanoTime() - startTime);
+            if (sleepTime > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepTime);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            transferPendingTimeouts();
+            expireTimeouts(wheel[(int) (tick & mask)], deadline);
+            tick++;
+        }
+    }
+
+    /*
+     * Move newly scheduled timeouts into the bucket of their deadline
+     */
+    private void transferPendingTimeouts() {
+        Timeout timeout;
+        while ((timeout = pendingTimeouts.poll()) != null) {
+            if (timeout.isCancelled())
+                continue;
+
+            long expiryTick = Math.max(timeout.deadline / tickDuration, tick);
+            timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+            wheel[(int) (expiryTick & mask)].add(timeout);
+        }
+    }
+
+    private void expireTimeouts(Queue<Timeout> bucket, long deadline) {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.isCancelled()) {
+                it.remove();
+            } else if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                it.remove();
+                expire(timeout);
+            } else {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+
+    private void expire(Timeout timeout) {
+        if (executor == null) {
+            timeout.expire();
+            return;
+        }
+
+        try {
+            executor.execute(timeout::expire);
+        } catch (RejectedExecutionException e) {
+            LOGGER.log(Level.INFO, "Timeout task rejected: " + e.getMessage());
+        }
+    }
+
+    public static class Timeout {
+
+        // Task to run on expiration
+        private final Runnable task;
+        // Deadline relative to the timer start (in nanoseconds)
+        private final long deadline;
+        // Number of wheel revolutions left before expiring
+        private long remainingRounds;
+        // Set when the timeout is cancelled before expiring
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            this.cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void expire() {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.INFO, "Timeout task failed: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package pt.ulisboa.tecnico.hdsledger.utilities;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Keys of the processes of the system, parsed once and shared by every thread
+ * (keys are immutable)
+ * Keys are looked up by the path of their file, as the configurations name
+ * them; load parses the keys of every process at startup, any other key is
+ * parsed the first time it is used
+ */
+public final class KeyRing {
+
+    // Public keys by path
+    private static final Map<String, PublicKey> PUBLIC_KEYS = new ConcurrentHashMap<>();
+    // Private keys by path
+    private static final Map<String, PrivateKey> PRIVATE_KEYS = new ConcurrentHashMap<>();
+    // Signatures of text found valid (requests and blocks reach a node several times)
+    private static final int VERIFIED_CAPACITY = 1 << 15;
+    private static final SignatureCache VERIFIED = new SignatureCache(VERIFIED_CAPACITY);
+
+    private KeyRing() {
+    }
+
+    /*
+     * Parses the private key of a process and the public keys of every process
+     * it talks to
+     *
+     * @param self Configuration of the process
+     *
+     * @param groups Configurations of the other processes (nodes, clients)
+     */
+    public static void load(ProcessConfig self, ProcessConfig[]... groups) {
+        privateKey(self.getPrivateKeyPath());
+        publicKey(self.getPublicKeyPath());
+        for (ProcessConfig[] group : groups) {
+            for (ProcessConfig config : group)
+                publicKey(config.getPublicKeyPath());
+        }
+    }
+
+    /*
+     * Public key stored at a path
+     */
+    public static PublicKey publicKey(String path) {
+        PublicKey key = PUBLIC_KEYS.get(path);
+        if (key != null)
+            return key;
+
+        try {
+            key = RSAEncryption.readPublicKey(path);
+        } catch (Exception e) {
+            throw new LedgerException(ErrorMessage.FailedToReadPublicKey);
+        }
+        PublicKey previous = PUBLIC_KEYS.putIfAbsent(path, key);
+        return previous == null ? key : previous;
+    }
+
+    /*
+     * Private key stored at a path
+     */
+    public static PrivateKey privateKey(String path) {
+        PrivateKey key = PRIVATE_KEYS.get(path);
+        if (key != null)
+            return key;
+
+        try {
+            key = RSAEncryption.readPrivateKey(path);
+        } catch (Exception e) {
+            throw new LedgerException(ErrorMessage.FailedToReadPrivateKey);
+        }
+        PrivateKey previous = PRIVATE_KEYS.putIfAbsent(path, key);
+        return previous == null ? key : previous;
+    }
+
+    /*
+     * Signs text as a process, with its scheme and private key (Base64)
+     */
+    public static String sign(ProcessConfig signer, String data) {
+        try {
+            return SignatureScheme.of(signer).sign(data, privateKey(signer.getPrivateKeyPath()));
+        } catch (GeneralSecurityException e) {
+            throw new LedgerException(ErrorMessage.FailedToSignMessage);
+        }
+    }
+
+    public static byte[] sign(ProcessConfig signer, byte[] data) {
+        try {
+            return SignatureScheme.of(signer).sign(data, privateKey(signer.getPrivateKeyPath()));
+        } catch (GeneralSecurityException e) {
+            throw new LedgerException(ErrorMessage.FailedToSignMessage);
+        }
+    }
+
+    /*
+     * Verifies a signature (Base64) of text by a process, with its scheme and
+     * public key
+     * Valid signatures are remembered, the same text and signature are not
+     * verified again
+     */
+    public static boolean verify(ProcessConfig signer, String data, String signature) {
+        if (data == null || signature == null)
+            return false;
+
+        SignatureScheme scheme = SignatureScheme.of(signer);
+        PublicKey key = publicKey(signer.getPublicKeyPath());
+        String entry = SignatureCache.entry(scheme, key, data, signature);
+        if (VERIFIED.contains(entry))
+            return true;
+
+        boolean valid = scheme.verify(data, signature, key);
+        if (valid)
+            VERIFIED.add(entry);
+        return valid;
+    }
+
+    /*
+     * Verifies a signature of the remaining bytes of a buffer by a process
+     * (consumes them)
+     */
+    public static boolean verify(ProcessConfig signer, ByteBuffer data, byte[] signature) {
+        return SignatureScheme.of(signer).verify(data, signature, publicKey(signer.getPublicKeyPath()));
+    }
+}
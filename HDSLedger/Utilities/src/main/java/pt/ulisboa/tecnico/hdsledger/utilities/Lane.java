@@ -0,0 +1,67 @@
+package pt.ulisboa.tecnico.hdsledger.utilities;
+
+import java.text.MessageFormat;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Fixed set of threads running the handlers of one kind of traffic, fed by a
+ * bounded queue
+ * Submitting to a full lane blocks the caller (usually the thread receiving
+ * from a link), so bursts are pushed back to the link instead of piling up
+ * threads or memory; a handler that fails is reported and its thread kept
+ */
+public class Lane {
+
+    private final ThreadPoolExecutor executor;
+
+    /*
+     * @param name Name of the lane, used in thread names
+     *
+     * @param threads Number of threads running handlers
+     *
+     * @param capacity Number of handlers that may wait for a thread
+     */
+    public Lane(String name, int threads, int capacity) {
+        AtomicInteger count = new AtomicInteger(0);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(capacity), task -> {
+                    Thread thread = new Thread(task, MessageFormat.format("{0}-{1}", name,
+                            String.valueOf(count.getAndIncrement())));
+                    thread.setDaemon(true);
+                    return thread;
+                }, (task, executor) -> {
+                    // Full => Wait for room instead of dropping the handler
+                    try {
+                        executor.getQueue().put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(e);
+                    }
+                });
+    }
+
+    /*
+     * Runs a handler on one of the threads of the lane, waiting while the lane
+     * is full
+     */
+    public void submit(Runnable handler) {
+        executor.execute(() -> {
+            try {
+                handler.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /*
+     * Number of handlers waiting for a thread
+     */
+    public int queued() {
+        return executor.getQueue().size();
+    }
+}
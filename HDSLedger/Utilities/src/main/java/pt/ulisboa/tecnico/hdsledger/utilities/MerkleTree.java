@@ -0,0 +1,125 @@
+package pt.ulisboa.tecnico.hdsledger.utilities;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Merkle tree (SHA-256) over a list of leaves, committing to all of them with
+ * a single root; the proof of inclusion of a leaf holds the siblings on its
+ * path to the root, so checking it takes one digest per level
+ * Leaves and inner nodes are hashed with different prefixes, so a leaf never
+ * passes for a node; a node without a sibling moves up a level as is
+ */
+public final class MerkleTree {
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    // Digests of each level, from the leaves up to the root
+    private final List<byte[][]> levels = new ArrayList<>();
+
+    /*
+     * Proof that a leaf is in a tree
+     *
+     * @param index Position of the leaf
+     *
+     * @param count Number of leaves of the tree
+     *
+     * @param siblings Digests of the siblings on the path of the leaf, from the
+     * bottom up (levels where it has none are skipped)
+     */
+    public record Proof(int index, int count, List<byte[]> siblings) {
+    }
+
+    public MerkleTree(List<byte[]> leaves) {
+        byte[][] level = new byte[leaves.size()][];
+        for (int i = 0; i < level.length; i++)
+            level[i] = hash(LEAF, leaves.get(i), null);
+        levels.add(level);
+
+        while (level.length > 1) {
+            byte[][] parents = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < level.length; i += 2)
+                parents[i / 2] = i + 1 < level.length ? hash(NODE, level[i], level[i + 1]) : level[i];
+            levels.add(parents);
+            level = parents;
+        }
+    }
+
+    /*
+     * Root of the tree (the digest of nothing if there are no leaves)
+     */
+    public byte[] getRoot() {
+        byte[][] top = levels.get(levels.size() - 1);
+        return top.length == 0 ? DIGESTS.get().digest() : top[0].clone();
+    }
+
+    public int size() {
+        return levels.get(0).length;
+    }
+
+    /*
+     * Proof of inclusion of the leaf at a position
+     */
+    public Proof proof(int index) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException(index);
+
+        List<byte[]> siblings = new ArrayList<>();
+        int position = index;
+        for (byte[][] level : levels) {
+            int sibling = position ^ 1;
+            if (level.length > 1 && sibling < level.length)
+                siblings.add(level[sibling].clone());
+            position /= 2;
+        }
+        return new Proof(index, size(), siblings);
+    }
+
+    /*
+     * Root of the tree a proof places a leaf in, to be compared with a trusted
+     * root
+     *
+     * @return The root or null if the proof is malformed
+     */
+    public static byte[] rootOf(byte[] leaf, Proof proof) {
+        if (proof == null || proof.siblings() == null || proof.count() <= 0 || proof.index() < 0
+                || proof.index() >= proof.count())
+            return null;
+
+        byte[] node = hash(LEAF, leaf, null);
+        int position = proof.index();
+        int count = proof.count();
+        int used = 0;
+        for (; count > 1; position /= 2, count = (count + 1) / 2) {
+            boolean isRight = (position & 1) == 1;
+            // Last node of an odd level => Moves up as is
+            if (!isRight && position + 1 >= count)
+                continue;
+            if (used >= proof.siblings().size())
+                return null;
+
+            byte[] sibling = proof.siblings().get(used++);
+            node = isRight ? hash(NODE, sibling, node) : hash(NODE, node, sibling);
+        }
+        return used == proof.siblings().size() ? node : null;
+    }
+
+    private static byte[] hash(byte prefix, byte[] left, byte[] right) {
+        MessageDigest digest = DIGESTS.get();
+        digest.update(prefix);
+        digest.update(left);
+        if (right != null)
+            digest.update(right);
+        return digest.digest();
+    }
+}
@@ -18,6 +18,29 @@ public class ProcessConfig {
 
     private ByzantineBehavior byzantineBehavior = ByzantineBehavior.NONE;
 
+    private Transport transport = Transport.UDP;
+
+    // Scheme of the signatures of the process (none => the one of its key)
+    private SignatureScheme signatureScheme;
+
+    // Threads handling consensus messages
+    private int consensusThreads = 4;
+
+    // Threads handling client requests (they may wait for the previous consensus instance)
+    private int clientThreads = 16;
+
+    // Messages each lane of handlers may queue before the link is held back
+    private int laneCapacity = 1024;
+
+    // Threads checking the client signatures of a block (one => checked by the handler)
+    private int verifierThreads = Runtime.getRuntime().availableProcessors();
+
+    public enum Transport {
+        UDP,
+        TCP,
+        SIMULATED
+    }
+
     public enum ByzantineBehavior {
         NONE("NONE"),
         PASSIVE("PASSIVE"),
@@ -98,4 +121,32 @@ public class ProcessConfig {
         return byzantineBehavior;
     }
 
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    public SignatureScheme getSignatureScheme() {
+        return signatureScheme;
+    }
+
+    public int getConsensusThreads() {
+        return consensusThreads;
+    }
+
+    public int getClientThreads() {
+        return clientThreads;
+    }
+
+    public int getLaneCapacity() {
+        return laneCapacity;
+    }
+
+    public int getVerifierThreads() {
+        return verifierThreads;
+    }
+
 }
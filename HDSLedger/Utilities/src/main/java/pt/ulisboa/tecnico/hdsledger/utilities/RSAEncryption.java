@@ -3,15 +3,14 @@ package pt.ulisboa.tecnico.hdsledger.utilities;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
-import java.security.KeyFactory;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.PKCS8EncodedKeySpec;
-import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
 
 import javax.crypto.BadPaddingException;
@@ -19,16 +18,37 @@ import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 
+/*
+ * Original signature scheme of the system (SignatureScheme.RSA): the SHA-256
+ * digest of the data (in Base64) encrypted with the private key of the signer
+ * The overloads taking keys (see KeyRing) reuse a Cipher and a MessageDigest per
+ * thread; the ones taking key paths are kept for compatibility and go through
+ * the KeyRing as well, so key files are only read and parsed once
+ */
 public class RSAEncryption {
 
-    private static byte[] readFile(String path) throws FileNotFoundException, IOException {
+    private static final String DIGEST_ALGO = "SHA-256";
+    // Crypto engines of each thread (costly to look up, not thread-safe)
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("RSA");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGO);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
 
-        FileInputStream fis = new FileInputStream(path);
-        byte[] content = new byte[fis.available()];
-        fis.read(content);
-        fis.close();
+    private static byte[] readFile(String path) throws FileNotFoundException, IOException {
 
-        return content;
+        try (FileInputStream fis = new FileInputStream(path)) {
+            return fis.readAllBytes();
+        }
     }
 
     public static String encodePublicKey(PublicKey key) {
@@ -38,85 +58,172 @@ public class RSAEncryption {
     public static PublicKey decodePublicKey(String key) {
         byte[] keyBytes = Base64.getDecoder().decode(key);
         try {
-            return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(keyBytes));
+            return SignatureScheme.decodePublicKey(keyBytes);
         } catch(Exception e) {
             e.printStackTrace();
             return null;
         }
     }
 
-    public static PublicKey readPublicKey(String publicKeyPath)
-            throws FileNotFoundException, IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+    /*
+     * Reads a public key of any of the algorithms of SignatureScheme
+     */
+    public static PublicKey readPublicKey(String publicKeyPath) throws IOException, GeneralSecurityException {
 
         byte[] pubEncoded = readFile(publicKeyPath);
-        X509EncodedKeySpec pubSpec = new X509EncodedKeySpec(pubEncoded);
-        KeyFactory keyFacPub = KeyFactory.getInstance("RSA");
-        PublicKey pub = keyFacPub.generatePublic(pubSpec);
-
-        return pub;
+        return SignatureScheme.decodePublicKey(pubEncoded);
     }
 
-    public static PrivateKey readPrivateKey(String privateKeyPath)
-            throws FileNotFoundException, IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+    /*
+     * Reads a private key of any of the algorithms of SignatureScheme
+     */
+    public static PrivateKey readPrivateKey(String privateKeyPath) throws IOException, GeneralSecurityException {
 
         byte[] privEncoded = readFile(privateKeyPath);
-        PKCS8EncodedKeySpec privSpec = new PKCS8EncodedKeySpec(privEncoded);
-        KeyFactory keyFacPriv = KeyFactory.getInstance("RSA");
-        PrivateKey priv = keyFacPriv.generatePrivate(privSpec);
-
-        return priv;
+        return SignatureScheme.decodePrivateKey(privEncoded);
     }
 
     public static byte[] encrypt(byte[] data, String pathToPrivateKey)
             throws FileNotFoundException, NoSuchAlgorithmException, InvalidKeySpecException, IOException,
             NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
 
-        PrivateKey privateKey = readPrivateKey(pathToPrivateKey);
-        Cipher encryptCipher = Cipher.getInstance("RSA");
-        encryptCipher.init(Cipher.ENCRYPT_MODE, privateKey);
-        byte[] encryptedData = encryptCipher.doFinal(data);
+        return encrypt(data, KeyRing.privateKey(pathToPrivateKey));
+    }
+
+    public static byte[] encrypt(byte[] data, PrivateKey privateKey)
+            throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
 
-        return encryptedData;
+        Cipher encryptCipher = CIPHERS.get();
+        encryptCipher.init(Cipher.ENCRYPT_MODE, privateKey);
+        return encryptCipher.doFinal(data);
     }
 
     public static byte[] decrypt(byte[] data, String pathToPublicKey)
             throws FileNotFoundException, NoSuchAlgorithmException, InvalidKeySpecException, IOException,
             NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
 
-        PublicKey publicKey = readPublicKey(pathToPublicKey);
-        Cipher decryptCipher = Cipher.getInstance("RSA");
-        decryptCipher.init(Cipher.DECRYPT_MODE, publicKey);
-        byte[] decryptedData = decryptCipher.doFinal(data);
+        return decrypt(data, KeyRing.publicKey(pathToPublicKey));
+    }
+
+    public static byte[] decrypt(byte[] data, PublicKey publicKey)
+            throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
 
-        return decryptedData;
+        Cipher decryptCipher = CIPHERS.get();
+        decryptCipher.init(Cipher.DECRYPT_MODE, publicKey);
+        return decryptCipher.doFinal(data);
     }
 
     public static String digest(String data) throws NoSuchAlgorithmException {
-        byte[] dataBytes = data.getBytes();
-        final String DIGEST_ALGO = "SHA-256";
-        MessageDigest messageDigest = MessageDigest.getInstance(DIGEST_ALGO);
+        return digest(data.getBytes());
+    }
+
+    public static String digest(byte[] dataBytes) throws NoSuchAlgorithmException {
+        MessageDigest messageDigest = DIGESTS.get();
         messageDigest.update(dataBytes);
         byte[] digestBytes = messageDigest.digest();
 
         return Base64.getEncoder().encodeToString(digestBytes);
     }
 
+    /*
+     * Digest of the remaining bytes of a buffer (consumes them)
+     */
+    public static String digest(ByteBuffer data) throws NoSuchAlgorithmException {
+        MessageDigest messageDigest = DIGESTS.get();
+        messageDigest.update(data);
+        byte[] digestBytes = messageDigest.digest();
+
+        return Base64.getEncoder().encodeToString(digestBytes);
+    }
+
     public static String sign(String data, String pathToPrivateKey)
             throws NoSuchAlgorithmException, InvalidKeyException, FileNotFoundException, InvalidKeySpecException,
             NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, IOException {
 
+        return sign(data, KeyRing.privateKey(pathToPrivateKey));
+    }
+
+    public static String sign(String data, PrivateKey privateKey)
+            throws NoSuchAlgorithmException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+
         String digest = digest(data);
-        byte[] digestEncrypted = encrypt(digest.getBytes(), pathToPrivateKey);
+        byte[] digestEncrypted = encrypt(digest.getBytes(), privateKey);
         String digestBase64 = Base64.getEncoder().encodeToString(digestEncrypted);
 
         return digestBase64;
     }
 
+    /*
+     * Signs raw bytes, returning the raw signature (used by binary frames)
+     */
+    public static byte[] sign(byte[] data, String pathToPrivateKey)
+            throws NoSuchAlgorithmException, InvalidKeyException, FileNotFoundException, InvalidKeySpecException,
+            NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, IOException {
+
+        return sign(data, KeyRing.privateKey(pathToPrivateKey));
+    }
+
+    public static byte[] sign(byte[] data, PrivateKey privateKey)
+            throws NoSuchAlgorithmException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+
+        String digest = digest(data);
+        return encrypt(digest.getBytes(), privateKey);
+    }
+
+    public static boolean verifySignature(byte[] data, byte[] signature, String pathToPublicKey) {
+        try {
+            return verifySignature(data, signature, KeyRing.publicKey(pathToPublicKey));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    public static boolean verifySignature(byte[] data, byte[] signature, PublicKey publicKey) {
+        try {
+            String hash = digest(data);
+            String decryptedHash = new String(decrypt(signature, publicKey));
+            return hash.equals(decryptedHash);
+
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /*
+     * Verifies the signature of the remaining bytes of a buffer (consumes them)
+     */
+    public static boolean verifySignature(ByteBuffer data, byte[] signature, String pathToPublicKey) {
+        try {
+            return verifySignature(data, signature, KeyRing.publicKey(pathToPublicKey));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    public static boolean verifySignature(ByteBuffer data, byte[] signature, PublicKey publicKey) {
+        try {
+            String hash = digest(data);
+            String decryptedHash = new String(decrypt(signature, publicKey));
+            return hash.equals(decryptedHash);
+
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
     public static boolean verifySignature(String data, String signature, String pathToPublicKey) {
+        try {
+            return verifySignature(data, signature, KeyRing.publicKey(pathToPublicKey));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    public static boolean verifySignature(String data, String signature, PublicKey publicKey) {
         try {
             String hash = digest(data);
             byte[] signatureBytes = Base64.getDecoder().decode(signature);
-            String decryptedHash = new String(decrypt(signatureBytes, pathToPublicKey));
+            String decryptedHash = new String(decrypt(signatureBytes, publicKey));
             return hash.equals(decryptedHash);
 
         } catch (Exception e) {
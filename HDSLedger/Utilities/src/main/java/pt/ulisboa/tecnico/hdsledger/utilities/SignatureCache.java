@@ -0,0 +1,99 @@
+package pt.ulisboa.tecnico.hdsledger.utilities;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Signatures already found valid, so signed content that reaches a process
+ * several times is only verified once (e.g. a client request checked on
+ * arrival, then in the PRE-PREPARE and in every PREPARE carrying its block)
+ * Entries are digests of the scheme, the key, the signature and the content
+ * together, so a cached signature never vouches for other content, another
+ * signer or another scheme; only valid signatures are kept, in segments that
+ * evict their least recently used entries
+ */
+final class SignatureCache {
+
+    private static final int SEGMENTS = 16;
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /*
+     * @param capacity Number of signatures kept
+     */
+    SignatureCache(int capacity) {
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(Math.max(1, capacity / SEGMENTS));
+    }
+
+    /*
+     * Entry of a signature of some content under a scheme and a key
+     *
+     * @param key Public key of the signer (its encoding is digested, not its path)
+     */
+    static String entry(SignatureScheme scheme, PublicKey key, String data, String signature) {
+        MessageDigest digest = DIGESTS.get();
+        update(digest, scheme.name().getBytes(StandardCharsets.UTF_8));
+        update(digest, key.getEncoded());
+        update(digest, signature.getBytes(StandardCharsets.UTF_8));
+        update(digest, data.getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, byte[] part) {
+        // Length first, so the parts cannot be shifted into each other
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(0, part.length));
+        digest.update(part);
+    }
+
+    boolean contains(String entry) {
+        Segment segment = segment(entry);
+        synchronized (segment) {
+            return segment.get(entry) != null;
+        }
+    }
+
+    void add(String entry) {
+        Segment segment = segment(entry);
+        synchronized (segment) {
+            segment.put(entry, Boolean.TRUE);
+        }
+    }
+
+    private Segment segment(String entry) {
+        return segments[Math.floorMod(entry.hashCode(), SEGMENTS)];
+    }
+
+    /*
+     * Entries of a segment, in access order
+     */
+    private static class Segment extends LinkedHashMap<String, Boolean> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        private Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package pt.ulisboa.tecnico.hdsledger.utilities;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+
+/*
+ * Ways a process may sign its messages, chosen in its configuration
+ * (signatureScheme); without one, the scheme follows the key of the process, so
+ * RSA keys keep the original scheme and Ed25519 keys use Ed25519
+ * Verifiers use the scheme of the signer, so processes with different schemes
+ * may run side by side
+ */
+public enum SignatureScheme {
+
+    // Original scheme of the system (see RSAEncryption), kept for the existing keys
+    RSA("RSA") {
+        @Override
+        public byte[] sign(byte[] data, PrivateKey privateKey) throws GeneralSecurityException {
+            return RSAEncryption.sign(data, privateKey);
+        }
+
+        @Override
+        public boolean verify(ByteBuffer data, byte[] signature, PublicKey publicKey) {
+            return RSAEncryption.verifySignature(data, signature, publicKey);
+        }
+    },
+    // PKCS#1 v1.5 signatures over SHA-256, with the same keys as RSA
+    SHA256_WITH_RSA("RSA", "SHA256withRSA"),
+    // Small keys and signatures (64 bytes) and cheap signing, but verifying is
+    // slower than RSA on JDK 17
+    ED25519("Ed25519", "Ed25519");
+
+    // Algorithms of the key files every scheme may read
+    private static final String[] KEY_ALGORITHMS = { "RSA", "Ed25519" };
+
+    private final String keyAlgorithm;
+    // Signature engines of each thread (costly to look up, not thread-safe)
+    private final ThreadLocal<Signature> signatures;
+
+    SignatureScheme(String keyAlgorithm) {
+        this.keyAlgorithm = keyAlgorithm;
+        this.signatures = null;
+    }
+
+    SignatureScheme(String keyAlgorithm, String signatureAlgorithm) {
+        this.keyAlgorithm = keyAlgorithm;
+        this.signatures = ThreadLocal.withInitial(() -> {
+            try {
+                return Signature.getInstance(signatureAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /*
+     * Algorithm of the keys of the scheme (as KeyPairGenerator names it)
+     */
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    public byte[] sign(byte[] data, PrivateKey privateKey) throws GeneralSecurityException {
+        Signature signature = signatures.get();
+        signature.initSign(privateKey);
+        signature.update(data);
+        return signature.sign();
+    }
+
+    /*
+     * Verifies the signature of the remaining bytes of a buffer (consumes them)
+     */
+    public boolean verify(ByteBuffer data, byte[] signature, PublicKey publicKey) {
+        try {
+            Signature verifier = signatures.get();
+            verifier.initVerify(publicKey);
+            verifier.update(data);
+            return verifier.verify(signature);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    public boolean verify(byte[] data, byte[] signature, PublicKey publicKey) {
+        return verify(ByteBuffer.wrap(data), signature, publicKey);
+    }
+
+    /*
+     * Signs text, returning the signature in Base64 (used by JSON messages)
+     */
+    public String sign(String data, PrivateKey privateKey) throws GeneralSecurityException {
+        return Base64.getEncoder().encodeToString(sign(data.getBytes(), privateKey));
+    }
+
+    public boolean verify(String data, String signature, PublicKey publicKey) {
+        try {
+            return verify(data.getBytes(), Base64.getDecoder().decode(signature), publicKey);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /*
+     * Scheme a process signs with: the one of its configuration, or the one of
+     * its key
+     */
+    public static SignatureScheme of(ProcessConfig config) {
+        if (config.getSignatureScheme() != null)
+            return config.getSignatureScheme();
+        return KeyRing.publicKey(config.getPublicKeyPath()).getAlgorithm().equals("RSA") ? RSA : ED25519;
+    }
+
+    /*
+     * Parses a public key (X.509) of any of the supported algorithms
+     */
+    public static PublicKey decodePublicKey(byte[] encoded) throws GeneralSecurityException {
+        GeneralSecurityException failure = null;
+        for (String algorithm : KEY_ALGORITHMS) {
+            try {
+                return KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(encoded));
+            } catch (GeneralSecurityException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /*
+     * Parses a private key (PKCS#8) of any of the supported algorithms
+     */
+    public static PrivateKey decodePrivateKey(byte[] encoded) throws GeneralSecurityException {
+        GeneralSecurityException failure = null;
+        for (String algorithm : KEY_ALGORITHMS) {
+            try {
+                return KeyFactory.getInstance(algorithm).generatePrivate(new PKCS8EncodedKeySpec(encoded));
+            } catch (GeneralSecurityException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+}
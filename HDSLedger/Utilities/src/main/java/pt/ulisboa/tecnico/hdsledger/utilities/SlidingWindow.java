@@ -0,0 +1,86 @@
+package pt.ulisboa.tecnico.hdsledger.utilities;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*
+ * Lock-free set of the sequence numbers received from one sender
+ *
+ * Every number up to the floor was received; the ones above it are tracked
+ * in a ring of slots (slot = number modulo capacity), each holding the last
+ * number stored there. A slot can be reused as soon as the number it holds
+ * falls below the floor, so memory stays constant no matter how many numbers
+ * are added, as long as they arrive within capacity of the floor.
+ */
+public class SlidingWindow {
+
+    // Every number up to (and including) the floor is in the set
+    private final AtomicInteger floor = new AtomicInteger(-1);
+    // Last number stored in each slot
+    private final AtomicIntegerArray slots;
+    private final int capacity;
+
+    public SlidingWindow(int capacity) {
+        this.capacity = capacity;
+        this.slots = new AtomicIntegerArray(capacity);
+        for (int i = 0; i < capacity; i++)
+            slots.set(i, Integer.MIN_VALUE);
+    }
+
+    public int getFloor() {
+        return floor.get();
+    }
+
+    /*
+     * True if the number is close enough to the floor to be tracked
+     */
+    public boolean accepts(int number) {
+        return number - floor.get() <= capacity;
+    }
+
+    public boolean contains(int number) {
+        return number <= floor.get() || slots.get(slotOf(number)) == number;
+    }
+
+    /*
+     * Adds a number to the set
+     *
+     * @return True if the number was added, false if it was already in the set
+     * or is too far ahead of the floor
+     */
+    public boolean add(int number) {
+        if (number < 0 || !accepts(number))
+            return false;
+
+        int slot = slotOf(number);
+        for (;;) {
+            // Slots only move forward, a larger number means this one was already
+            // added and the floor moved past it
+            int stored = slots.get(slot);
+            if (stored >= number)
+                return false;
+            if (slots.compareAndSet(slot, stored, number))
+                break;
+        }
+
+        advance();
+        return true;
+    }
+
+    /*
+     * Moves the floor over every consecutive number already in the set
+     */
+    private void advance() {
+        for (;;) {
+            int current = floor.get();
+            int next = current + 1;
+            if (slots.get(slotOf(next)) != next)
+                return;
+            floor.compareAndSet(current, next);
+        }
+    }
+
+    private int slotOf(int number) {
+        return Math.floorMod(number, capacity);
+    }
+}
@@ -0,0 +1,106 @@
+package pt.ulisboa.tecnico.hdsledger.utilities;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashedWheelTimerTest {
+
+    // Time given to a timeout to fire once due (ms)
+    private static final long GRACE = 2000;
+
+    private static HashedWheelTimer timer(int ticksPerWheel) {
+        return new HashedWheelTimer("test-timer", 1, TimeUnit.MILLISECONDS, ticksPerWheel);
+    }
+
+    @Test
+    void runsTasksOnceTheirDelayElapsed() throws InterruptedException {
+        HashedWheelTimer timer = timer(64);
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        timer.schedule(fired::countDown, 30);
+
+        assertTrue(fired.await(GRACE, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(30));
+    }
+
+    @Test
+    void runsTasksInDeadlineOrder() throws InterruptedException {
+        HashedWheelTimer timer = timer(64);
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch fired = new CountDownLatch(3);
+        for (int delay : new int[] { 30, 10, 20 }) {
+            timer.schedule(() -> {
+                order.add(delay);
+                fired.countDown();
+            }, delay);
+        }
+
+        assertTrue(fired.await(GRACE, TimeUnit.MILLISECONDS));
+        assertEquals(List.of(10, 20, 30), order);
+    }
+
+    @Test
+    void delaysLongerThanTheWheelWaitForTheirRounds() throws InterruptedException {
+        // A revolution takes 8 ms, the delay several of them
+        HashedWheelTimer timer = timer(8);
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        timer.schedule(fired::countDown, 50);
+
+        assertTrue(fired.await(GRACE, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    void cancelledTasksDoNotRun() throws InterruptedException {
+        HashedWheelTimer timer = timer(64);
+        CountDownLatch cancelledFired = new CountDownLatch(1);
+        CountDownLatch laterFired = new CountDownLatch(1);
+        HashedWheelTimer.Timeout timeout = timer.schedule(cancelledFired::countDown, 10);
+        timeout.cancel();
+        timer.schedule(laterFired::countDown, 30);
+
+        assertTrue(laterFired.await(GRACE, TimeUnit.MILLISECONDS));
+        assertTrue(timeout.isCancelled());
+        assertEquals(1, cancelledFired.getCount());
+    }
+
+    @Test
+    void failingTasksDoNotStopTheTimer() throws InterruptedException {
+        HashedWheelTimer timer = timer(64);
+        CountDownLatch fired = new CountDownLatch(1);
+        timer.schedule(() -> {
+            throw new IllegalStateException("task failure");
+        }, 5);
+        timer.schedule(fired::countDown, 20);
+
+        assertTrue(fired.await(GRACE, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void tasksRunOnTheExecutorWhenGiven() throws InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor(task -> new Thread(task, "test-executor"));
+        try {
+            HashedWheelTimer timer = new HashedWheelTimer("test-timer", 1, TimeUnit.MILLISECONDS, 64, executor);
+            List<String> threads = new CopyOnWriteArrayList<>();
+            CountDownLatch fired = new CountDownLatch(1);
+            timer.schedule(() -> {
+                threads.add(Thread.currentThread().getName());
+                fired.countDown();
+            }, 10);
+
+            assertTrue(fired.await(GRACE, TimeUnit.MILLISECONDS));
+            assertEquals(List.of("test-executor"), threads);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package pt.ulisboa.tecnico.hdsledger.utilities;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LaneTest {
+
+    @Test
+    void runsHandlersOnItsOwnThreads() throws InterruptedException {
+        Lane lane = new Lane("test-lane", 2, 4);
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            lane.submit(() -> {
+                threads.add(Thread.currentThread().getName());
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(Set.of("test-lane-0", "test-lane-1").containsAll(threads));
+    }
+
+    @Test
+    void submittingToAFullLaneWaitsForRoom() throws InterruptedException {
+        Lane lane = new Lane("test-lane", 1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        lane.submit(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        lane.submit(() -> {
+        });
+
+        // One handler runs, one waits: the next submission blocks until there is room
+        AtomicBoolean submitted = new AtomicBoolean(false);
+        Thread submitter = new Thread(() -> {
+            lane.submit(() -> {
+            });
+            submitted.set(true);
+        });
+        submitter.start();
+        submitter.join(200);
+        assertFalse(submitted.get());
+        assertEquals(1, lane.queued());
+
+        release.countDown();
+        submitter.join(5000);
+        assertTrue(submitted.get());
+    }
+
+    @Test
+    void failingHandlersDoNotStopTheLane() throws InterruptedException {
+        Lane lane = new Lane("test-lane", 1, 4);
+        CountDownLatch done = new CountDownLatch(1);
+        lane.submit(() -> {
+            throw new IllegalStateException("handler failure");
+        });
+        lane.submit(done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,102 @@
+package pt.ulisboa.tecnico.hdsledger.utilities;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MerkleTreeTest {
+
+    private static List<byte[]> leaves(int count) {
+        List<byte[]> leaves = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            leaves.add(("leaf " + i).getBytes(StandardCharsets.UTF_8));
+        return leaves;
+    }
+
+    @Test
+    void everyProofLeadsToTheRoot() {
+        // Powers of two and odd levels alike
+        for (int count = 1; count <= 17; count++) {
+            List<byte[]> leaves = leaves(count);
+            MerkleTree tree = new MerkleTree(leaves);
+            assertEquals(count, tree.size());
+            for (int i = 0; i < count; i++)
+                assertArrayEquals(tree.getRoot(), MerkleTree.rootOf(leaves.get(i), tree.proof(i)),
+                        "leaf " + i + " of " + count);
+        }
+    }
+
+    @Test
+    void rootDependsOnEveryLeaf() {
+        List<byte[]> leaves = leaves(5);
+        byte[] root = new MerkleTree(leaves).getRoot();
+
+        leaves.set(4, "other".getBytes(StandardCharsets.UTF_8));
+        assertFalse(Arrays.equals(root, new MerkleTree(leaves).getRoot()));
+    }
+
+    @Test
+    void forgedLeafLeadsElsewhere() {
+        List<byte[]> leaves = leaves(6);
+        MerkleTree tree = new MerkleTree(leaves);
+
+        byte[] root = MerkleTree.rootOf("forged".getBytes(StandardCharsets.UTF_8), tree.proof(2));
+        assertNotNull(root);
+        assertFalse(Arrays.equals(tree.getRoot(), root));
+    }
+
+    @Test
+    void proofOfAnotherPositionLeadsElsewhere() {
+        List<byte[]> leaves = leaves(6);
+        MerkleTree tree = new MerkleTree(leaves);
+        MerkleTree.Proof proof = tree.proof(2);
+
+        MerkleTree.Proof moved = new MerkleTree.Proof(3, proof.count(), proof.siblings());
+        byte[] root = MerkleTree.rootOf(leaves.get(2), moved);
+        assertTrue(root == null || !Arrays.equals(tree.getRoot(), root));
+    }
+
+    @Test
+    void innerNodeDoesNotPassForALeaf() {
+        List<byte[]> leaves = leaves(4);
+        MerkleTree tree = new MerkleTree(leaves);
+        MerkleTree pair = new MerkleTree(leaves.subList(0, 2));
+
+        // The root of the first two leaves, presented as a leaf one level up
+        MerkleTree.Proof proof = tree.proof(0);
+        MerkleTree.Proof shortened = new MerkleTree.Proof(0, 2, proof.siblings().subList(1, 2));
+        byte[] root = MerkleTree.rootOf(pair.getRoot(), shortened);
+        assertFalse(Arrays.equals(tree.getRoot(), root));
+    }
+
+    @Test
+    void malformedProofsHaveNoRoot() {
+        List<byte[]> leaves = leaves(5);
+        MerkleTree tree = new MerkleTree(leaves);
+        MerkleTree.Proof proof = tree.proof(1);
+        byte[] leaf = leaves.get(1);
+
+        assertNull(MerkleTree.rootOf(leaf, null));
+        assertNull(MerkleTree.rootOf(leaf, new MerkleTree.Proof(5, 5, proof.siblings())));
+        assertNull(MerkleTree.rootOf(leaf, new MerkleTree.Proof(-1, 5, proof.siblings())));
+        assertNull(MerkleTree.rootOf(leaf, new MerkleTree.Proof(1, 0, proof.siblings())));
+        assertNull(MerkleTree.rootOf(leaf, new MerkleTree.Proof(1, 5, null)));
+        // Siblings missing or left over
+        assertNull(MerkleTree.rootOf(leaf, new MerkleTree.Proof(1, 5, proof.siblings().subList(0, 1))));
+        List<byte[]> extra = new ArrayList<>(proof.siblings());
+        extra.add(new byte[32]);
+        assertNull(MerkleTree.rootOf(leaf, new MerkleTree.Proof(1, 5, extra)));
+    }
+
+    @Test
+    void outOfRangeProofIsRefused() {
+        MerkleTree tree = new MerkleTree(leaves(3));
+        assertThrows(IndexOutOfBoundsException.class, () -> tree.proof(3));
+        assertThrows(IndexOutOfBoundsException.class, () -> tree.proof(-1));
+    }
+}
@@ -0,0 +1,112 @@
+package pt.ulisboa.tecnico.hdsledger.utilities;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SlidingWindowTest {
+
+    @Test
+    void addsEachNumberOnce() {
+        SlidingWindow window = new SlidingWindow(8);
+        assertTrue(window.add(0));
+        assertFalse(window.add(0));
+        assertTrue(window.contains(0));
+        assertFalse(window.contains(1));
+        assertFalse(window.add(-1));
+    }
+
+    @Test
+    void floorMovesOverConsecutiveNumbers() {
+        SlidingWindow window = new SlidingWindow(8);
+        assertTrue(window.add(2));
+        assertTrue(window.add(1));
+        assertEquals(-1, window.getFloor());
+        assertTrue(window.contains(2));
+
+        assertTrue(window.add(0));
+        assertEquals(2, window.getFloor());
+        assertFalse(window.add(1));
+    }
+
+    @Test
+    void rejectsNumbersTooFarAhead() {
+        SlidingWindow window = new SlidingWindow(8);
+        assertTrue(window.accepts(7));
+        assertFalse(window.accepts(8));
+        assertFalse(window.add(8));
+        assertFalse(window.contains(8));
+
+        // Once the floor moves, the window moves with it
+        for (int i = 0; i <= 4; i++)
+            assertTrue(window.add(i));
+        assertTrue(window.add(12));
+        assertFalse(window.add(13));
+    }
+
+    @Test
+    void reusesSlotsBelowTheFloor() {
+        SlidingWindow window = new SlidingWindow(4);
+        for (int i = 0; i < 100; i++)
+            assertTrue(window.add(i));
+        assertEquals(99, window.getFloor());
+        for (int i = 0; i < 100; i++)
+            assertFalse(window.add(i));
+
+        // 101 and 97 share a slot, only the first is in the set
+        assertTrue(window.add(101));
+        assertTrue(window.contains(101));
+        assertFalse(window.contains(102));
+        assertTrue(window.add(100));
+        assertEquals(101, window.getFloor());
+    }
+
+    @Test
+    void outOfOrderNumbersAreAllAdded() {
+        List<Integer> numbers = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            numbers.add(i);
+        // Shuffled within blocks, so every number stays within capacity of the floor
+        Random random = new Random(42);
+        for (int i = 0; i < numbers.size(); i += 16)
+            Collections.shuffle(numbers.subList(i, Math.min(i + 16, numbers.size())), random);
+
+        SlidingWindow window = new SlidingWindow(32);
+        for (int number : numbers)
+            assertTrue(window.add(number));
+        assertEquals(999, window.getFloor());
+    }
+
+    @Test
+    void concurrentAddsAcceptEachNumberOnce() throws InterruptedException {
+        SlidingWindow window = new SlidingWindow(64);
+        AtomicInteger added = new AtomicInteger();
+        int count = 20_000;
+
+        // Every thread offers every number, in the same order, so none gets far ahead
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < count; i++) {
+                    while (!window.accepts(i))
+                        Thread.onSpinWait();
+                    if (window.add(i))
+                        added.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(count, added.get());
+        assertEquals(count - 1, window.getFloor());
+    }
+}
@@ -26,6 +26,8 @@ server_configs = [
     "corrupt_leader_config.json",
     "fake_weak_config.json",
     "force_consensus_read_config.json",
+    "tcp_config.json",
+    "ed25519_config.json",
 ]
 
 client_configs = [